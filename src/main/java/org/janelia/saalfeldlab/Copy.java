@@ -119,33 +119,68 @@
  */
 package org.janelia.saalfeldlab;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
+import org.janelia.saalfeldlab.block.BlockChecksums;
+import org.janelia.saalfeldlab.block.BlockDeduplicator;
+import org.janelia.saalfeldlab.block.BlockDelta;
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.BlockManifest;
+import org.janelia.saalfeldlab.block.BlockOrder;
+import org.janelia.saalfeldlab.block.BlockTasks;
+import org.janelia.saalfeldlab.block.CompressionBenchmark;
+import org.janelia.saalfeldlab.block.CompressionBenchmark.Objective;
+import org.janelia.saalfeldlab.block.DataBlocks;
+import org.janelia.saalfeldlab.block.IoExecutor;
+import org.janelia.saalfeldlab.block.MemoryBudget;
+import org.janelia.saalfeldlab.block.ProgressReporter;
+import org.janelia.saalfeldlab.block.ProgressReporter.Phase;
+import org.janelia.saalfeldlab.block.PyramidReducer;
+import org.janelia.saalfeldlab.block.RawBlocks;
+import org.janelia.saalfeldlab.block.Rechunker;
+import org.janelia.saalfeldlab.block.ShardAssembler;
+import org.janelia.saalfeldlab.block.TypeConverter;
+import org.janelia.saalfeldlab.block.ZarrShardWriter;
 import org.janelia.saalfeldlab.n5.Bzip2Compression;
 import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
 import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5KeyValueWriter;
 import org.janelia.saalfeldlab.n5.N5Exception;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.RawCompression;
 import org.janelia.saalfeldlab.n5.XzCompression;
-import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
+import org.janelia.saalfeldlab.n5.blosc.BloscCompression;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.jpeg.JPEGCompression;
 import org.janelia.saalfeldlab.n5.universe.N5Factory;
+import org.janelia.saalfeldlab.n5.zarr.ZarrKeyValueWriter;
 
-import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 
@@ -156,30 +191,173 @@ import picocli.CommandLine.Option;
  */
 public class Copy implements Callable<Void> {
 
+	/**
+	 * An output container with its own block size and compression.
+	 */
+	protected static class Output {
+
+		protected final String containerPath;
+		protected final N5Writer n5Writer;
+		protected final int[] blockSize;
+		protected final Compression compression;
+		protected final boolean autoCompression;
+		protected final int compressionParameter;
+		protected final BlockDeduplicator dedup;
+
+		/**
+		 *
+		 * @param containerPath
+		 * @param n5Writer null for sharded outputs
+		 * @param blockSize may be null
+		 * @param compression null to keep the source compression or to benchmark
+		 * @param autoCompression
+		 * @param compressionParameter
+		 * @param dedup links identical blocks, may be null
+		 */
+		public Output(
+				final String containerPath,
+				final N5Writer n5Writer,
+				final int[] blockSize,
+				final Compression compression,
+				final boolean autoCompression,
+				final int compressionParameter,
+				final BlockDeduplicator dedup) {
+
+			this.containerPath = containerPath;
+			this.n5Writer = n5Writer;
+			this.blockSize = blockSize;
+			this.compression = compression;
+			this.autoCompression = autoCompression;
+			this.compressionParameter = compressionParameter;
+			this.dedup = dedup;
+		}
+	}
+
 	protected N5Reader n5Reader;
-	protected N5Writer n5Writer;
-	protected int[] blockSize;
-	protected Compression compression;
-	protected final int numProc = Runtime.getRuntime().availableProcessors();
+	protected final ArrayList<Output> outputs = new ArrayList<>();
+
+	/* shared by all datasets so that blocks of many datasets are processed concurrently */
+	protected ExecutorService exec;
+
+	/* blocking reads and writes on high latency storage, may be null */
+	protected IoExecutor io;
+	protected final ArrayList<CompletableFuture<Void>> datasetFutures = new ArrayList<>();
 
 	@Option(names = {"-i", "--inputContainer" }, required = true, description = "container path, e.g. /nrs/flyem/data/tmp/Z0115-22.h5")
 	private String inputContainerPath = null;
 
-	@Option(names = {"-o", "--outputContainer" }, required = true, description = "container path, e.g. /nrs/flyem/data/tmp/Z0115-22.n5")
-	private String outputContainerPath = null;
+	@Option(names = {"-o", "--outputContainer" }, required = true, description = "container path, e.g. /nrs/flyem/data/tmp/Z0115-22.n5, repeat to write several containers from a single read of the input, -b, -c, and -p can be repeated once per container, the last value applies to all following containers")
+	private List<String> outputContainerPaths = null;
 
 	@Option(names = {"-d", "--group" }, description = "group or dataset name, e.g. /volumes/raw")
 	private List<String> groupNames = null;
 
-	@Option(names = {"-b", "--blockSize" }, description = "override blockSize of input datasets, e.g. 256,256,26")
-	private String blockSizeString = null;
+	@Option(names = {"-b", "--blockSize" }, description = "override blockSize of input datasets, e.g. 256,256,26, repeat once per output container for different block sizes")
+	private List<String> blockSizeStrings = null;
+
+	@Option(names = {"--min" }, description = "copy only the sub-volume of each dataset that starts at this position, the offset attribute of the output records the position, e.g. 1000,2000,300 (default: 0,0,...)")
+	private String cropMinString = null;
 
-	@Option(names = {"-c", "--compression" }, description = "override compression type of input N5 datasets, e.g. gzip (HDF5 inputs are copied without compression by default, in this case this option sets the output compression)")
-	private String compressionString = "";
+	@Option(names = {"--max" }, description = "copy only the sub-volume of each dataset that ends at this position (inclusive), e.g. 1999,2999,799 (default: the last position of the dataset)")
+	private String cropMaxString = null;
+
+	@Option(names = {"--offsetToOrigin" }, description = "with --min/--max, place the sub-volume at the origin, i.e. do not add its position to the offset attribute")
+	private boolean offsetToOrigin = false;
+
+	@Option(names = {"-a", "--axes" }, description = "comma separated permutation of the source axes that become the output axes, like the axes of n5-view, blocks are transposed in the copy pass, e.g. 2,1,0 to turn ZYX into XYZ (default: 0,1,2,...)")
+	private String axesString = null;
+
+	@Option(names = {"--type" }, description = "convert to this data type in the copy pass, e.g. uint8 (default: the source type)")
+	private String typeString = null;
+
+	@Option(names = {"--scale" }, description = "multiply values by this factor when converting, integer outputs are rounded and clamped, e.g. 0.0625 (default: 1)")
+	private double scale = 1;
+
+	@Option(names = {"--offset" }, description = "add this value after --scale when converting, e.g. -128 (default: 0)")
+	private double offset = 0;
+
+	@Option(names = {"--contrast" }, description = "instead of --scale and --offset, map this range of source values to [0, max value] of integer output types or [0, 1] of floating point output types, like the contrast range of n5-view, e.g. 0,4095")
+	private String contrastString = null;
+
+	@Option(names = {"-c", "--compression" }, description = "override compression type of input N5 datasets, e.g. gzip (HDF5 inputs are copied without compression by default, in this case this option sets the output compression), or auto to pick the best compression per dataset by benchmarking sample blocks, repeat once per output container for different compressions")
+	private List<String> compressionStrings = null;
 
 	@Option(names = {"-p", "--compressionParameter" }, description = "specify a compression parameter, e.g. 5 as the compression level for gzip or 1024 as the block size for bzip2")
-	private int compressionParameter = -1;
+	private List<Integer> compressionParameters = null;
+
+	@Option(names = {"--autoSamples" }, description = "number of blocks per dataset to benchmark for -c auto, e.g. 16 (default: 8)")
+	private int autoSamples = 8;
+
+	@Option(names = {"--autoObjective" }, description = "what -c auto optimizes for: size, read (transfer and decode time), or write (encode and transfer time) (default: size)")
+	private String autoObjective = "size";
+
+	@Option(names = {"--autoBandwidth" }, description = "storage bandwidth in MB/s assumed by -c auto for the read and write objectives, e.g. 1000 (default: 200)")
+	private double autoBandwidth = 200;
+
+	@Option(names = {"-t", "--threads" }, description = "number of threads shared by all datasets, e.g. 32 (default: number of available processors)")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Option(names = {"--ioThreads" }, description = "number of block reads and writes in flight, separate from the -t threads that decode and encode blocks, e.g. 256 for cloud storage or NFS (default: 0, reads and writes run on the -t threads)")
+	private int numIoThreads = 0;
+
+	@Option(names = {"--virtualThreads" }, description = "run block reads and writes on virtual threads (Java 21 or later), at most --ioThreads at a time (default: 256)")
+	private boolean virtualThreads = false;
+
+	@Option(names = {"--order" }, description = "order in which blocks are scheduled: raster, morton (Z-order), or hilbert, the latter two keep neighboring blocks close in time for better cache locality (default: raster)")
+	private String orderString = "raster";
+
+	@Option(names = {"--maxMemory" }, description = "limit the memory used for blocks in flight, producers wait when the budget is used up, e.g. 8g (default: no limit)")
+	private String maxMemoryString = null;
+
+	@Option(names = {"-e", "--skipEmpty" }, description = "do not write blocks that are missing in the source or contain only 0, and report how many were skipped")
+	private boolean skipEmpty = false;
+
+	@Option(names = {"--pyramid" }, description = "write each dataset as a multiscale group s0..sN with up to N additional scale levels, each downsampled by 2 in all dimensions, e.g. 4")
+	private int numScales = 0;
+
+	@Option(names = {"--pyramidMode" }, description = "downsampling method for --pyramid: mean, mode, or auto (default, mode for 32 and 64 bit integers that are typically labels, mean otherwise)")
+	private String pyramidMode = "auto";
+
+	@Option(names = {"--incremental" }, description = "only write blocks that differ from an existing output and delete blocks that no longer exist in the source, blocks are compared by modification time on file systems")
+	private boolean incremental = false;
+
+	@Option(names = {"--compareContent" }, description = "with --incremental, compare the content of blocks that cannot be skipped by modification time with the existing output and do not rewrite them if they are equal")
+	private boolean compareContent = false;
+
+	@Option(names = {"--dedup" }, description = "for N5 outputs on the file system, store identical blocks once and hard link repeats, e.g. for padding or saturated regions, and report the dedup ratio")
+	private boolean dedup = false;
+
+	@Option(names = {"--checksums" }, description = "record a 64 bit xxHash of every written block in " + BlockChecksums.CHECKSUM_GROUP + " in N5 outputs, to check the output with n5-verify and to skip unchanged blocks with --incremental --compareContent without reading them")
+	private boolean checksums = false;
+
+	@Option(names = {"--shardSize" }, description = "write sharded Zarr v3 arrays to the file system, shards of this size (a multiple of the block size) contain many blocks in one file, e.g. 512,512,512")
+	private String shardSizeString = null;
+
+	@Option(names = {"--resume" }, description = "resume an interrupted copy, finished blocks are recorded in " + BlockManifest.MANIFEST_GROUP + " in the output container and skipped on restart")
+	private boolean resume = false;
+
+	@Option(names = {"--progress" }, description = "interval in seconds between throughput and ETA reports on stderr, 0 to only report when done, e.g. 60 (default: 10)")
+	private double progressInterval = 10;
+
+	@Option(names = {"--progressJson" }, description = "append throughput reports as JSON lines to this file, e.g. copy-progress.jsonl")
+	private String progressJsonPath = null;
 
+	protected ProgressReporter progress;
+	protected MemoryBudget budget;
+	protected int[] shardSize;
+	protected ZarrShardWriter shardWriter;
+	protected long[] cropMin;
+	protected long[] cropMax;
+	protected DataType dataType;
+	protected double[] contrast;
+	protected int[] axes;
+	protected BlockOrder order;
+
+	/* attributes with one value per axis that are permuted with --axes */
+	protected static final Set<String> AXIS_ATTRIBUTES = new HashSet<>(Arrays.asList("resolution", "offset", "downsamplingFactors"));
+
+	/* minimal interval between manifest checkpoints in ms */
+	protected long checkpointInterval = 30000;
 
 	protected static final int[] parseCSIntArray(final String csv) {
 
@@ -195,6 +373,89 @@ public class Copy implements Callable<Void> {
 		return array;
 	}
 
+	protected static final long[] parseCSLongArray(final String csv) {
+
+		final String[] stringValues = csv.split(",\\s*");
+		final long[] array = new long[stringValues.length];
+		try {
+			for (int i = 0; i < array.length; ++i)
+				array[i] = Long.parseLong(stringValues[i]);
+		} catch (final NumberFormatException e) {
+			e.printStackTrace(System.err);
+			return null;
+		}
+		return array;
+	}
+
+	protected static final double[] parseCSDoubleArray(final String csv) {
+
+		final String[] stringValues = csv.split(",\\s*");
+		final double[] array = new double[stringValues.length];
+		try {
+			for (int i = 0; i < array.length; ++i)
+				array[i] = Double.parseDouble(stringValues[i]);
+		} catch (final NumberFormatException e) {
+			e.printStackTrace(System.err);
+			return null;
+		}
+		return array;
+	}
+
+	/**
+	 * The value of a repeated option for output container i, the last value
+	 * applies to all following containers.
+	 *
+	 * @param values may be null
+	 * @param i
+	 * @param defaultValue if there is no value
+	 * @return
+	 */
+	protected static <T> T option(final List<T> values, final int i, final T defaultValue) {
+
+		if (values == null || values.isEmpty())
+			return defaultValue;
+		else
+			return values.get(Math.min(i, values.size() - 1));
+	}
+
+	/**
+	 * @param compressionString
+	 * @param compressionParameter
+	 * @return the compression or null to keep the compression of the input
+	 */
+	protected static Compression parseCompression(final String compressionString, final int compressionParameter) {
+
+		switch (compressionString.toLowerCase()) {
+		case "raw":
+			return new RawCompression();
+		case "bzip2":
+			return compressionParameter > 0 ? new Bzip2Compression(compressionParameter) : new Bzip2Compression();
+		case "lz4":
+			return compressionParameter > 0 ? new Lz4Compression(compressionParameter) : new Lz4Compression();
+		case "xz":
+			return compressionParameter >= 0 ? new XzCompression(compressionParameter) : new XzCompression();
+		case "gzip":
+			return compressionParameter > 0 ? new GzipCompression(compressionParameter) : new GzipCompression();
+		case "zip":
+			return compressionParameter > 0 ? new GzipCompression(compressionParameter, true) : new GzipCompression(-1, true);
+		case "blosc":
+			return new BloscCompression("lz4", compressionParameter >= 0 ? compressionParameter : 5, BloscCompression.SHUFFLE, 0, 1);
+		case "jpeg":
+			return compressionParameter > 0 ? new JPEGCompression(compressionParameter) : new JPEGCompression();
+		default:
+			return null;
+		}
+	}
+
+	protected static N5Factory n5Factory(final int[] blockSize) {
+
+		return new N5Factory()
+				.hdf5DefaultBlockSize(blockSize)
+				.zarrDimensionSeparator(".")
+				.zarrMapN5Attributes(false)
+				.zarrMergeAttributes(false);
+	}
+
 	public static final void main(final String... args) {
 
 		System.exit(new CommandLine(new Copy()).execute(args));
@@ -224,55 +485,1053 @@ public class Copy implements Callable<Void> {
 		}
 	}
 
-	protected void reorderIfNecessary(final double[] array) {
+	protected <T extends NativeType<T>> void copyDataset(final String datasetName) throws InterruptedException, ExecutionException {
+
+		System.out.println(datasetName);
+
+		final DatasetAttributes datasetAttributes = n5Reader.getDatasetAttributes(datasetName);
+		if (axes != null && axes.length != datasetAttributes.getNumDimensions())
+			throw new IllegalArgumentException("--axes needs " + datasetAttributes.getNumDimensions() + " dimensions for " + datasetName);
+
+		final Interval crop = crop(datasetName, datasetAttributes);
+		final TypeConverter converter = converter(datasetAttributes.getDataType());
+
+		if (shardWriter != null) {
+			copyDatasetSharded(outputs.get(0), datasetName, datasetAttributes, crop, converter);
+			return;
+		}
+
+		final ArrayList<OutputDataset> outputDatasets = new ArrayList<>();
+		for (final Output output : outputs) {
+			if (outputs.size() > 1)
+				System.out.println("  -> " + output.containerPath);
+			final OutputDataset outputDataset = prepareDataset(output, datasetName, datasetAttributes, crop, converter);
+			if (outputDataset != null)
+				outputDatasets.add(outputDataset);
+		}
+		if (outputDatasets.isEmpty())
+			return;
+
+		final CompletableFuture<Void> blocksFuture;
+		if (outputDatasets.size() == 1 && outputDatasets.get(0).isPassthrough()) {
+			System.out.println("  copying encoded blocks");
+			blocksFuture = outputDatasets.get(0).copyEncodedBlocks();
+		} else {
+			if (axes != null)
+				System.out.println("  transposing axes " + Arrays.toString(axes));
+			if (crop != null)
+				System.out.println("  cropping " + Arrays.toString(Intervals.minAsLongArray(crop)) + " - " + Arrays.toString(Intervals.maxAsLongArray(crop)));
 
-		if ((n5Reader instanceof N5HDF5Reader) != (n5Writer instanceof N5HDF5Writer))
-			reorder(array);
+			/* one sweep over the source for all outputs, every source block is read and decoded once */
+			final ArrayList<DatasetAttributes> targetAttributes = new ArrayList<>();
+			for (final OutputDataset outputDataset : outputDatasets)
+				targetAttributes.add(sourceTypeAttributes(outputDataset.outputAttributes, datasetAttributes.getDataType()));
+			final Rechunker rechunker = new Rechunker(
+					n5Reader,
+					datasetName,
+					datasetAttributes,
+					targetAttributes,
+					outputOffset(crop),
+					axes,
+					exec,
+					progress,
+					budget);
+			rechunker.setOrder(order);
+			rechunker.setIoExecutor(io);
+			rechunker.setMaxColumns(numThreads);
+
+			final ArrayList<Rechunker.Target> targets = new ArrayList<>();
+			for (int o = 0; o < outputDatasets.size(); ++o) {
+				final OutputDataset outputDataset = outputDatasets.get(o);
+				/* columns that complete the parent blocks of all scale levels */
+				if (outputDataset.isPyramid)
+					rechunker.setPyramid(o, outputDataset.levels.size() - 1, outputDataset.outputAttributes.getDataType());
+				targets.add(outputDataset.target(rechunker, o));
+			}
+			blocksFuture = rechunker.copy(targets);
+		}
+
+		final ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+		boolean isHDF5 = false;
+		for (final OutputDataset outputDataset : outputDatasets) {
+			futures.add(outputDataset.complete(blocksFuture));
+			isHDF5 |= outputDataset.output.n5Writer instanceof N5HDF5Writer;
+		}
+		final CompletableFuture<Void> future = CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+
+		/* HDF5 is not thread safe, finish this dataset before creating the next */
+		if (isHDF5)
+			future.get();
+		else
+			datasetFutures.add(future);
 	}
 
-	protected void reorderIfNecessary(final long[] array) {
+	/**
+	 * Create a dataset (or the scale levels of a pyramid) in an output
+	 * container and set up resuming and incremental copies.
+	 *
+	 * @param output
+	 * @param datasetName
+	 * @param datasetAttributes
+	 * @param crop sub-volume to copy, may be null
+	 * @param converter may be null
+	 * @return the prepared dataset or null if a resumed copy is already complete
+	 */
+	protected OutputDataset prepareDataset(
+			final Output output,
+			final String datasetName,
+			final DatasetAttributes datasetAttributes,
+			final Interval crop,
+			final TypeConverter converter) {
+
+		final N5Writer n5Writer = output.n5Writer;
+
+		final Compression outputCompression;
+		if (output.autoCompression) {
+			if ((resume || incremental) && numScales == 0 && n5Writer.datasetExists(datasetName)) {
+				/* blocks of a resumed copy must use the compression of the existing output */
+				outputCompression = n5Writer.getDatasetAttributes(datasetName).getCompression();
+				System.out.println("  resuming with compression " + outputCompression.getType());
+			} else
+				outputCompression = selectCompression(output, datasetName, datasetAttributes, converter);
+		} else
+			outputCompression = output.compression == null ? datasetAttributes.getCompression() : output.compression;
+
+		final DatasetAttributes outputAttributes = new DatasetAttributes(
+				outputDimensions(datasetAttributes, crop),
+				outputBlockSize(output, datasetAttributes),
+				converter == null ? datasetAttributes.getDataType() : converter.getTargetType(),
+				outputCompression);
+
+		/* with a pyramid, the dataset becomes a group of scale levels s0..sN */
+		final List<DatasetAttributes> levels = pyramidLevels(outputAttributes);
+		final boolean isPyramid = levels.size() > 1;
+		final String outputName = isPyramid ? datasetName + "/s0" : datasetName;
+
+		/* incremental copies compare blocks with an existing output of the same layout */
+		final boolean isIncremental = incremental && !isPyramid && !(n5Writer instanceof N5HDF5Writer);
+		if (incremental && !isIncremental)
+			System.out.println("  --incremental is not supported with --pyramid or HDF5 outputs, copying all blocks");
+		if (isIncremental && n5Writer.datasetExists(outputName) && !equalLayout(n5Writer.getDatasetAttributes(outputName), outputAttributes)) {
+			System.out.println("  output layout changed, replacing the output");
+			n5Writer.remove(outputName);
+		}
+		final BlockDelta delta =
+				isIncremental && BlockDelta.supports(n5Reader, n5Writer) ?
+						new BlockDelta(
+								(GsonKeyValueN5Reader)n5Reader,
+								datasetName,
+								(GsonKeyValueN5Reader)n5Writer,
+								outputName,
+								outputAttributes,
+								isPassthrough(output, datasetAttributes, outputAttributes, converter)) :
+						null;
+		if (isIncremental && delta == null && !compareContent)
+			System.out.println("  modification times are not available, copying all blocks (see --compareContent)");
+
+		final BlockManifest manifest;
+		if (resume && isPyramid) {
+			System.out.println("  --resume is not supported with --pyramid, copying all blocks");
+			manifest = null;
+		} else if (resume && isIncremental) {
+			System.out.println("  --resume is not needed with --incremental, unchanged blocks are skipped");
+			manifest = null;
+		} else if (resume) {
+			manifest = BlockManifest.open(n5Writer, outputName, outputAttributes, checkpointInterval);
+			if (manifest.isComplete()) {
+				System.out.println("  already complete, skipping blocks");
+				copyAttributes(output, datasetName);
+				setCropOffset(output, datasetName, crop);
+				return null;
+			}
+			if (!manifest.isNew())
+				System.out.println("  resuming, " + manifest.countDone() + " of " + manifest.getNumBlocks() + " blocks done");
+		} else
+			manifest = null;
+
+		/* keep recorded checksums only for blocks that are not copied again */
+		final BlockChecksums blockChecksums;
+		if (checksums && (isPyramid || !(n5Writer instanceof N5KeyValueWriter))) {
+			System.out.println("  --checksums is only supported for N5 outputs without --pyramid, not recording checksums");
+			blockChecksums = null;
+		} else if (checksums)
+			blockChecksums = BlockChecksums.open(
+					n5Writer,
+					outputName,
+					outputAttributes,
+					isIncremental || (manifest != null && !manifest.isNew()),
+					checkpointInterval);
+		else
+			blockChecksums = null;
+
+		progress.addTotalBlocks(manifest == null ? new BlockGrid(outputAttributes).getNumBlocks() : manifest.getNumBlocks() - manifest.countDone());
+
+		/* stale blocks of an existing output have to be removed when skipping or mirroring */
+		final boolean deleteSkipped = (skipEmpty || isIncremental) && !(n5Writer instanceof N5HDF5Writer) && n5Writer.datasetExists(outputName);
 
-		if ((n5Reader instanceof N5HDF5Reader) != (n5Writer instanceof N5HDF5Writer))
-			reorder(array);
+		if (manifest == null || manifest.isNew()) {
+			for (int s = 0; s < levels.size(); ++s) {
+				final String levelName = isPyramid ? datasetName + "/s" + s : datasetName;
+				n5Writer.createDataset(levelName, levels.get(s));
+				if (isPyramid) {
+					final long[] downsamplingFactors = new long[outputAttributes.getNumDimensions()];
+					Arrays.fill(downsamplingFactors, 1L << s);
+					n5Writer.setAttribute(levelName, "downsamplingFactors", downsamplingFactors);
+				}
+			}
+		}
+
+		copyAttributes(output, datasetName);
+		setCropOffset(output, datasetName, crop);
+
+		return new OutputDataset(
+				output,
+				datasetName,
+				outputName,
+				datasetAttributes,
+				outputAttributes,
+				levels,
+				isIncremental,
+				deleteSkipped,
+				delta,
+				manifest,
+				blockChecksums,
+				converter);
 	}
 
-	protected <T extends NativeType<T>> void copyDataset(final String datasetName) throws InterruptedException, ExecutionException {
+	/**
+	 * A dataset in one output container, prepared by
+	 * {@link Copy#prepareDataset}, and the blocks that were skipped or
+	 * unchanged while copying it.
+	 */
+	protected class OutputDataset {
 
-		System.out.println(datasetName);
+		protected final Output output;
+		protected final String datasetName;
+		protected final String outputName;
+		protected final DatasetAttributes datasetAttributes;
+		protected final DatasetAttributes outputAttributes;
+		protected final List<DatasetAttributes> levels;
+		protected final boolean isPyramid;
+		protected final boolean isIncremental;
+		protected final boolean isContentCompared;
+		protected final boolean deleteSkipped;
+		protected final BlockDelta delta;
+		protected final BlockManifest manifest;
+		protected final BlockChecksums checksums;
+		protected final TypeConverter converter;
+		protected final AtomicLong numSkipped = new AtomicLong();
+		protected final AtomicLong numUnchanged = new AtomicLong();
 
-		final DatasetAttributes datasetAttributes = n5Reader.getDatasetAttributes(datasetName);
+		protected OutputDataset(
+				final Output output,
+				final String datasetName,
+				final String outputName,
+				final DatasetAttributes datasetAttributes,
+				final DatasetAttributes outputAttributes,
+				final List<DatasetAttributes> levels,
+				final boolean isIncremental,
+				final boolean deleteSkipped,
+				final BlockDelta delta,
+				final BlockManifest manifest,
+				final BlockChecksums checksums,
+				final TypeConverter converter) {
+
+			this.output = output;
+			this.datasetName = datasetName;
+			this.outputName = outputName;
+			this.datasetAttributes = datasetAttributes;
+			this.outputAttributes = outputAttributes;
+			this.levels = levels;
+			this.isIncremental = isIncremental;
+			this.deleteSkipped = deleteSkipped;
+			this.delta = delta;
+			this.manifest = manifest;
+			this.checksums = checksums;
+			this.converter = converter;
+			isPyramid = levels.size() > 1;
+			isContentCompared = isIncremental && compareContent;
+		}
+
+		protected boolean isPassthrough() {
+
+			return !isPyramid && Copy.this.isPassthrough(output, datasetAttributes, outputAttributes, converter);
+		}
+
+		/**
+		 * Copy the encoded blocks of the source as they are.
+		 *
+		 * @return a future that completes when all blocks are copied
+		 * @throws InterruptedException
+		 */
+		protected CompletableFuture<Void> copyEncodedBlocks() throws InterruptedException {
+
+			final N5Writer n5Writer = output.n5Writer;
+			final GsonKeyValueN5Reader kvReader = (GsonKeyValueN5Reader)n5Reader;
+			final BlockGrid grid = new BlockGrid(outputAttributes);
+			final int bytesPerElement = DataBlocks.bytesPerElement(outputAttributes.getDataType());
+			return copyBlocks(
+					grid,
+					manifest,
+					bytesPerElement,
+					gridPosition -> {
+						if (delta != null && delta.isUnchanged(gridPosition, Collections.singletonList(gridPosition))) {
+							numUnchanged.incrementAndGet();
+							progress.addBlocks(1);
+							return;
+						}
+						long t = progress.start();
+						final byte[] bytes = RawBlocks.read(kvReader, datasetName, gridPosition);
+						progress.stop(Phase.READ, t);
+						boolean skip = bytes == null;
+						if (!skip && skipEmpty) {
+							t = progress.start();
+							skip = DataBlocks.isEmpty(RawBlocks.decode(bytes, datasetAttributes, gridPosition).getData());
+							progress.stop(Phase.DECODE, t);
+						}
+						if (skip) {
+							numSkipped.incrementAndGet();
+							if (deleteSkipped)
+								n5Writer.deleteBlock(outputName, gridPosition);
+							if (checksums != null)
+								checksums.set(gridPosition, BlockChecksums.MISSING);
+						} else if (isContentCompared && hasEncodedContent(gridPosition, bytes)) {
+							numUnchanged.incrementAndGet();
+							progress.addBytesRead(bytes.length);
+						} else {
+							t = progress.start();
+							final boolean isWritten = writeEncoded(output, outputName, gridPosition, bytes, checksums);
+							progress.stop(Phase.WRITE, t);
+							progress.addBytesRead(bytes.length);
+							if (isWritten)
+								progress.addBytesWritten(bytes.length);
+							progress.addBytesUncompressed((long)DataBlock.getNumElements(grid.blockSize(gridPosition)) * bytesPerElement);
+						}
+						if (delta != null)
+							delta.markWritten(gridPosition);
+						progress.addBlocks(1);
+					});
+		}
+
+		/**
+		 * Whether an encoded block equals the block in the output.  Blocks
+		 * with a recorded checksum are compared by checksum without reading
+		 * them.
+		 *
+		 * @param gridPosition
+		 * @param bytes
+		 * @return
+		 */
+		protected boolean hasEncodedContent(final long[] gridPosition, final byte[] bytes) {
+
+			final long checksum = checksums == null ? BlockChecksums.NOT_RECORDED : checksums.get(gridPosition);
+			if (checksum != BlockChecksums.NOT_RECORDED)
+				return BlockChecksums.checksum(bytes) == checksum;
+
+			final long t = progress.start();
+			final byte[] existing = RawBlocks.read((GsonKeyValueN5Reader)output.n5Writer, outputName, gridPosition);
+			progress.stop(Phase.READ, t);
+			if (!Arrays.equals(bytes, existing))
+				return false;
+			if (checksums != null)
+				checksums.set(gridPosition, BlockChecksums.checksum(bytes));
+			return true;
+		}
+
+		/**
+		 * The {@link Rechunker} target that writes the blocks of output grid
+		 * o, converted and downsampled into the scale levels of a pyramid.
+		 *
+		 * @param rechunker
+		 * @param o
+		 * @return
+		 */
+		protected Rechunker.Target target(final Rechunker rechunker, final int o) {
+
+			if (!Arrays.equals(datasetAttributes.getBlockSize(), outputAttributes.getBlockSize()))
+				System.out.println("  " + label() + "re-chunking " + Arrays.toString(datasetAttributes.getBlockSize()) + " -> " + Arrays.toString(outputAttributes.getBlockSize()));
+
+			/* chain of sinks from the coarsest to the finest level */
+			final N5Writer n5Writer = output.n5Writer;
+			final boolean mode = isPyramidMode(outputAttributes.getDataType());
+			Consumer<DataBlock<?>> sink = null;
+			for (int s = levels.size() - 1; s >= 0; --s) {
+				final String levelName = isPyramid ? datasetName + "/s" + s : datasetName;
+				final DatasetAttributes levelAttributes = levels.get(s);
+				final boolean isFirstLevel = s == 0;
+				final Consumer<DataBlock<?>> write = dataBlock -> {
+					if (skipEmpty && DataBlocks.isEmpty(dataBlock.getData())) {
+						numSkipped.incrementAndGet();
+						if (deleteSkipped)
+							n5Writer.deleteBlock(levelName, dataBlock.getGridPosition());
+						if (checksums != null)
+							checksums.set(dataBlock.getGridPosition(), BlockChecksums.MISSING);
+					} else if (isContentCompared && isFirstLevel && hasContent(output, levelName, levelAttributes, dataBlock, checksums))
+						numUnchanged.incrementAndGet();
+					else
+						writeBlock(output, levelName, levelAttributes, dataBlock, checksums);
+					if (isFirstLevel) {
+						if (delta != null)
+							delta.markWritten(dataBlock.getGridPosition());
+						progress.addBlocks(1);
+					}
+				};
+				if (sink == null)
+					sink = write;
+				else {
+					final PyramidReducer reducer = new PyramidReducer(levelAttributes, levels.get(s + 1), mode, sink);
+					sink = write.andThen(reducer);
+				}
+			}
+			if (isPyramid)
+				System.out.println("  " + label() + "writing " + levels.size() + " scale levels (" + (mode ? "mode" : "mean") + ")");
+
+			/* blocks are assembled in the source type and converted in the worker threads */
+			if (converter != null) {
+				System.out.println("  " + label() + "converting " + describe(converter));
+				sink = converted(converter, sink);
+			}
+
+			final Predicate<long[]> unchanged = delta == null ? null : gridPosition -> {
+				if (delta.isUnchanged(gridPosition, rechunker.sourcePositions(o, gridPosition))) {
+					numUnchanged.incrementAndGet();
+					progress.addBlocks(1);
+					return true;
+				} else
+					return false;
+			};
+			return new Rechunker.Target(manifest, unchanged, sink);
+		}
+
+		/**
+		 * Complete the manifest and checksums and report skipped and unchanged blocks when
+		 * all blocks are copied.
+		 *
+		 * @param blocksFuture
+		 * @return
+		 */
+		protected CompletableFuture<Void> complete(final CompletableFuture<Void> blocksFuture) {
+
+			CompletableFuture<Void> future = completeChecksums(completeManifest(blocksFuture, manifest), checksums);
+			if (skipEmpty)
+				future = future.thenRun(() -> System.out.println(label() + datasetName + " : skipped " + numSkipped.get() + " missing or empty blocks"));
+			if (isIncremental)
+				future = future.thenRun(() -> System.out.println(label() + datasetName + " : " + numUnchanged.get() + " unchanged blocks"));
+			return future;
+		}
 
-		final RandomAccessibleInterval<T> dataset;
+		/* the output container if there are several */
+		protected String label() {
+
+			return outputs.size() > 1 ? output.containerPath + " : " : "";
+		}
+	}
+
+	/**
+	 * Copy a dataset into a sharded Zarr v3 array.  Chunks are assembled by
+	 * the {@link Rechunker}, encoded in parallel, and collected into shards
+	 * that are written with a single write each.
+	 *
+	 * @param output
+	 * @param datasetName
+	 * @param datasetAttributes
+	 * @param crop sub-volume to copy, may be null
+	 * @param converter may be null
+	 */
+	protected void copyDatasetSharded(
+			final Output output,
+			final String datasetName,
+			final DatasetAttributes datasetAttributes,
+			final Interval crop,
+			final TypeConverter converter) {
+
+		final int n = datasetAttributes.getNumDimensions();
+		final DatasetAttributes outputAttributes = new DatasetAttributes(
+				outputDimensions(datasetAttributes, crop),
+				outputBlockSize(output, datasetAttributes),
+				converter == null ? datasetAttributes.getDataType() : converter.getTargetType(),
+				new RawCompression());
+		if (shardSize == null || shardSize.length != n)
+			throw new IllegalArgumentException("--shardSize needs " + n + " dimensions for " + datasetName);
+
+		if (numScales > 0 || resume || incremental || output.autoCompression)
+			System.out.println("  --pyramid, --resume, --incremental, and -c auto are not supported for sharded outputs, ignoring them");
+
+		/* Zarr v3 codecs that both sides support */
+		final Compression requested = output.compression == null ? datasetAttributes.getCompression() : output.compression;
+		final int gzipLevel;
+		if (requested instanceof RawCompression)
+			gzipLevel = -1;
+		else {
+			if (!(requested instanceof GzipCompression))
+				System.out.println("  sharded outputs support raw and gzip compression, using gzip");
+			gzipLevel = output.compressionParameter > 0 ? output.compressionParameter : 6;
+		}
+
+		shardWriter.createArray(datasetName, outputAttributes, shardSize, gzipLevel);
+		copyAttributes(output, datasetName);
+		setCropOffset(output, datasetName, crop);
+
+		System.out.println("  writing shards " + Arrays.toString(shardSize) + " of chunks " + Arrays.toString(outputAttributes.getBlockSize()));
+
+		final BlockGrid grid = new BlockGrid(outputAttributes);
+		progress.addTotalBlocks(grid.getNumBlocks());
+		final int bytesPerElement = DataBlocks.bytesPerElement(outputAttributes.getDataType());
+		final ShardAssembler assembler = new ShardAssembler(shardWriter, datasetName, outputAttributes, shardSize, gzipLevel, skipEmpty);
+		Consumer<DataBlock<?>> sink = dataBlock -> {
+			/* encoding, and writing when the shard is complete */
+			final long t = progress.start();
+			assembler.accept(dataBlock);
+			progress.stop(Phase.ENCODE, t);
+			progress.addBytesUncompressed((long)dataBlock.getNumElements() * bytesPerElement);
+			progress.addBlocks(1);
+		};
+		if (converter != null) {
+			System.out.println("  converting " + describe(converter));
+			sink = converted(converter, sink);
+		}
+
+		final Rechunker rechunker = new Rechunker(
+				n5Reader,
+				datasetName,
+				datasetAttributes,
+				sourceTypeAttributes(outputAttributes, datasetAttributes.getDataType()),
+				outputOffset(crop),
+				axes,
+				exec,
+				progress,
+				budget);
+		rechunker.setOrder(order);
+		rechunker.setIoExecutor(io);
+		rechunker.setMaxColumns(numThreads);
+		datasetFutures.add(rechunker.copy(null, sink));
+	}
+
+	/**
+	 * The conversion selected by --type, --scale, --offset, and --contrast.
+	 *
+	 * @param sourceType
+	 * @return the converter or null if values are copied as they are
+	 */
+	protected TypeConverter converter(final DataType sourceType) {
+
+		final DataType targetType = dataType == null ? sourceType : dataType;
+		final TypeConverter converter =
+				contrast == null ?
+						new TypeConverter(sourceType, targetType, scale, offset) :
+						TypeConverter.contrast(sourceType, targetType, contrast[0], contrast[1]);
+		return converter.isIdentity() ? null : converter;
+	}
+
+	protected static String describe(final TypeConverter converter) {
+
+		return
+				converter.getSourceType().toString().toLowerCase() + " -> " +
+				converter.getTargetType().toString().toLowerCase() +
+				(converter.getScale() == 1 && converter.getOffset() == 0 ? "" : " (x * " + converter.getScale() + " + " + converter.getOffset() + ")");
+	}
+
+	protected static Consumer<DataBlock<?>> converted(final TypeConverter converter, final Consumer<DataBlock<?>> sink) {
+
+		return dataBlock -> sink.accept(converter.apply(dataBlock));
+	}
+
+	/**
+	 * Output attributes with the source data type, for blocks that are
+	 * assembled before they are converted.
+	 *
+	 * @param outputAttributes
+	 * @param sourceType
+	 * @return
+	 */
+	protected static DatasetAttributes sourceTypeAttributes(final DatasetAttributes outputAttributes, final DataType sourceType) {
+
+		if (outputAttributes.getDataType() == sourceType)
+			return outputAttributes;
+		else
+			return new DatasetAttributes(
+					outputAttributes.getDimensions(),
+					outputAttributes.getBlockSize(),
+					sourceType,
+					outputAttributes.getCompression());
+	}
+
+	/**
+	 * Dimensions of the output, cropped and permuted.
+	 *
+	 * @param datasetAttributes
+	 * @param crop may be null
+	 * @return
+	 */
+	protected long[] outputDimensions(final DatasetAttributes datasetAttributes, final Interval crop) {
+
+		final long[] dimensions = crop == null ? datasetAttributes.getDimensions() : Intervals.dimensionsAsLongArray(crop);
+		return axes == null ? dimensions : DataBlocks.permute(dimensions, axes);
+	}
+
+	/**
+	 * Block size of the output, -b or the permuted source block size.
+	 *
+	 * @param output
+	 * @param datasetAttributes
+	 * @return
+	 */
+	protected int[] outputBlockSize(final Output output, final DatasetAttributes datasetAttributes) {
+
+		final int[] blockSize = output.blockSize;
+		if (blockSize != null && blockSize.length == datasetAttributes.getNumDimensions())
+			return blockSize;
+		else
+			return axes == null ? datasetAttributes.getBlockSize() : DataBlocks.permute(datasetAttributes.getBlockSize(), axes);
+	}
+
+	/**
+	 * Position of the output origin in the permuted source.
+	 *
+	 * @param crop may be null
+	 * @return
+	 */
+	protected long[] outputOffset(final Interval crop) {
+
+		if (crop == null)
+			return null;
+		final long[] min = Intervals.minAsLongArray(crop);
+		return axes == null ? min : DataBlocks.permute(min, axes);
+	}
+
+	/**
+	 * Permute attributes with one value per axis.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	protected Object permuteAttribute(final String key, final Object value) {
+
+		if (axes == null || !AXIS_ATTRIBUTES.contains(key))
+			return value;
+		else if (value instanceof double[] && ((double[])value).length == axes.length)
+			return DataBlocks.permute((double[])value, axes);
+		else if (value instanceof long[] && ((long[])value).length == axes.length)
+			return DataBlocks.permute((long[])value, axes);
+		else
+			return value;
+	}
+
+	/**
+	 * The sub-volume of a dataset selected by --min and --max.
+	 *
+	 * @param datasetName
+	 * @param datasetAttributes
+	 * @return the sub-volume or null if the whole dataset is copied
+	 */
+	protected Interval crop(final String datasetName, final DatasetAttributes datasetAttributes) {
+
+		if (cropMin == null && cropMax == null)
+			return null;
+
+		final long[] dimensions = datasetAttributes.getDimensions();
+		final int n = dimensions.length;
+		final long[] min = cropMin == null ? new long[n] : cropMin;
+		final long[] max = cropMax == null ? Arrays.stream(dimensions).map(x -> x - 1).toArray() : cropMax;
+		if (min.length != n || max.length != n)
+			throw new IllegalArgumentException("--min and --max need " + n + " dimensions for " + datasetName);
+		for (int d = 0; d < n; ++d)
+			if (min[d] < 0 || max[d] < min[d] || max[d] >= dimensions[d])
+				throw new IllegalArgumentException(
+						"--min " + Arrays.toString(min) + " and --max " + Arrays.toString(max) +
+						" are not inside " + datasetName + " " + Arrays.toString(dimensions));
+
+		return new FinalInterval(min, max);
+	}
+
+	/**
+	 * Add the position of a copied sub-volume to the offset attribute of the
+	 * source (if any), or, with --offsetToOrigin, set an existing offset to 0.
+	 *
+	 * @param output
+	 * @param datasetName
+	 * @param crop may be null
+	 */
+	protected void setCropOffset(final Output output, final String datasetName, final Interval crop) {
+
+		if (crop == null)
+			return;
+
+		double[] sourceOffset;
 		try {
-			dataset = N5Utils.open(n5Reader, datasetName);
-		} catch (final Exception e) {
-			e.printStackTrace(System.err);
+			sourceOffset = n5Reader.getAttribute(datasetName, "offset", double[].class);
+		} catch (final N5Exception e) {
+			sourceOffset = null;
+		}
+		if (offsetToOrigin && sourceOffset == null)
 			return;
+
+		double[] offset = new double[crop.numDimensions()];
+		if (!offsetToOrigin)
+			for (int d = 0; d < offset.length; ++d)
+				offset[d] = (sourceOffset != null && d < sourceOffset.length ? sourceOffset[d] : 0) + crop.min(d);
+		if (axes != null)
+			offset = DataBlocks.permute(offset, axes);
+
+		System.out.println("    offset : " + Arrays.toString(offset));
+		if (shardWriter != null)
+			shardWriter.setAttributes(datasetName, Collections.singletonMap("offset", offset));
+		else
+			output.n5Writer.setAttribute(datasetName, "offset", offset);
+	}
+
+	/**
+	 * Whether blocks written for one set of attributes can be kept for the
+	 * other.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	protected static boolean equalLayout(final DatasetAttributes a, final DatasetAttributes b) {
+
+		return
+				Arrays.equals(a.getDimensions(), b.getDimensions()) &&
+				Arrays.equals(a.getBlockSize(), b.getBlockSize()) &&
+				a.getDataType() == b.getDataType() &&
+				a.getCompression().equals(b.getCompression());
+	}
+
+	/**
+	 * Whether the output already contains a block with the same content.
+	 * Blocks with a recorded checksum are encoded and compared by checksum
+	 * instead of reading and decoding the output block.
+	 *
+	 * @param output
+	 * @param datasetName
+	 * @param outputAttributes
+	 * @param dataBlock
+	 * @param checksums may be null
+	 * @return
+	 */
+	protected boolean hasContent(
+			final Output output,
+			final String datasetName,
+			final DatasetAttributes outputAttributes,
+			final DataBlock<?> dataBlock,
+			final BlockChecksums checksums) {
+
+		final long checksum = checksums == null ? BlockChecksums.NOT_RECORDED : checksums.get(dataBlock.getGridPosition());
+		if (checksum != BlockChecksums.NOT_RECORDED) {
+			final long t = progress.start();
+			final byte[] bytes = RawBlocks.encode(outputAttributes, dataBlock);
+			progress.stop(Phase.ENCODE, t);
+			return BlockChecksums.checksum(bytes) == checksum;
 		}
 
-		if (n5Writer instanceof N5HDF5Writer) {
-			N5Utils.save(
-					dataset,
-					n5Writer,
-					datasetName,
-					blockSize == null || blockSize.length != dataset.numDimensions() ? datasetAttributes.getBlockSize() : blockSize,
-					compression == null ? datasetAttributes.getCompression() : compression);
+		final long t = progress.start();
+		final DataBlock<?> existing = output.n5Writer.readBlock(datasetName, outputAttributes, dataBlock.getGridPosition());
+		progress.stop(Phase.READ, t);
+		return existing != null && Objects.deepEquals(existing.getData(), dataBlock.getData());
+	}
+
+	/**
+	 * Attributes of all scale levels to be written, s0 first.  Levels are
+	 * downsampled by 2 in all dimensions and added until --pyramid levels
+	 * exist or the last level fits into a single block.
+	 *
+	 * @param outputAttributes
+	 * @return
+	 */
+	protected List<DatasetAttributes> pyramidLevels(final DatasetAttributes outputAttributes) {
+
+		final ArrayList<DatasetAttributes> levels = new ArrayList<>();
+		levels.add(outputAttributes);
+		final int[] levelBlockSize = outputAttributes.getBlockSize();
+		for (int s = 1; s <= numScales; ++s) {
+			final long[] dimensions = levels.get(s - 1).getDimensions();
+			boolean fits = true;
+			for (int d = 0; d < dimensions.length; ++d)
+				fits &= dimensions[d] <= levelBlockSize[d];
+			if (fits)
+				break;
+			levels.add(new DatasetAttributes(
+					PyramidReducer.downsampledDimensions(dimensions),
+					levelBlockSize,
+					outputAttributes.getDataType(),
+					outputAttributes.getCompression()));
+		}
+		return levels;
+	}
+
+	protected boolean isPyramidMode(final DataType dataType) {
+
+		switch (pyramidMode.toLowerCase()) {
+		case "mode":
+			return true;
+		case "mean":
+			return false;
+		default:
+			switch (dataType) {
+			case UINT32:
+			case INT32:
+			case UINT64:
+			case INT64:
+				return true;
+			default:
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Write a block and record its checksum.
+	 *
+	 * @param output
+	 * @param datasetName
+	 * @param outputAttributes
+	 * @param dataBlock
+	 * @param checksums may be null, only used for N5 key value stores
+	 */
+	protected void writeBlock(
+			final Output output,
+			final String datasetName,
+			final DatasetAttributes outputAttributes,
+			final DataBlock<?> dataBlock,
+			final BlockChecksums checksums) {
+
+		final N5Writer n5Writer = output.n5Writer;
+
+		progress.addBytesUncompressed((long)dataBlock.getNumElements() * DataBlocks.bytesPerElement(outputAttributes.getDataType()));
+
+		if (n5Writer instanceof N5KeyValueWriter) {
+			/* encode separately to report encoding and writing time, in the CPU threads if writes run in I/O threads */
+			long t = progress.start();
+			final byte[] bytes =
+					io == null ?
+							RawBlocks.encode(outputAttributes, dataBlock) :
+							CompletableFuture.supplyAsync(() -> RawBlocks.encode(outputAttributes, dataBlock), exec).join();
+			progress.stop(Phase.ENCODE, t);
+			t = progress.start();
+			final boolean isWritten = writeEncoded(output, datasetName, dataBlock.getGridPosition(), bytes, checksums);
+			progress.stop(Phase.WRITE, t);
+			if (isWritten)
+				progress.addBytesWritten(bytes.length);
+		} else if (n5Writer instanceof N5HDF5Writer) {
+			/* HDF5 is not thread safe, reading and decoding run in parallel, writes are serialized */
+			synchronized (n5Writer) {
+				final long t = progress.start();
+				n5Writer.writeBlock(datasetName, outputAttributes, dataBlock);
+				progress.stop(Phase.WRITE, t);
+			}
 		} else {
-			final ExecutorService exec = Executors.newFixedThreadPool(numProc);
-			N5Utils.save(
-					dataset,
-					n5Writer,
-					datasetName,
-					blockSize == null || blockSize.length != dataset.numDimensions() ? datasetAttributes.getBlockSize() : blockSize,
-					compression == null ? datasetAttributes.getCompression() : compression,
-					exec);
-			exec.shutdown();
+			final long t = progress.start();
+			n5Writer.writeBlock(datasetName, outputAttributes, dataBlock);
+			progress.stop(Phase.WRITE, t);
 		}
+	}
+
+	/**
+	 * Write an encoded block to an N5 key value store, or link it to an
+	 * identical block with --dedup, and record its checksum.
+	 *
+	 * @param output
+	 * @param datasetName
+	 * @param gridPosition
+	 * @param bytes
+	 * @param checksums may be null
+	 * @return false if the block was linked instead of written
+	 */
+	protected static boolean writeEncoded(
+			final Output output,
+			final String datasetName,
+			final long[] gridPosition,
+			final byte[] bytes,
+			final BlockChecksums checksums) {
+
+		final GsonKeyValueN5Reader kvWriter = (GsonKeyValueN5Reader)output.n5Writer;
+		final boolean isWritten;
+		if (output.dedup == null) {
+			RawBlocks.write(kvWriter, datasetName, gridPosition, bytes);
+			isWritten = true;
+		} else
+			isWritten = !output.dedup.write(kvWriter, datasetName, gridPosition, bytes);
+		if (checksums != null) {
+			checksums.set(gridPosition, BlockChecksums.checksum(bytes));
+			checksums.checkpointIfDue();
+		}
+		return isWritten;
+	}
+
+	/**
+	 * Mark the manifest (if any) complete when all blocks were copied
+	 * successfully, or write a last checkpoint if not.
+	 *
+	 * @param future
+	 * @param manifest may be null
+	 * @return
+	 */
+	protected static CompletableFuture<Void> completeManifest(final CompletableFuture<Void> future, final BlockManifest manifest) {
 
-		copyAttributes(datasetName);
+		if (manifest == null)
+			return future;
+		else
+			return future.whenComplete((r, e) -> {
+				if (e == null)
+					manifest.complete();
+				else
+					manifest.checkpoint();
+			});
 	}
 
-	protected void copyAttributes(final String groupName) {
+	/**
+	 * Mark the checksums (if any) complete when all blocks were copied
+	 * successfully, or write a last checkpoint if not.
+	 *
+	 * @param future
+	 * @param checksums may be null
+	 * @return
+	 */
+	protected static CompletableFuture<Void> completeChecksums(final CompletableFuture<Void> future, final BlockChecksums checksums) {
+
+		if (checksums == null)
+			return future;
+		else
+			return future.whenComplete((r, e) -> {
+				if (e == null)
+					checksums.complete();
+				else
+					checksums.checkpoint();
+			});
+	}
+
+	/**
+	 * Whether the encoded blocks of a dataset can be copied as they are, i.e.
+	 * there is only one output, both containers use the N5 format in a key
+	 * value store, values are not converted, and neither axes, dimensions,
+	 * block size, data type, nor compression are changed.  With several
+	 * outputs, blocks are decoded once for all of them instead.
+	 *
+	 * @param output
+	 * @param datasetAttributes
+	 * @param outputAttributes
+	 * @param converter may be null
+	 * @return
+	 */
+	protected boolean isPassthrough(
+			final Output output,
+			final DatasetAttributes datasetAttributes,
+			final DatasetAttributes outputAttributes,
+			final TypeConverter converter) {
+
+		if (converter != null || outputs.size() > 1 || !RawBlocks.supports(n5Reader, output.n5Writer))
+			return false;
+
+		final boolean sameDimensions = Arrays.equals(outputAttributes.getDimensions(), datasetAttributes.getDimensions());
+		final boolean sameBlockSize = Arrays.equals(outputAttributes.getBlockSize(), datasetAttributes.getBlockSize());
+		final boolean sameCompression = outputAttributes.getCompression().equals(datasetAttributes.getCompression());
+
+		final boolean sameDataType = outputAttributes.getDataType() == datasetAttributes.getDataType();
+
+		return axes == null && sameDimensions && sameBlockSize && sameDataType && sameCompression;
+	}
+
+	/**
+	 * Benchmark the compressions that the output container supports on
+	 * blocks sampled evenly from the source dataset and return the best
+	 * for --autoObjective.  Falls back to the source compression if the
+	 * source has no blocks.
+	 *
+	 * @param output
+	 * @param datasetName
+	 * @param datasetAttributes
+	 * @param converter converts the samples to the output type, may be null
+	 * @return
+	 */
+	protected Compression selectCompression(final Output output, final String datasetName, final DatasetAttributes datasetAttributes, final TypeConverter converter) {
+
+		final BlockGrid grid = new BlockGrid(datasetAttributes);
+		final long numBlocks = grid.getNumBlocks();
+		final long step = Math.max(1, numBlocks / Math.max(1, autoSamples));
+		final ArrayList<DataBlock<?>> samples = new ArrayList<>();
+		for (long i = step / 2; i < numBlocks && samples.size() < autoSamples; i += step) {
+			final DataBlock<?> sample = n5Reader.readBlock(datasetName, datasetAttributes, grid.gridPosition(i));
+			if (sample != null)
+				samples.add(converter == null ? sample : converter.apply(sample));
+		}
+		if (samples.isEmpty()) {
+			System.out.println("  no blocks to benchmark, keeping compression " + datasetAttributes.getCompression().getType());
+			return datasetAttributes.getCompression();
+		}
+
+		final CompressionBenchmark benchmark = new CompressionBenchmark();
+		benchmark.addDefaults();
+		if (output.n5Writer instanceof N5HDF5Writer)
+			benchmark.removeIf(c -> !(c instanceof RawCompression || c instanceof GzipCompression));
+		else if (output.n5Writer instanceof ZarrKeyValueWriter)
+			benchmark.removeIf(c -> c instanceof Lz4Compression || c instanceof XzCompression);
+		final DataType sampleType = converter == null ? datasetAttributes.getDataType() : converter.getTargetType();
+		benchmark.run(
+				samples,
+				sourceTypeAttributes(datasetAttributes, sampleType),
+				DataBlocks.bytesPerElement(sampleType));
+
+		final Objective objective = Objective.valueOf(autoObjective.toUpperCase());
+		final CompressionBenchmark.Result best = benchmark.best(objective, autoBandwidth);
+		System.out.println("  benchmarked " + samples.size() + " blocks, objective " + objective.name().toLowerCase() + ":");
+		benchmark.print(System.out, best, "    ");
+		return best.compression;
+	}
+
+	/**
+	 * Submit {@code copyBlock} for all blocks of the output grid that are not
+	 * yet marked as done in the manifest (if any) to the shared executor (or
+	 * the I/O executor, if any) in --order, and mark them as done.  This is
+	 * used when blocks map 1:1 between source and output.  With a memory
+	 * budget, each task reserves memory for one encoded and one decoded
+	 * block before it is submitted.  If a block needs more than the whole
+	 * budget, tasks reserve all of it and blocks are copied one at a time.
+	 *
+	 * @param grid output block grid
+	 * @param manifest may be null
+	 * @param copyBlock
+	 * @return a future that completes when all blocks are copied
+	 * @throws InterruptedException
+	 */
+	protected CompletableFuture<Void> copyBlocks(
+			final BlockGrid grid,
+			final BlockManifest manifest,
+			final int bytesPerElement,
+			final Consumer<long[]> copyBlock) throws InterruptedException {
+
+		long blockBytes = 2L * bytesPerElement;
+		for (final int s : grid.getBlockSize())
+			blockBytes *= s;
+		if (budget != null && blockBytes > budget.getCapacity())
+			System.out.println("  one block needs " + blockBytes + " bytes, more than --maxMemory, copying one block at a time");
+
+		final long[] indices = order == BlockOrder.RASTER ? null : order.indices(grid);
+		return BlockTasks.runRanges(
+				grid.getNumBlocks(),
+				io == null ? numThreads : io.getConcurrency(),
+				(from, to) -> {
+					final long[] gridPosition = new long[grid.numDimensions()];
+					for (long k = from; k < to; ++k) {
+						final long j = indices == null ? k : indices[(int)k];
+						if (manifest != null && manifest.isDone(j))
+							continue;
+						grid.gridPosition(j, gridPosition);
+						copyBlock.accept(gridPosition);
+						if (manifest != null) {
+							manifest.markDone(j);
+							manifest.checkpointIfDue();
+						}
+					}
+				},
+				io == null ? exec : io,
+				budget,
+				blockBytes);
+	}
+
+	protected void copyAttributes(final Output output, final String groupName) {
+
+		final N5Writer n5Writer = output.n5Writer;
 
 		System.out.println("  attributes:");
 
@@ -286,10 +1545,17 @@ public class Copy implements Callable<Void> {
 			if (datasetAttributeKeys.contains(key)) {
 				System.out.println("    skipping dataset attribute " + key + " : " + clazz);
 			} else {
-				System.out.println("    " + key + " : " + clazz);
-
 				try {
-					n5Writer.setAttribute(groupName, key, n5Reader.getAttribute(groupName, key, clazz));
+					final Object value = permuteAttribute(key, n5Reader.getAttribute(groupName, key, clazz));
+					if (shardWriter != null) {
+						System.out.println("    " + key + " : " + clazz);
+						shardWriter.setAttributes(groupName, Collections.singletonMap(key, value));
+					} else if (incremental && n5Writer.exists(groupName) && Objects.deepEquals(value, n5Writer.getAttribute(groupName, key, clazz)))
+						System.out.println("    " + key + " : " + clazz + " (unchanged)");
+					else {
+						System.out.println("    " + key + " : " + clazz);
+						n5Writer.setAttribute(groupName, key, value);
+					}
 				} catch (final N5Exception e) {
 					e.printStackTrace(System.err);
 				}
@@ -301,11 +1567,20 @@ public class Copy implements Callable<Void> {
 
 		System.out.println(groupName);
 
-		n5Writer.createGroup(groupName);
-		copyAttributes(groupName);
+		for (final Output output : outputs) {
+			if (outputs.size() > 1)
+				System.out.println("  -> " + output.containerPath);
+			if (shardWriter == null)
+				output.n5Writer.createGroup(groupName);
+			else
+				shardWriter.createGroup(groupName);
+			copyAttributes(output, groupName);
+		}
 
 		final String[] subGroupNames = n5Reader.list(groupName);
 		for (final String subGroupName : subGroupNames) {
+			if (groupName.isEmpty() && (("/" + subGroupName).equals(BlockManifest.MANIFEST_GROUP) || ("/" + subGroupName).equals(BlockChecksums.CHECKSUM_GROUP)))
+				continue;
 			if (n5Reader.datasetExists(groupName + "/" + subGroupName))
 				copyDataset(groupName + "/" + subGroupName);
 			else
@@ -314,59 +1589,107 @@ public class Copy implements Callable<Void> {
 	}
 
 	@Override
-	public Void call() throws InterruptedException, ExecutionException {
+	public Void call() throws InterruptedException, ExecutionException, IOException {
 
-		blockSize = blockSizeString == null ? null : parseCSIntArray(blockSizeString);
+		cropMin = cropMinString == null ? null : parseCSLongArray(cropMinString);
+		cropMax = cropMaxString == null ? null : parseCSLongArray(cropMaxString);
+		if (axesString != null) {
+			axes = parseCSIntArray(axesString);
+			if (axes == null)
+				throw new IllegalArgumentException("--axes needs a permutation of 0,1,..., e.g. 2,1,0");
+			final int[] sorted = axes.clone();
+			Arrays.sort(sorted);
+			for (int d = 0; d < sorted.length; ++d)
+				if (sorted[d] != d)
+					throw new IllegalArgumentException("--axes needs a permutation of 0,1,..., e.g. 2,1,0");
+			/* no transposition for the identity */
+			if (Arrays.equals(axes, sorted))
+				axes = null;
+		}
+		dataType = typeString == null ? null : DataType.fromString(typeString.toLowerCase());
+		if (typeString != null && (dataType == null || dataType == DataType.OBJECT))
+			throw new IllegalArgumentException("Unsupported data type " + typeString);
+		if (contrastString != null) {
+			contrast = parseCSDoubleArray(contrastString);
+			if (contrast == null || contrast.length != 2 || !(contrast[1] > contrast[0]))
+				throw new IllegalArgumentException("--contrast needs a range min,max with min < max, e.g. 0,255");
+		}
 
-		if (compressionString == null)
-			compression = null;
-		else {
-			switch (compressionString.toLowerCase()) {
-			case "raw":
-				compression = new RawCompression();
-				break;
-			case "bzip2":
-				compression = compressionParameter > 0 ? new Bzip2Compression(compressionParameter) : new Bzip2Compression();
-				break;
-			case "lz4":
-				compression = compressionParameter > 0 ? new Lz4Compression(compressionParameter) : new Lz4Compression();
-				break;
-			case "xz":
-				compression = compressionParameter >= 0 ? new XzCompression(compressionParameter) : new XzCompression();
-				break;
-			case "gzip":
-				compression = compressionParameter > 0 ? new GzipCompression(compressionParameter) : new GzipCompression();
-				break;
-			case "zip":
-				compression = compressionParameter > 0 ? new GzipCompression(compressionParameter, true) : new GzipCompression(-1, true);
-				break;
-			case "jpeg":
-				compression = compressionParameter > 0 ? new JPEGCompression(compressionParameter) : new JPEGCompression();
-				break;
-			default:
-				compression = null;
+		if (shardSizeString != null && outputContainerPaths.size() > 1)
+			throw new IllegalArgumentException("--shardSize supports only one output container.");
+		if (shardSizeString != null && checksums)
+			throw new IllegalArgumentException("--checksums is not supported for sharded outputs.");
+
+		for (int i = 0; i < outputContainerPaths.size(); ++i) {
+			final String outputContainerPath = outputContainerPaths.get(i);
+			final String blockSizeString = option(blockSizeStrings, i, null);
+			final String compressionString = option(compressionStrings, i, "");
+			final int compressionParameter = option(compressionParameters, i, -1);
+			final int[] blockSize = blockSizeString == null ? null : parseCSIntArray(blockSizeString);
+			final boolean autoCompression = "auto".equalsIgnoreCase(compressionString);
+			final Compression compression = autoCompression ? null : parseCompression(compressionString, compressionParameter);
+
+			if (i == 0)
+				n5Reader = n5Factory(blockSize).openReader(inputContainerPath);
+
+			final N5Writer n5Writer;
+			if (shardSizeString == null)
+				n5Writer = n5Factory(blockSize).openWriter(outputContainerPath);
+			else {
+				if (outputContainerPath.contains("://") && !outputContainerPath.startsWith("file://"))
+					throw new IllegalArgumentException("Sharded outputs can only be written to the file system.");
+				shardSize = parseCSIntArray(shardSizeString);
+				shardWriter = new ZarrShardWriter(outputContainerPath.replaceFirst("^file://", ""));
+				n5Writer = null;
 			}
+
+			/* linked blocks share their modification time which --incremental sets per block */
+			final boolean isDeduplicated = dedup && !incremental && n5Writer != null && BlockDeduplicator.supports(n5Writer);
+			if (dedup && !isDeduplicated)
+				System.out.println("--dedup is only supported for N5 outputs on the file system without --incremental, not deduplicating " + outputContainerPath);
+			outputs.add(new Output(
+					outputContainerPath,
+					n5Writer,
+					blockSize,
+					compression,
+					autoCompression,
+					compressionParameter,
+					isDeduplicated ? new BlockDeduplicator() : null));
 		}
 
-		final N5Factory n5Factory = new N5Factory()
-				.hdf5DefaultBlockSize(blockSize)
-				.zarrDimensionSeparator(".")
-				.zarrMapN5Attributes(false)
-				.zarrMergeAttributes(false);
+		order = BlockOrder.valueOf(orderString.toUpperCase());
+		budget = maxMemoryString == null ? null : new MemoryBudget(MemoryBudget.parse(maxMemoryString));
+		exec = new ForkJoinPool(numThreads);
+		if (numIoThreads > 0 || virtualThreads) {
+			io = new IoExecutor(numIoThreads > 0 ? numIoThreads : 256, virtualThreads);
+			if (virtualThreads && !io.isVirtual())
+				System.out.println("Virtual threads are not available before Java 21, using " + io.getConcurrency() + " I/O threads.");
+		}
+		progress = new ProgressReporter("n5-copy", progressInterval, progressJsonPath);
 
-		n5Reader = n5Factory.openReader(inputContainerPath);
-		n5Writer = n5Factory.openWriter(outputContainerPath);
+		try {
+			if (groupNames == null)
+				copyGroup("");
+			else {
+				for (final String groupName : groupNames)
+					if (n5Reader.exists(groupName)) {
+						if (n5Reader.datasetExists(groupName))
+							copyDataset(groupName);
+						else
+							copyGroup(groupName);
+					}
+			}
 
-		if (groupNames == null)
-			copyGroup("");
-		else {
-			for (final String groupName : groupNames)
-				if (n5Reader.exists(groupName)) {
-					if (n5Reader.datasetExists(groupName))
-						copyDataset(groupName);
-					else
-						copyGroup(groupName);
-				}
+			for (final CompletableFuture<Void> future : datasetFutures)
+				future.get();
+			for (final Output output : outputs)
+				if (output.dedup != null)
+					System.out.println(output.containerPath + " : " + output.dedup.report());
+		} finally {
+			exec.shutdown();
+			if (io != null)
+				io.shutdown();
+			progress.close();
 		}
 
 		return null;
@@ -119,10 +119,17 @@
  */
 package org.janelia.saalfeldlab;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
+import org.janelia.saalfeldlab.block.BlockChecksums;
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.BlockOrder;
+import org.janelia.saalfeldlab.block.DataBlocks;
+import org.janelia.saalfeldlab.block.ProgressReporter;
+import org.janelia.saalfeldlab.block.ProgressReporter.Phase;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Exception;
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -144,6 +151,7 @@ import picocli.CommandLine.Option;
 public class Equals implements Callable<Boolean> {
 
 	protected N5Reader n5Reader1, n5Reader2;
+	protected ProgressReporter progress = new ProgressReporter();
 
 	@Option(names = {"-i1", "--inputContainer1" }, required = true, description = "container path, e.g. /nrs/flyem/data/tmp/Z0115-22.h5")
 	private String inputContainerPath1 = null;
@@ -157,6 +165,18 @@ public class Equals implements Callable<Boolean> {
 	@Option(names = {"-d2", "--dataset2" }, required = true, description = "dataset name, e.g. /volumes/raw")
 	private String datasetName2 = null;
 
+	@Option(names = {"--order" }, description = "order in which block pairs are compared: raster, morton (Z-order), or hilbert, the latter two read neighboring blocks of both datasets close in time, which helps storage that caches or prefetches nearby blocks (default: raster)")
+	private String orderString = "raster";
+
+	@Option(names = {"--checksums" }, description = "skip blocks with equal checksums if both datasets were written by n5-copy --checksums with the same block size and compression, other blocks are compared by content")
+	private boolean useChecksums = false;
+
+	@Option(names = {"--progress" }, description = "print compared blocks, throughput, and ETA to stderr every this many seconds, 0 for a single summary at the end, e.g. 60 (default: 10)")
+	private double progressInterval = 10;
+
+	@Option(names = {"--progressJson" }, description = "also append every progress report of the comparison as a JSON line to this file, e.g. equals-progress.jsonl")
+	private String progressJsonPath = null;
+
 	protected <T extends Type<T>> Boolean datasetEquals() {
 
 		try {
@@ -170,10 +190,51 @@ public class Equals implements Callable<Boolean> {
 				final RandomAccessibleInterval<T> imgA = (RandomAccessibleInterval<T>)N5Utils.open(n5Reader1, datasetName1);
 				final RandomAccessibleInterval<T> imgB = (RandomAccessibleInterval<T>)N5Utils.open(n5Reader2, datasetName2);
 
-				final Cursor<T> cA = Views.flatIterable(imgA).cursor();
-				final Cursor<T> cB = Views.flatIterable(imgB).cursor();
-				while (cA.hasNext()) {
-					equals &= cA.next().valueEquals(cB.next());
+				/* compare block by block of the first dataset to report progress */
+				final BlockGrid grid = new BlockGrid(a);
+				final int bytesPerElement = DataBlocks.bytesPerElement(a.getDataType());
+				final long[] gridPosition = new long[grid.numDimensions()];
+				final long[] min = new long[grid.numDimensions()];
+				final long[] max = new long[grid.numDimensions()];
+				progress.addTotalBlocks(grid.getNumBlocks());
+				final BlockOrder order = BlockOrder.valueOf(orderString.toUpperCase());
+				final long[] indices = order == BlockOrder.RASTER ? null : order.indices(grid);
+
+				/* equal checksums of equally encoded blocks mean equal blocks */
+				final BlockChecksums checksumsA = useChecksums ? BlockChecksums.load(n5Reader1, datasetName1) : null;
+				final BlockChecksums checksumsB = useChecksums ? BlockChecksums.load(n5Reader2, datasetName2) : null;
+				final boolean compareChecksums =
+						checksumsA != null && checksumsA.isComplete() &&
+						checksumsB != null && checksumsB.isComplete() &&
+						Arrays.equals(a.getBlockSize(), b.getBlockSize()) &&
+						a.getCompression().equals(b.getCompression());
+				if (useChecksums && !compareChecksums)
+					System.out.println("No complete checksums with equal block size and compression, comparing all blocks by content.");
+				for (long i = 0; i < grid.getNumBlocks(); ++i) {
+					grid.gridPosition(indices == null ? i : indices[(int)i], gridPosition);
+					/* blocks without a recorded checksum are compared by content */
+					final long checksumA = compareChecksums ? checksumsA.get(gridPosition) : BlockChecksums.NOT_RECORDED;
+					if (checksumA != BlockChecksums.NOT_RECORDED && checksumA == checksumsB.get(gridPosition)) {
+						progress.addBlocks(1);
+						continue;
+					}
+					grid.blockMin(gridPosition, min);
+					final int[] size = grid.blockSize(gridPosition);
+					for (int d = 0; d < max.length; ++d)
+						max[d] = min[d] + size[d] - 1;
+
+					/* blocks are loaded lazily by the cursors, so this is read, decode, and compare time */
+					final long t = progress.start();
+					final Cursor<T> cA = Views.flatIterable(Views.interval(imgA, min, max)).cursor();
+					final Cursor<T> cB = Views.flatIterable(Views.interval(imgB, min, max)).cursor();
+					long n = 0;
+					while (cA.hasNext()) {
+						equals &= cA.next().valueEquals(cB.next());
+						++n;
+					}
+					progress.stop(Phase.READ, t);
+					progress.addBytesUncompressed(2 * n * bytesPerElement);
+					progress.addBlocks(1);
 				}
 			}
 
@@ -187,12 +248,15 @@ public class Equals implements Callable<Boolean> {
 
 
 	@Override
-	public Boolean call() throws InterruptedException, ExecutionException {
+	public Boolean call() throws InterruptedException, ExecutionException, IOException {
 
 		n5Reader1 = new N5Factory().openReader(inputContainerPath1);
 		n5Reader2 = new N5Factory().openReader(inputContainerPath2);
 
-		return datasetEquals();
+		try (final ProgressReporter progress = new ProgressReporter("n5-equals", progressInterval, progressJsonPath)) {
+			this.progress = progress;
+			return datasetEquals();
+		}
 	}
 
 	public static void main(final String... args) {
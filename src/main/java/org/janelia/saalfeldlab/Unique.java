@@ -119,14 +119,38 @@
  */
 package org.janelia.saalfeldlab;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BinaryOperator;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.BlockOrder;
+import org.janelia.saalfeldlab.block.BlockTasks;
+import org.janelia.saalfeldlab.block.DataBlocks;
+import org.janelia.saalfeldlab.block.LongBitmap;
+import org.janelia.saalfeldlab.block.ProgressReporter;
+import org.janelia.saalfeldlab.block.ProgressReporter.Phase;
+import org.janelia.saalfeldlab.block.ValueWriter;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.universe.N5Factory;
 
+import gnu.trove.map.hash.TLongLongHashMap;
 import gnu.trove.set.hash.TDoubleHashSet;
 import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.IterableInterval;
@@ -151,35 +175,493 @@ public class Unique implements Callable<Void> {
 	@Option(names = {"-d", "--dataset"}, required = true, description = "dataset, e.g. -d '/slab-26'")
 	private String dataset = null;
 
+	@Option(names = {"-t", "--threads" }, description = "number of threads that scan blocks, e.g. 32 (default: number of available processors)")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Option(names = {"--set" }, description = "set for the values of integer datasets: hash, bitmap (compressed, for dense ranges like the IDs of a segmentation), or auto to switch from hash to bitmap when there are many values in a dense range (default: auto)")
+	private String setString = "auto";
+
+	@Option(names = {"--counts" }, description = "count the voxels per value of integer datasets in the same pass, sorted by value")
+	private boolean counts = false;
+
+	@Option(names = {"-o", "--output" }, description = "file for the sorted values (or values and counts), e.g. -o labels.txt (default: stdout)")
+	private String outputPath = null;
+
+	@Option(names = {"--format" }, description = "output format: text (one value per line, value,count lines with a header for --counts), binary (little-endian 64 bit values, or value and count pairs), or array (a single line [1, 2, 3]) (default: array on stdout, text for files and --counts)")
+	private String formatString = null;
+
+	@Option(names = {"--outputDataset" }, description = "instead of a file, write the sorted values into a 1D dataset (2 x n value and count pairs for --counts) in the container, e.g. --outputDataset /slab-26-labels")
+	private String outputDataset = null;
+
+	@Option(names = {"--order" }, description = "order in which blocks are scanned: raster, morton (Z-order), or hilbert, the latter two scan neighboring blocks close in time, which helps storage that caches or prefetches nearby blocks (default: raster)")
+	private String orderString = "raster";
+
+	@Option(names = {"--progress" }, description = "print scanned blocks, throughput, and ETA to stderr every this many seconds, 0 for a single summary at the end, e.g. 60 (default: 10)")
+	private double progressInterval = 10;
+
+	@Option(names = {"--progressJson" }, description = "also append every progress report of the scan as a JSON line to this file, e.g. unique-progress.jsonl")
+	private String progressJsonPath = null;
+
 	public static <T extends IntegerType<T>>long[] uniqueInteger(final IterableInterval<T> iterable) {
 
 		final TLongHashSet unique = new TLongHashSet();
-		for (final T t : iterable)
-			unique.add(t.getIntegerLong());
+		addUniqueInteger(iterable, unique);
 
 		return unique.toArray();
 	}
 
+	public static <T extends IntegerType<T>> void addUniqueInteger(final IterableInterval<T> iterable, final TLongHashSet unique) {
+
+		for (final T t : iterable)
+			unique.add(t.getIntegerLong());
+	}
+
 	public static <T extends RealType<T>>double[] uniqueReal(final IterableInterval<T> iterable) {
 
 		final TDoubleHashSet unique = new TDoubleHashSet();
+		addUniqueReal(iterable, unique);
+
+		return unique.toArray();
+	}
+
+	public static <T extends RealType<T>> void addUniqueReal(final IterableInterval<T> iterable, final TDoubleHashSet unique) {
+
 		for (final T t : iterable)
 			unique.add(t.getRealDouble());
+	}
 
-		return unique.toArray();
+	/**
+	 * Add the values of a primitive array of the given {@link DataType} to
+	 * a set, in a loop per type without per-voxel dispatch.  Unsigned types
+	 * are converted as unsigned like {@link IntegerType#getIntegerLong()}.
+	 * 8 and 16 bit values are collected in a lookup table, for wider types
+	 * runs of equal values, typical for labels, are added only once.
+	 *
+	 * @param data
+	 * @param dataType
+	 * @param unique
+	 */
+	public static void addUniqueInteger(final Object data, final DataType dataType, final TLongHashSet unique) {
+
+		addUniqueInteger(data, dataType, (LongConsumer)unique::add);
+	}
+
+	/**
+	 * Pass the values of a primitive array of the given {@link DataType} to
+	 * a consumer, see {@link #addUniqueInteger(Object, DataType,
+	 * TLongHashSet)}.  Values can be passed more than once.
+	 *
+	 * @param data
+	 * @param dataType
+	 * @param unique
+	 */
+	public static void addUniqueInteger(final Object data, final DataType dataType, final LongConsumer unique) {
+
+		switch (dataType) {
+		case UINT8:
+		case INT8: {
+			final byte[] a = (byte[])data;
+			final boolean[] present = new boolean[256];
+			for (int i = 0; i < a.length; ++i)
+				present[a[i] & 0xff] = true;
+			for (int v = 0; v < present.length; ++v)
+				if (present[v])
+					unique.accept(dataType == DataType.UINT8 ? v : (byte)v);
+			break;
+		}
+		case UINT16:
+		case INT16: {
+			final short[] a = (short[])data;
+			final boolean[] present = new boolean[65536];
+			for (int i = 0; i < a.length; ++i)
+				present[a[i] & 0xffff] = true;
+			for (int v = 0; v < present.length; ++v)
+				if (present[v])
+					unique.accept(dataType == DataType.UINT16 ? v : (short)v);
+			break;
+		}
+		case UINT32:
+		case INT32: {
+			final int[] a = (int[])data;
+			if (a.length == 0)
+				break;
+			final long mask = dataType == DataType.UINT32 ? 0xffffffffL : -1L;
+			int last = a[0];
+			unique.accept(last & mask);
+			for (int i = 1; i < a.length; ++i) {
+				if (a[i] != last) {
+					last = a[i];
+					unique.accept(last & mask);
+				}
+			}
+			break;
+		}
+		case UINT64:
+		case INT64: {
+			final long[] a = (long[])data;
+			if (a.length == 0)
+				break;
+			long last = a[0];
+			unique.accept(last);
+			for (int i = 1; i < a.length; ++i) {
+				if (a[i] != last) {
+					last = a[i];
+					unique.accept(last);
+				}
+			}
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Unsupported data type " + dataType);
+		}
+	}
+
+	/**
+	 * Add the values of a float or double array to a set, runs of equal
+	 * values are added only once.
+	 *
+	 * @param data
+	 * @param dataType
+	 * @param unique
+	 */
+	public static void addUniqueReal(final Object data, final DataType dataType, final TDoubleHashSet unique) {
+
+		switch (dataType) {
+		case FLOAT32: {
+			final float[] a = (float[])data;
+			if (a.length == 0)
+				break;
+			/* compare bits to keep -0 and NaN like the set does */
+			int last = Float.floatToRawIntBits(a[0]);
+			unique.add(a[0]);
+			for (int i = 1; i < a.length; ++i) {
+				final int bits = Float.floatToRawIntBits(a[i]);
+				if (bits != last) {
+					last = bits;
+					unique.add(a[i]);
+				}
+			}
+			break;
+		}
+		case FLOAT64: {
+			final double[] a = (double[])data;
+			if (a.length == 0)
+				break;
+			long last = Double.doubleToRawLongBits(a[0]);
+			unique.add(a[0]);
+			for (int i = 1; i < a.length; ++i) {
+				final long bits = Double.doubleToRawLongBits(a[i]);
+				if (bits != last) {
+					last = bits;
+					unique.add(a[i]);
+				}
+			}
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Unsupported data type " + dataType);
+		}
+	}
+
+	/**
+	 * Count the values of a primitive integer array of the given
+	 * {@link DataType}, like {@link #addUniqueInteger(Object, DataType,
+	 * TLongHashSet)}.  8 and 16 bit values are counted in a histogram, for
+	 * wider types runs of equal values are counted at once.
+	 *
+	 * @param data
+	 * @param dataType
+	 * @param counts
+	 */
+	public static void addCounts(final Object data, final DataType dataType, final TLongLongHashMap counts) {
+
+		switch (dataType) {
+		case UINT8:
+		case INT8: {
+			final byte[] a = (byte[])data;
+			final int[] histogram = new int[256];
+			for (int i = 0; i < a.length; ++i)
+				++histogram[a[i] & 0xff];
+			for (int v = 0; v < histogram.length; ++v)
+				if (histogram[v] > 0)
+					counts.adjustOrPutValue(dataType == DataType.UINT8 ? v : (byte)v, histogram[v], histogram[v]);
+			break;
+		}
+		case UINT16:
+		case INT16: {
+			final short[] a = (short[])data;
+			final int[] histogram = new int[65536];
+			for (int i = 0; i < a.length; ++i)
+				++histogram[a[i] & 0xffff];
+			for (int v = 0; v < histogram.length; ++v)
+				if (histogram[v] > 0)
+					counts.adjustOrPutValue(dataType == DataType.UINT16 ? v : (short)v, histogram[v], histogram[v]);
+			break;
+		}
+		case UINT32:
+		case INT32: {
+			final int[] a = (int[])data;
+			final long mask = dataType == DataType.UINT32 ? 0xffffffffL : -1L;
+			int start = 0;
+			for (int i = 1; i <= a.length; ++i) {
+				if (i == a.length || a[i] != a[start]) {
+					counts.adjustOrPutValue(a[start] & mask, i - start, i - start);
+					start = i;
+				}
+			}
+			break;
+		}
+		case UINT64:
+		case INT64: {
+			final long[] a = (long[])data;
+			int start = 0;
+			for (int i = 1; i <= a.length; ++i) {
+				if (i == a.length || a[i] != a[start]) {
+					counts.adjustOrPutValue(a[start], i - start, i - start);
+					start = i;
+				}
+			}
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Unsupported data type " + dataType);
+		}
+	}
+
+	public static <T extends IntegerType<T>> void addCounts(final IterableInterval<T> iterable, final TLongLongHashMap counts) {
+
+		for (final T t : iterable)
+			counts.adjustOrPutValue(t.getIntegerLong(), 1, 1);
+	}
+
+	/**
+	 * The unique values of an integer dataset collected by one worker, in a
+	 * hash set or a {@link LongBitmap}.  With auto, the hash set is
+	 * replaced by a bitmap once it holds many values in a dense range, i.e.
+	 * when the bitmap is much smaller.
+	 */
+	protected static class UniqueIntegers {
+
+		/* first size at which auto checks the density, checked again when the size doubles */
+		protected static final int CHECK_SIZE = 1 << 16;
+
+		/* mean number of values per 2^16 range above which bitmaps are smaller than hash sets */
+		protected static final double DENSITY = 16;
+
+		protected final boolean isAuto;
+		protected TLongHashSet hash;
+		protected LongBitmap bitmap;
+		protected long nextCheck = CHECK_SIZE;
+
+		protected UniqueIntegers(final String mode) {
+
+			switch (mode.toLowerCase()) {
+			case "hash":
+				isAuto = false;
+				hash = new TLongHashSet();
+				break;
+			case "bitmap":
+				isAuto = false;
+				bitmap = new LongBitmap();
+				break;
+			case "auto":
+				isAuto = true;
+				hash = new TLongHashSet();
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown set " + mode + ", use hash, bitmap, or auto.");
+			}
+		}
+
+		protected void add(final long value) {
+
+			if (bitmap == null)
+				hash.add(value);
+			else
+				bitmap.add(value);
+		}
+
+		protected void add(final Object data, final DataType dataType) {
+
+			if (bitmap == null) {
+				addUniqueInteger(data, dataType, hash);
+				checkDensity();
+			} else
+				addUniqueInteger(data, dataType, (LongConsumer)bitmap::add);
+		}
+
+		protected <T extends IntegerType<T>> void add(final IterableInterval<T> iterable) {
+
+			for (final T t : iterable)
+				add(t.getIntegerLong());
+			checkDensity();
+		}
+
+		protected void checkDensity() {
+
+			if (!isAuto || bitmap != null || hash.size() < nextCheck)
+				return;
+			nextCheck = 2L * hash.size();
+
+			final long[] minMax = {Long.MAX_VALUE, Long.MIN_VALUE};
+			hash.forEach(value -> {
+				minMax[0] = Math.min(minMax[0], value);
+				minMax[1] = Math.max(minMax[1], value);
+				return true;
+			});
+			final double ranges = (double)(LongBitmap.key(minMax[1]) - LongBitmap.key(minMax[0])) + 1;
+			if (hash.size() >= DENSITY * ranges) {
+				bitmap = new LongBitmap();
+				hash.forEach(value -> {
+					bitmap.add(value);
+					return true;
+				});
+				hash = null;
+			}
+		}
+
+		protected long size() {
+
+			return bitmap == null ? hash.size() : bitmap.size();
+		}
+
+		/**
+		 * Pass all values in ascending order to a consumer.
+		 *
+		 * @param isUnsigned order values as unsigned 64 bit integers
+		 * @param consumer
+		 */
+		protected void forEachSorted(final boolean isUnsigned, final LongConsumer consumer) {
+
+			if (bitmap == null) {
+				final long[] values = hash.toArray();
+				sort(values, isUnsigned);
+				for (final long value : values)
+					consumer.accept(value);
+			} else
+				bitmap.forEach(isUnsigned, consumer);
+		}
+
+		/**
+		 * Add the smaller of two sets to the larger one.  Hash sets are
+		 * added to bitmaps if one of both is a bitmap.
+		 *
+		 * @param a
+		 * @param b
+		 * @return
+		 */
+		protected static UniqueIntegers union(final UniqueIntegers a, final UniqueIntegers b) {
+
+			if ((a.bitmap == null) == (b.bitmap == null) ? a.size() < b.size() : a.bitmap == null)
+				return union(b, a);
+
+			if (a.bitmap == null) {
+				a.hash.addAll(b.hash);
+				a.checkDensity();
+			} else if (b.bitmap == null)
+				b.hash.forEach(value -> {
+					a.bitmap.add(value);
+					return true;
+				});
+			else
+				a.bitmap.or(b.bitmap);
+			return a;
+		}
+	}
+
+	/* flipping the sign bit sorts unsigned values with a signed sort */
+	protected static void sort(final long[] values, final boolean isUnsigned) {
+
+		final long flip = isUnsigned ? Long.MIN_VALUE : 0;
+		for (int i = 0; i < values.length; ++i)
+			values[i] ^= flip;
+		Arrays.sort(values);
+		for (int i = 0; i < values.length; ++i)
+			values[i] ^= flip;
+	}
+
+	protected static <S> S poll(final ConcurrentLinkedQueue<S> sets, final Supplier<S> factory) {
+
+		final S set = sets.poll();
+		return set == null ? factory.get() : set;
+	}
+
+	protected static TDoubleHashSet union(final TDoubleHashSet a, final TDoubleHashSet b) {
+
+		if (a.size() < b.size())
+			return union(b, a);
+		a.addAll(b);
+		return a;
+	}
+
+	protected static TLongLongHashMap union(final TLongLongHashMap a, final TLongLongHashMap b) {
+
+		if (a.size() < b.size())
+			return union(b, a);
+		b.forEachEntry((value, count) -> {
+			a.adjustOrPutValue(value, count, count);
+			return true;
+		});
+		return a;
+	}
+
+	/**
+	 * Union of sets, merged pairwise in parallel such that each round
+	 * halves the number of sets.  The smaller set of each pair is added to
+	 * the larger one.
+	 *
+	 * @param sets
+	 * @param union adds the second set to the first and returns it
+	 * @param exec
+	 * @return the union or null if there are no sets
+	 */
+	protected static <S> S merge(final List<S> sets, final BinaryOperator<S> union, final Executor exec) {
+
+		List<CompletableFuture<S>> level = new ArrayList<>();
+		for (final S set : sets)
+			level.add(CompletableFuture.completedFuture(set));
+		while (level.size() > 1) {
+			final ArrayList<CompletableFuture<S>> next = new ArrayList<>();
+			for (int i = 0; i < level.size(); i += 2) {
+				if (i + 1 < level.size())
+					next.add(level.get(i).thenCombineAsync(level.get(i + 1), union, exec));
+				else
+					next.add(level.get(i));
+			}
+			level = next;
+		}
+		return level.isEmpty() ? null : level.get(0).join();
+	}
+
+	protected ValueWriter openWriter(
+			final N5Reader n5,
+			final long numValues,
+			final boolean isUnsigned,
+			final boolean isReal,
+			final boolean hasCounts,
+			final ValueWriter.Format format) throws IOException {
+
+		if (outputDataset == null)
+			return ValueWriter.toFile(outputPath, format, isUnsigned, isReal, hasCounts);
+		else if (n5 instanceof N5Writer)
+			return ValueWriter.toDataset((N5Writer)n5, outputDataset, numValues, isUnsigned, isReal, hasCounts);
+		else
+			throw new IllegalArgumentException("Cannot write " + outputDataset + " into " + containerPath + ".");
 	}
 
 	@SuppressWarnings({"unchecked", "rawtypes"})
 	@Override
-	public Void call() {
+	public Void call() throws IOException, InterruptedException, ExecutionException {
 
-		final N5Reader n5 = new N5Factory()
-				.hdf5DefaultBlockSize(64, 64, 64)
-				.openReader(containerPath);
+		/* open a writer only to write the values into the container */
+		final N5Factory n5Factory = new N5Factory().hdf5DefaultBlockSize(64, 64, 64);
+		final N5Reader n5 = outputDataset == null ? n5Factory.openReader(containerPath) : n5Factory.openWriter(containerPath);
 		final RandomAccessibleInterval<? extends NativeType<?>> img = N5Utils.open(n5, dataset);
 
 		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
-		switch (attributes.getDataType()) {
+		final DataType dataType = attributes.getDataType();
+		final boolean isInteger;
+		switch (dataType) {
 		case UINT8:
 		case INT8:
 		case UINT16:
@@ -188,12 +670,142 @@ public class Unique implements Callable<Void> {
 		case INT32:
 		case UINT64:
 		case INT64:
-			System.out.println(Arrays.toString(uniqueInteger((IterableInterval)Views.iterable(img))));
+			isInteger = true;
 			break;
 		default:
-			System.out.println(Arrays.toString(uniqueReal((IterableInterval)Views.iterable(img))));
+			isInteger = false;
+		}
+		if (counts && !isInteger)
+			throw new IllegalArgumentException("--counts is only supported for integer datasets.");
+		if (outputPath != null && outputDataset != null)
+			throw new IllegalArgumentException("Use either --output or --outputDataset.");
+		/* stdout keeps the single line of earlier versions unless a format is requested */
+		final ValueWriter.Format format;
+		if (formatString != null)
+			format = ValueWriter.Format.valueOf(formatString.toUpperCase());
+		else if (outputPath == null && !counts)
+			format = ValueWriter.Format.ARRAY;
+		else
+			format = ValueWriter.Format.TEXT;
+		if (!Arrays.asList("hash", "bitmap", "auto").contains(setString.toLowerCase()))
+			throw new IllegalArgumentException("Unknown set " + setString + ", use hash, bitmap, or auto.");
+
+		/*
+		 * Visit the dataset block by block in parallel.  Tasks take a set
+		 * from the queue and return it when done, such that there are at
+		 * most as many sets as threads, which are merged at the end.
+		 */
+		final ConcurrentLinkedQueue<UniqueIntegers> integerSets = new ConcurrentLinkedQueue<>();
+		final ConcurrentLinkedQueue<TDoubleHashSet> realSets = new ConcurrentLinkedQueue<>();
+		final ConcurrentLinkedQueue<TLongLongHashMap> countMaps = new ConcurrentLinkedQueue<>();
+		final BlockGrid grid = new BlockGrid(attributes);
+		final int bytesPerElement = DataBlocks.bytesPerElement(attributes.getDataType());
+		final ForkJoinPool exec = new ForkJoinPool(numThreads);
+		try (final ProgressReporter progress = new ProgressReporter("n5-unique", progressInterval, progressJsonPath)) {
+			final long numBlocks = grid.getNumBlocks();
+			progress.addTotalBlocks(numBlocks);
+			final BlockOrder order = BlockOrder.valueOf(orderString.toUpperCase());
+			final long[] indices = order == BlockOrder.RASTER ? null : order.indices(grid);
+
+			BlockTasks.runRanges(
+					numBlocks,
+					numThreads,
+					(from, to) -> {
+						final TLongLongHashMap uniqueCounts = counts ? poll(countMaps, TLongLongHashMap::new) : null;
+						final UniqueIntegers uniqueIntegers = isInteger && !counts ? poll(integerSets, () -> new UniqueIntegers(setString)) : null;
+						final TDoubleHashSet uniqueReals = isInteger ? null : poll(realSets, TDoubleHashSet::new);
+						final long[] gridPosition = new long[grid.numDimensions()];
+						final long[] min = new long[grid.numDimensions()];
+						final long[] max = new long[grid.numDimensions()];
+						for (long k = from; k < to; ++k) {
+							grid.gridPosition(indices == null ? k : indices[(int)k], gridPosition);
+							grid.blockMin(gridPosition, min);
+							final int[] size = grid.blockSize(gridPosition);
+							for (int d = 0; d < max.length; ++d)
+								max[d] = min[d] + size[d] - 1;
+							final int numElements = DataBlock.getNumElements(size);
+
+							/* read, decode, and scan time */
+							final long t = progress.start();
+							final DataBlock<?> dataBlock = n5.readBlock(dataset, attributes, gridPosition);
+							if (dataBlock == null) {
+								/* missing blocks are 0 like in the image */
+								if (counts)
+									uniqueCounts.adjustOrPutValue(0, numElements, numElements);
+								else if (isInteger)
+									uniqueIntegers.add(0);
+								else
+									uniqueReals.add(0);
+							} else if (dataBlock.getNumElements() == numElements) {
+								if (counts)
+									addCounts(dataBlock.getData(), dataType, uniqueCounts);
+								else if (isInteger)
+									uniqueIntegers.add(dataBlock.getData(), dataType);
+								else
+									addUniqueReal(dataBlock.getData(), dataType, uniqueReals);
+							} else {
+								/* e.g. padded boundary chunks of Zarr arrays, use the image */
+								final IterableInterval block = Views.iterable(Views.interval(img, min, max));
+								if (counts)
+									addCounts(block, uniqueCounts);
+								else if (isInteger)
+									uniqueIntegers.add(block);
+								else
+									addUniqueReal(block, uniqueReals);
+							}
+							progress.stop(Phase.READ, t);
+							progress.addBytesUncompressed((long)numElements * bytesPerElement);
+							progress.addBlocks(1);
+						}
+						if (counts)
+							countMaps.offer(uniqueCounts);
+						else if (isInteger)
+							integerSets.offer(uniqueIntegers);
+						else
+							realSets.offer(uniqueReals);
+					},
+					exec).get();
+
+			/* stream the sorted values without building a string of all of them */
+			final boolean isUnsigned = dataType == DataType.UINT64;
+			final long numValues;
+			if (counts) {
+				final TLongLongHashMap uniqueCounts = merge(new ArrayList<>(countMaps), Unique::union, exec);
+				final long[] values = uniqueCounts == null ? new long[0] : uniqueCounts.keys();
+				sort(values, isUnsigned);
+				numValues = values.length;
+				try (final ValueWriter writer = openWriter(n5, numValues, isUnsigned, false, true, format)) {
+					for (final long value : values)
+						writer.write(value, uniqueCounts.get(value));
+				}
+			} else if (isInteger) {
+				final UniqueIntegers uniqueIntegers = merge(new ArrayList<>(integerSets), UniqueIntegers::union, exec);
+				numValues = uniqueIntegers == null ? 0 : uniqueIntegers.size();
+				try (final ValueWriter writer = openWriter(n5, numValues, isUnsigned, false, false, format)) {
+					if (uniqueIntegers != null)
+						uniqueIntegers.forEachSorted(isUnsigned, value -> {
+							try {
+								writer.write(value);
+							} catch (final IOException e) {
+								throw new UncheckedIOException(e);
+							}
+						});
+				}
+			} else {
+				final TDoubleHashSet uniqueReals = merge(new ArrayList<>(realSets), Unique::union, exec);
+				final double[] values = uniqueReals == null ? new double[0] : uniqueReals.toArray();
+				Arrays.sort(values);
+				numValues = values.length;
+				try (final ValueWriter writer = openWriter(n5, numValues, false, true, false, format)) {
+					for (final double value : values)
+						writer.write(value);
+				}
+			}
+			if (outputPath != null || outputDataset != null)
+				System.out.println("Wrote " + numValues + " values to " + (outputPath == null ? containerPath + ":" + outputDataset : outputPath));
+		} finally {
+			exec.shutdown();
 		}
-		System.out.println();
 		return null;
 
 	}
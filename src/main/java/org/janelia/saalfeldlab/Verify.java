@@ -0,0 +1,311 @@
+/**
+ *                         THE CRAPL v0 BETA 1
+ *
+ *
+ * 0. Information about the CRAPL
+ *
+ * If you have questions or concerns about the CRAPL, or you need more
+ * information about this license, please contact:
+ *
+ *    Matthew Might
+ *    http://matt.might.net/
+ *
+ *
+ * I. Preamble
+ *
+ * Science thrives on openness.
+ *
+ * In modern science, it is often infeasible to replicate claims without
+ * access to the software underlying those claims.
+ *
+ * Let's all be honest: when scientists write code, aesthetics and
+ * software engineering principles take a back seat to having running,
+ * working code before a deadline.
+ *
+ * So, let's release the ugly.  And, let's be proud of that.
+ *
+ *
+ * II. Definitions
+ *
+ * 1. "This License" refers to version 0 beta 1 of the Community
+ *     Research and Academic Programming License (the CRAPL).
+ *
+ * 2. "The Program" refers to the medley of source code, shell scripts,
+ *     executables, objects, libraries and build files supplied to You,
+ *     or these files as modified by You.
+ *
+ *    [Any appearance of design in the Program is purely coincidental and
+ *     should not in any way be mistaken for evidence of thoughtful
+ *     software construction.]
+ *
+ * 3. "You" refers to the person or persons brave and daft enough to use
+ *     the Program.
+ *
+ * 4. "The Documentation" refers to the Program.
+ *
+ * 5. "The Author" probably refers to the caffeine-addled graduate
+ *     student that got the Program to work moments before a submission
+ *     deadline.
+ *
+ *
+ * III. Terms
+ *
+ * 1. By reading this sentence, You have agreed to the terms and
+ *    conditions of this License.
+ *
+ * 2. If the Program shows any evidence of having been properly tested
+ *    or verified, You will disregard this evidence.
+ *
+ * 3. You agree to hold the Author free from shame, embarrassment or
+ *    ridicule for any hacks, kludges or leaps of faith found within the
+ *    Program.
+ *
+ * 4. You recognize that any request for support for the Program will be
+ *    discarded with extreme prejudice.
+ *
+ * 5. The Author reserves all rights to the Program, except for any
+ *    rights granted under any additional licenses attached to the
+ *    Program.
+ *
+ *
+ * IV. Permissions
+ *
+ * 1. You are permitted to use the Program to validate published
+ *    scientific claims.
+ *
+ * 2. You are permitted to use the Program to validate scientific claims
+ *    submitted for peer review, under the condition that You keep
+ *    modifications to the Program confidential until those claims have
+ *    been published.
+ *
+ * 3. You are permitted to use and/or modify the Program for the
+ *    validation of novel scientific claims if You make a good-faith
+ *    attempt to notify the Author of Your work and Your claims prior to
+ *    submission for publication.
+ *
+ * 4. If You publicly release any claims or data that were supported or
+ *    generated by the Program or a modification thereof, in whole or in
+ *    part, You will release any inputs supplied to the Program and any
+ *    modifications You made to the Progam.  This License will be in
+ *    effect for the modified program.
+ *
+ *
+ * V. Disclaimer of Warranty
+ *
+ * THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT PERMITTED BY
+ * APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT
+ * HOLDERS AND/OR OTHER PARTIES PROVIDE THE PROGRAM "AS IS" WITHOUT
+ * WARRANTY OF ANY KIND, EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND
+ * PERFORMANCE OF THE PROGRAM IS WITH YOU. SHOULD THE PROGRAM PROVE
+ * DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR
+ * CORRECTION.
+ *
+ *
+ * VI. Limitation of Liability
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR
+ * CONVEYS THE PROGRAM AS PERMITTED ABOVE, BE LIABLE TO YOU FOR DAMAGES,
+ * INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT
+ * NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED INACCURATE OR
+ * LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE PROGRAM
+ * TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER
+ * PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ *
+ */
+package org.janelia.saalfeldlab;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.block.BlockChecksums;
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.BlockManifest;
+import org.janelia.saalfeldlab.block.BlockOrder;
+import org.janelia.saalfeldlab.block.BlockTasks;
+import org.janelia.saalfeldlab.block.ProgressReporter;
+import org.janelia.saalfeldlab.block.ProgressReporter.Phase;
+import org.janelia.saalfeldlab.block.RawBlocks;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
+import org.janelia.saalfeldlab.n5.N5KeyValueReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.universe.N5Factory;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Option;
+
+/**
+ * Verify the blocks of datasets that were written by {@link Copy} with
+ * --checksums.  Blocks are read in parallel and their encoded bytes are
+ * compared with the recorded checksums without decoding them.
+ */
+public class Verify implements Callable<Boolean> {
+
+	protected GsonKeyValueN5Reader n5Reader;
+	protected ForkJoinPool exec;
+	protected BlockOrder order;
+	protected ProgressReporter progress = new ProgressReporter();
+	protected int numVerified = 0;
+
+	@Option(names = {"-i", "--container" }, required = true, description = "container path, e.g. /nrs/flyem/data/tmp/Z0115-22.n5")
+	private String containerPath = null;
+
+	@Option(names = {"-d", "--group" }, description = "group or dataset name, e.g. /volumes/raw (default: all datasets with checksums)")
+	private List<String> groupNames = null;
+
+	@Option(names = {"-t", "--threads" }, description = "number of threads that read and hash blocks, e.g. 32 (default: number of available processors)")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Option(names = {"--order" }, description = "order in which blocks are read and checked: raster, morton (Z-order), or hilbert, the latter two read neighboring blocks close in time, which helps storage that caches or prefetches nearby blocks (default: raster)")
+	private String orderString = "raster";
+
+	@Option(names = {"--progress" }, description = "print verified blocks, throughput, and ETA to stderr every this many seconds, 0 for a single summary at the end, e.g. 60 (default: 10)")
+	private double progressInterval = 10;
+
+	@Option(names = {"--progressJson" }, description = "also append every progress report of the verification as a JSON line to this file, e.g. verify-progress.jsonl")
+	private String progressJsonPath = null;
+
+	/**
+	 * Check all blocks of a dataset against its checksums.  Blocks that
+	 * differ from their checksum or are missing fail, blocks that exist
+	 * without a checksum are reported but do not fail.
+	 *
+	 * @param datasetName
+	 * @return false if a block is corrupt or missing
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	protected boolean verifyDataset(final String datasetName) throws InterruptedException, ExecutionException {
+
+		System.out.println(datasetName);
+
+		final BlockChecksums checksums = BlockChecksums.load(n5Reader, datasetName);
+		if (checksums == null) {
+			System.out.println("  no checksums, not verified");
+			return true;
+		}
+		if (!checksums.isComplete())
+			System.out.println("  checksums are incomplete, the copy did not finish");
+		++numVerified;
+
+		final BlockGrid grid = checksums.getGrid();
+		final long numBlocks = grid.getNumBlocks();
+		final long[] indices = order == BlockOrder.RASTER ? null : order.indices(grid);
+		progress.addTotalBlocks(numBlocks);
+
+		final AtomicLong numChecked = new AtomicLong();
+		final AtomicLong numCorrupt = new AtomicLong();
+		final AtomicLong numMissing = new AtomicLong();
+		final AtomicLong numUnrecorded = new AtomicLong();
+
+		BlockTasks.runRanges(
+				numBlocks,
+				numThreads,
+				(from, to) -> {
+					final long[] gridPosition = new long[grid.numDimensions()];
+					for (long k = from; k < to; ++k) {
+						grid.gridPosition(indices == null ? k : indices[(int)k], gridPosition);
+						final long checksum = checksums.get(gridPosition);
+						long t = progress.start();
+						final byte[] bytes = RawBlocks.read(n5Reader, datasetName, gridPosition);
+						progress.stop(Phase.READ, t);
+						if (bytes == null) {
+							if (checksum == BlockChecksums.MISSING)
+								numChecked.incrementAndGet();
+							else if (checksum != BlockChecksums.NOT_RECORDED) {
+								numMissing.incrementAndGet();
+								System.out.println("  missing block " + Arrays.toString(gridPosition));
+							}
+						} else if (checksum == BlockChecksums.NOT_RECORDED) {
+							numUnrecorded.incrementAndGet();
+							progress.addBytesRead(bytes.length);
+						} else {
+							t = progress.start();
+							final boolean isValid = BlockChecksums.checksum(bytes) == checksum;
+							progress.stop(Phase.DECODE, t);
+							progress.addBytesRead(bytes.length);
+							numChecked.incrementAndGet();
+							if (!isValid) {
+								numCorrupt.incrementAndGet();
+								System.out.println("  corrupt block " + Arrays.toString(gridPosition));
+							}
+						}
+						progress.addBlocks(1);
+					}
+				},
+				exec).get();
+
+		System.out.println(
+				datasetName + " : checked " + numChecked.get() + " blocks, " +
+				numCorrupt.get() + " corrupt, " +
+				numMissing.get() + " missing, " +
+				numUnrecorded.get() + " without checksum");
+
+		return numCorrupt.get() == 0 && numMissing.get() == 0;
+	}
+
+	protected boolean verifyGroup(final String groupName) throws InterruptedException, ExecutionException {
+
+		if (n5Reader.datasetExists(groupName))
+			return verifyDataset(groupName);
+
+		boolean isValid = true;
+		for (final String subGroupName : n5Reader.list(groupName)) {
+			if (groupName.isEmpty() && (("/" + subGroupName).equals(BlockManifest.MANIFEST_GROUP) || ("/" + subGroupName).equals(BlockChecksums.CHECKSUM_GROUP)))
+				continue;
+			/* datasets without checksums are skipped silently when walking groups */
+			final String name = groupName + "/" + subGroupName;
+			if (!n5Reader.datasetExists(name) || n5Reader.exists(BlockChecksums.checksumPath(name)))
+				isValid &= verifyGroup(name);
+		}
+		return isValid;
+	}
+
+	@Override
+	public Boolean call() throws InterruptedException, ExecutionException, IOException {
+
+		final N5Reader reader = new N5Factory().openReader(containerPath);
+		if (!(reader instanceof N5KeyValueReader))
+			throw new IllegalArgumentException("Checksums are only recorded for N5 containers, " + containerPath + " is not an N5 container.");
+		n5Reader = (GsonKeyValueN5Reader)reader;
+
+		exec = new ForkJoinPool(numThreads);
+		order = BlockOrder.valueOf(orderString.toUpperCase());
+
+		boolean isValid = true;
+		try (final ProgressReporter progress = new ProgressReporter("n5-verify", progressInterval, progressJsonPath)) {
+			this.progress = progress;
+			if (groupNames == null)
+				isValid = verifyGroup("");
+			else
+				for (final String groupName : groupNames)
+					if (n5Reader.exists(groupName))
+						isValid &= verifyGroup(groupName);
+		} finally {
+			exec.shutdown();
+		}
+
+		if (numVerified == 0) {
+			System.out.println("No checksums found, run n5-copy with --checksums.");
+			return false;
+		}
+		return isValid;
+	}
+
+	public static void main(final String... args) {
+
+		final Boolean result = CommandLine.call(new Verify(), args);
+		if (result != null) System.out.println(result);
+		/* scripts and schedulers check the exit code */
+		System.exit(Boolean.TRUE.equals(result) ? 0 : 1);
+	}
+}
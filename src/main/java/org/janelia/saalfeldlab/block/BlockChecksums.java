@@ -0,0 +1,233 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Checksums of the encoded blocks of a dataset, to detect blocks that were
+ * corrupted after they were written and to find unchanged blocks without
+ * reading or decoding them.
+ *
+ * The checksum of a block is the 64 bit xxHash (XXH64, seed 0) of its
+ * encoded bytes.  {@link #NOT_RECORDED} (0) means that nothing is known
+ * about a block, {@link #MISSING} (1) that the block does not exist, and
+ * hashes that collide with these values are mapped to other values.
+ * Checksums are stored as a {@link BlockSidecar} with one value per
+ * linear block index under {@link #CHECKSUM_GROUP} in the container of the
+ * dataset.
+ */
+public class BlockChecksums extends BlockSidecar {
+
+	public static final String CHECKSUM_GROUP = "/.n5-copy-checksums";
+
+	/* no checksum was recorded for the block */
+	public static final long NOT_RECORDED = 0;
+
+	/* the block was recorded as not existing */
+	public static final long MISSING = 1;
+
+	protected static final long PRIME1 = 0x9E3779B185EBCA87L;
+	protected static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	protected static final long PRIME3 = 0x165667B19E3779F9L;
+	protected static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	protected static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	protected final BlockGrid grid;
+
+	protected BlockChecksums(
+			final N5Reader n5,
+			final String checksumPath,
+			final BlockGrid grid,
+			final long checkpointInterval) {
+
+		super(n5, checksumPath, grid.getNumBlocks(), checkpointInterval);
+		this.grid = grid;
+	}
+
+	public static String checksumPath(final String datasetName) {
+
+		return N5URI.normalizeGroupPath(CHECKSUM_GROUP + "/" + datasetName);
+	}
+
+	/**
+	 * Open the checksums of a dataset that is being written.  Existing
+	 * checksums are kept if {@code keepExisting} is set and they match the
+	 * dataset, otherwise they are replaced by new checksums that are all
+	 * {@link #NOT_RECORDED}.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param datasetAttributes
+	 * @param keepExisting
+	 * @param checkpointInterval
+	 *            minimal interval between checkpoints in ms
+	 * @return
+	 */
+	public static BlockChecksums open(
+			final N5Writer n5,
+			final String datasetName,
+			final DatasetAttributes datasetAttributes,
+			final boolean keepExisting,
+			final long checkpointInterval) {
+
+		final String checksumPath = checksumPath(datasetName);
+		final BlockChecksums checksums = new BlockChecksums(n5, checksumPath, new BlockGrid(datasetAttributes), checkpointInterval);
+
+		if (n5.datasetExists(checksumPath)) {
+			if (keepExisting && checksums.matches(datasetAttributes))
+				checksums.load();
+			else
+				n5.remove(checksumPath);
+		}
+
+		if (checksums.isNew) {
+			checksums.create(datasetAttributes);
+			n5.setAttribute(checksumPath, "hash", "xxh64");
+		}
+		n5.setAttribute(checksumPath, "complete", false);
+		checksums.isComplete = false;
+
+		return checksums;
+	}
+
+	/**
+	 * Load the checksums of a dataset for reading.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @return the checksums or null if there are none that match the dataset
+	 */
+	public static BlockChecksums load(final N5Reader n5, final String datasetName) {
+
+		final String checksumPath = checksumPath(datasetName);
+		try {
+			if (!n5.datasetExists(checksumPath))
+				return null;
+			final BlockChecksums checksums = new BlockChecksums(n5, checksumPath, new BlockGrid(n5.getDatasetAttributes(datasetName)), Long.MAX_VALUE);
+			if (!checksums.matches(n5.getDatasetAttributes(datasetName)))
+				return null;
+			checksums.load();
+			return checksums;
+		} catch (final N5Exception e) {
+			return null;
+		}
+	}
+
+	public BlockGrid getGrid() {
+
+		return grid;
+	}
+
+	/**
+	 * @param gridPosition
+	 * @return the checksum of a block, {@link #MISSING} if it does not
+	 *         exist, or {@link #NOT_RECORDED}
+	 */
+	public long get(final long[] gridPosition) {
+
+		return values.get((int)grid.index(gridPosition));
+	}
+
+	/**
+	 * Record the checksum of a block, {@link #MISSING} if it does not exist.
+	 *
+	 * @param gridPosition
+	 * @param checksum
+	 */
+	public void set(final long[] gridPosition, final long checksum) {
+
+		final int i = (int)grid.index(gridPosition);
+		if (values.getAndSet(i, checksum) != checksum)
+			setDirty(i);
+	}
+
+	/**
+	 * The checksum of an encoded block, never {@link #NOT_RECORDED} or
+	 * {@link #MISSING}.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public static long checksum(final byte[] bytes) {
+
+		final long hash = xxHash64(bytes);
+		return hash == NOT_RECORDED || hash == MISSING ? hash + 2 : hash;
+	}
+
+	/**
+	 * XXH64 with seed 0.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public static long xxHash64(final byte[] bytes) {
+
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		final int length = bytes.length;
+		int i = 0;
+		long hash;
+		if (length >= 32) {
+			long v1 = PRIME1 + PRIME2;
+			long v2 = PRIME2;
+			long v3 = 0;
+			long v4 = -PRIME1;
+			for (; i <= length - 32; i += 32) {
+				v1 = round(v1, buffer.getLong(i));
+				v2 = round(v2, buffer.getLong(i + 8));
+				v3 = round(v3, buffer.getLong(i + 16));
+				v4 = round(v4, buffer.getLong(i + 24));
+			}
+			hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			hash = merge(hash, v1);
+			hash = merge(hash, v2);
+			hash = merge(hash, v3);
+			hash = merge(hash, v4);
+		} else
+			hash = PRIME5;
+
+		hash += length;
+
+		for (; i <= length - 8; i += 8) {
+			hash ^= round(0, buffer.getLong(i));
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+		}
+		if (i <= length - 4) {
+			hash ^= (buffer.getInt(i) & 0xffffffffL) * PRIME1;
+			hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+			i += 4;
+		}
+		for (; i < length; ++i) {
+			hash ^= (bytes[i] & 0xffL) * PRIME5;
+			hash = Long.rotateLeft(hash, 11) * PRIME1;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+		return hash;
+	}
+
+	protected static long round(long acc, final long input) {
+
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	protected static long merge(long acc, final long value) {
+
+		acc ^= round(0, value);
+		return acc * PRIME1 + PRIME4;
+	}
+}
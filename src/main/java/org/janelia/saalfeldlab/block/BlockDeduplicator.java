@@ -0,0 +1,153 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.n5.FileSystemKeyValueAccess;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
+import org.janelia.saalfeldlab.n5.N5KeyValueWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Stores identical encoded blocks of N5 containers on the file system only
+ * once.  Blocks are identified by the SHA-256 hash of their encoded bytes,
+ * the first block with a hash is written, and later blocks with the same
+ * hash become hard links to it.  Readers see a regular N5 container.
+ *
+ * Hard links share their content, so existing block files are removed
+ * before they are written and never written into.  {@link RawBlocks#write}
+ * replaces block files too, so later copies into the same container, with
+ * or without deduplication, leave linked blocks intact.  Other writers that
+ * overwrite blocks in place change all linked blocks, deduplicated
+ * containers should therefore not be written by other tools.  If a link cannot be created, e.g. because the file system
+ * limits the number of links per file, the block is written and becomes the
+ * first block for its hash.
+ */
+public class BlockDeduplicator {
+
+	protected static final double MB = 1024.0 * 1024.0;
+
+	/* path of the first block with a hash */
+	protected final ConcurrentHashMap<ByteBuffer, Path> firstPaths = new ConcurrentHashMap<>();
+
+	protected final AtomicLong numBlocks = new AtomicLong();
+	protected final AtomicLong numLinked = new AtomicLong();
+	protected final AtomicLong numBytes = new AtomicLong();
+	protected final AtomicLong numLinkedBytes = new AtomicLong();
+
+	/**
+	 * Whether blocks of this writer are files that can be linked.
+	 *
+	 * @param n5Writer
+	 * @return
+	 */
+	public static boolean supports(final N5Writer n5Writer) {
+
+		return
+				n5Writer instanceof N5KeyValueWriter &&
+				((GsonKeyValueN5Reader)n5Writer).getKeyValueAccess() instanceof FileSystemKeyValueAccess;
+	}
+
+	protected static byte[] hash(final byte[] bytes) {
+
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(bytes);
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write an encoded block or link it to an identical block that was
+	 * written before.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param gridPosition
+	 * @param bytes
+	 * @return true if the block was linked
+	 */
+	public boolean write(final GsonKeyValueN5Reader n5, final String datasetName, final long[] gridPosition, final byte[] bytes) {
+
+		final ByteBuffer key = ByteBuffer.wrap(hash(bytes));
+		final Path path = Paths.get(RawBlocks.blockPath(n5, datasetName, gridPosition));
+		numBlocks.incrementAndGet();
+		numBytes.addAndGet(bytes.length);
+		try {
+			/* the existing file may be linked to other blocks */
+			Files.deleteIfExists(path);
+			final Path first = firstPaths.get(key);
+			if (first != null) {
+				try {
+					Files.createDirectories(path.getParent());
+					Files.createLink(path, first);
+					numLinked.incrementAndGet();
+					numLinkedBytes.addAndGet(bytes.length);
+					return true;
+				} catch (final IOException | UnsupportedOperationException e) {
+					/* write the block and link the next ones to it */
+				}
+			}
+			RawBlocks.write(n5, datasetName, gridPosition, bytes);
+			firstPaths.put(key, path);
+			return false;
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public long getNumBlocks() {
+
+		return numBlocks.get();
+	}
+
+	public long getNumLinked() {
+
+		return numLinked.get();
+	}
+
+	public long getNumBytes() {
+
+		return numBytes.get();
+	}
+
+	public long getNumLinkedBytes() {
+
+		return numLinkedBytes.get();
+	}
+
+	/**
+	 * Ratio of the size of all blocks to the size of the stored blocks.
+	 *
+	 * @return
+	 */
+	public double getRatio() {
+
+		final long stored = numBytes.get() - numLinkedBytes.get();
+		return stored == 0 ? 1 : (double)numBytes.get() / stored;
+	}
+
+	public String report() {
+
+		return String.format(
+				Locale.ROOT,
+				"linked %d of %d blocks, stored %.1f of %.1f MB, dedup ratio %.2f",
+				getNumLinked(),
+				getNumBlocks(),
+				(getNumBytes() - getNumLinkedBytes()) / MB,
+				getNumBytes() / MB,
+				getRatio());
+	}
+}
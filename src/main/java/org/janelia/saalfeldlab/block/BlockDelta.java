@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FileSystemKeyValueAccess;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Quick check whether an output block is up to date with the source blocks
+ * it was copied from, for N5 containers on the file system.
+ *
+ * Like rsync, this relies on modification times: when an output block is
+ * written, its modification time is set to the latest modification time of
+ * the source blocks that it is assembled from (0 if there are none).  An
+ * output block is unchanged if it has this modification time and, when
+ * encoded blocks are copied as they are, the same size as its source.  The
+ * source time is taken before the source is read, so a source block that
+ * changes during the copy is copied again next time.
+ */
+public class BlockDelta {
+
+	protected final GsonKeyValueN5Reader source;
+	protected final String sourceDatasetName;
+	protected final GsonKeyValueN5Reader output;
+	protected final String outputDatasetName;
+	protected final BlockGrid outputGrid;
+	protected final boolean compareSize;
+
+	/* source times of blocks that are being copied, by output block index */
+	protected final ConcurrentHashMap<Long, FileTime> sourceTimes = new ConcurrentHashMap<>();
+
+	/**
+	 *
+	 * @param source
+	 * @param sourceDatasetName
+	 * @param output
+	 * @param outputDatasetName
+	 * @param outputAttributes
+	 * @param compareSize whether source and output blocks are encoded the same way and must have the same size
+	 */
+	public BlockDelta(
+			final GsonKeyValueN5Reader source,
+			final String sourceDatasetName,
+			final GsonKeyValueN5Reader output,
+			final String outputDatasetName,
+			final DatasetAttributes outputAttributes,
+			final boolean compareSize) {
+
+		this.source = source;
+		this.sourceDatasetName = sourceDatasetName;
+		this.output = output;
+		this.outputDatasetName = outputDatasetName;
+		this.compareSize = compareSize;
+		outputGrid = new BlockGrid(outputAttributes);
+	}
+
+	/**
+	 * Whether modification times of blocks in both containers are available.
+	 *
+	 * @param source
+	 * @param output
+	 * @return
+	 */
+	public static boolean supports(final N5Reader source, final N5Reader output) {
+
+		return
+				source instanceof GsonKeyValueN5Reader &&
+				output instanceof GsonKeyValueN5Reader &&
+				((GsonKeyValueN5Reader)source).getKeyValueAccess() instanceof FileSystemKeyValueAccess &&
+				((GsonKeyValueN5Reader)output).getKeyValueAccess() instanceof FileSystemKeyValueAccess;
+	}
+
+	protected static Path path(final GsonKeyValueN5Reader n5, final String datasetName, final long[] gridPosition) {
+
+		return Paths.get(RawBlocks.blockPath(n5, datasetName, gridPosition));
+	}
+
+	/**
+	 * @return the modification time of a file or null if it does not exist
+	 */
+	protected static FileTime lastModifiedTime(final Path path) throws IOException {
+
+		try {
+			return Files.getLastModifiedTime(path);
+		} catch (final NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Whether the output block is up to date.  If not, the current source
+	 * time is remembered for {@link #markWritten(long[])}.
+	 *
+	 * @param outputPosition
+	 * @param sourcePositions grid positions of the source blocks that the output block is assembled from
+	 * @return
+	 */
+	public boolean isUnchanged(final long[] outputPosition, final List<long[]> sourcePositions) {
+
+		try {
+			FileTime sourceTime = null;
+			for (final long[] sourcePosition : sourcePositions) {
+				final FileTime time = lastModifiedTime(path(source, sourceDatasetName, sourcePosition));
+				if (time != null && (sourceTime == null || time.compareTo(sourceTime) > 0))
+					sourceTime = time;
+			}
+
+			final Path outputPath = path(output, outputDatasetName, outputPosition);
+			final FileTime outputTime = lastModifiedTime(outputPath);
+
+			final boolean unchanged;
+			if (sourceTime == null)
+				unchanged = outputTime == null;
+			else
+				unchanged =
+						outputTime != null &&
+						outputTime.toMillis() == sourceTime.toMillis() &&
+						(!compareSize || Files.size(outputPath) == Files.size(path(source, sourceDatasetName, sourcePositions.get(0))));
+
+			if (!unchanged)
+				sourceTimes.put(outputGrid.index(outputPosition), sourceTime == null ? FileTime.fromMillis(0) : sourceTime);
+
+			return unchanged;
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Set the modification time of a written or verified output block to the
+	 * source time remembered by {@link #isUnchanged(long[], List)}.
+	 *
+	 * @param outputPosition
+	 */
+	public void markWritten(final long[] outputPosition) {
+
+		final FileTime sourceTime = sourceTimes.remove(outputGrid.index(outputPosition));
+		if (sourceTime == null)
+			return;
+
+		try {
+			Files.setLastModifiedTime(path(output, outputDatasetName, outputPosition), sourceTime);
+		} catch (final NoSuchFileException e) {
+			/* the block was not written, e.g. because it is empty */
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
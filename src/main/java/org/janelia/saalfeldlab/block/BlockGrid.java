@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * The block grid of an N5 dataset, i.e. the number of blocks per dimension
+ * and the mapping between linear block indices and grid positions.
+ */
+public class BlockGrid {
+
+	protected final long[] dimensions;
+	protected final int[] blockSize;
+	protected final long[] gridDimensions;
+	protected final long numBlocks;
+
+	public BlockGrid(final long[] dimensions, final int[] blockSize) {
+
+		this.dimensions = dimensions.clone();
+		this.blockSize = blockSize.clone();
+		gridDimensions = new long[dimensions.length];
+		long n = 1;
+		for (int d = 0; d < dimensions.length; ++d) {
+			gridDimensions[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+			n *= gridDimensions[d];
+		}
+		numBlocks = n;
+	}
+
+	public BlockGrid(final DatasetAttributes attributes) {
+
+		this(attributes.getDimensions(), attributes.getBlockSize());
+	}
+
+	public int numDimensions() {
+
+		return dimensions.length;
+	}
+
+	public long[] getDimensions() {
+
+		return dimensions.clone();
+	}
+
+	public int[] getBlockSize() {
+
+		return blockSize.clone();
+	}
+
+	public long[] getGridDimensions() {
+
+		return gridDimensions.clone();
+	}
+
+	public long getNumBlocks() {
+
+		return numBlocks;
+	}
+
+	/**
+	 * Grid position of the block at linear (x fastest) index {@code i}.
+	 *
+	 * @param i
+	 * @param gridPosition
+	 */
+	public void gridPosition(final long i, final long[] gridPosition) {
+
+		IntervalIndexer.indexToPosition(i, gridDimensions, gridPosition);
+	}
+
+	public long[] gridPosition(final long i) {
+
+		final long[] gridPosition = new long[gridDimensions.length];
+		gridPosition(i, gridPosition);
+		return gridPosition;
+	}
+
+	public long index(final long[] gridPosition) {
+
+		return IntervalIndexer.positionToIndex(gridPosition, gridDimensions);
+	}
+
+	/**
+	 * Size of the block at {@code gridPosition}, blocks at the upper border
+	 * are truncated to the dataset dimensions as in N5.
+	 *
+	 * @param gridPosition
+	 * @param size
+	 */
+	public void blockSize(final long[] gridPosition, final int[] size) {
+
+		for (int d = 0; d < size.length; ++d)
+			size[d] = (int)Math.min(blockSize[d], dimensions[d] - gridPosition[d] * blockSize[d]);
+	}
+
+	public int[] blockSize(final long[] gridPosition) {
+
+		final int[] size = new int[blockSize.length];
+		blockSize(gridPosition, size);
+		return size;
+	}
+
+	public void blockMin(final long[] gridPosition, final long[] min) {
+
+		for (int d = 0; d < min.length; ++d)
+			min[d] = gridPosition[d] * blockSize[d];
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5URI;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Records which blocks of a dataset have been written so that an
+ * interrupted copy can be resumed.
+ *
+ * The manifest is a {@link BlockSidecar} that stores a bitset of finished
+ * linear block indices, 64 per value, under {@link #MANIFEST_GROUP} in the
+ * output container.  Bits are set only after a block has been written, so
+ * a checkpoint can miss a few finished blocks but never claims an
+ * unfinished one.  A manifest is only resumed if the existing output has
+ * the same dimensions, block size, data type, and compression, otherwise
+ * all blocks are copied again.
+ */
+public class BlockManifest extends BlockSidecar {
+
+	public static final String MANIFEST_GROUP = "/.n5-copy-manifest";
+
+	protected final long numBlocks;
+
+	protected BlockManifest(
+			final N5Writer n5,
+			final String manifestPath,
+			final long numBlocks,
+			final long checkpointInterval) {
+
+		super(n5, manifestPath, (numBlocks + 63) / 64, checkpointInterval);
+		this.numBlocks = numBlocks;
+	}
+
+	public static String manifestPath(final String datasetName) {
+
+		return N5URI.normalizeGroupPath(MANIFEST_GROUP + "/" + datasetName);
+	}
+
+	/**
+	 * Open the manifest for {@code datasetName} if it exists and matches the
+	 * output dataset, otherwise create a new empty manifest.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param outputAttributes
+	 * @param checkpointInterval
+	 *            minimal interval between checkpoints in ms
+	 * @return
+	 */
+	public static BlockManifest open(
+			final N5Writer n5,
+			final String datasetName,
+			final DatasetAttributes outputAttributes,
+			final long checkpointInterval) {
+
+		final String manifestPath = manifestPath(datasetName);
+		final BlockGrid grid = new BlockGrid(outputAttributes);
+		final BlockManifest manifest = new BlockManifest(n5, manifestPath, grid.getNumBlocks(), checkpointInterval);
+
+		if (n5.datasetExists(manifestPath)) {
+			if (n5.datasetExists(datasetName) && manifest.matches(outputAttributes, n5.getDatasetAttributes(datasetName)))
+				manifest.load();
+			else
+				n5.remove(manifestPath);
+		}
+
+		if (manifest.isNew)
+			manifest.create(outputAttributes);
+
+		return manifest;
+	}
+
+	protected boolean matches(final DatasetAttributes outputAttributes, final DatasetAttributes existingAttributes) {
+
+		return
+				matches(outputAttributes) &&
+				Arrays.equals(outputAttributes.getDimensions(), existingAttributes.getDimensions()) &&
+				Arrays.equals(outputAttributes.getBlockSize(), existingAttributes.getBlockSize()) &&
+				outputAttributes.getDataType() == existingAttributes.getDataType() &&
+				outputAttributes.getCompression().equals(existingAttributes.getCompression());
+	}
+
+	public boolean isDone(final long i) {
+
+		return (values.get((int)(i >>> 6)) & (1L << (i & 63))) != 0;
+	}
+
+	public void markDone(final long i) {
+
+		final int w = (int)(i >>> 6);
+		final long bit = 1L << (i & 63);
+		long word;
+		do {
+			word = values.get(w);
+			if ((word & bit) != 0)
+				return;
+		} while (!values.compareAndSet(w, word, word | bit));
+		setDirty(w);
+	}
+
+	public long countDone() {
+
+		long n = 0;
+		for (int i = 0; i < values.length(); ++i)
+			n += Long.bitCount(values.get(i));
+		return n;
+	}
+
+	public long getNumBlocks() {
+
+		return numBlocks;
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.util.function.Consumer;
+
+/**
+ * Orders in which the blocks of a grid are visited.
+ *
+ * {@link #RASTER} is the N5 order (x fastest).  {@link #MORTON} (Z-order)
+ * and {@link #HILBERT} visit blocks that are close in all dimensions close
+ * in time, which improves the locality of reads and of the page and
+ * directory caches for chunked HDF5 files and for containers that store
+ * blocks in a directory per dimension.  The Hilbert curve has no jumps on
+ * power of two grids, the Morton curve is cheaper but jumps between
+ * quadrants.
+ *
+ * Both curves are traversed recursively over the smallest power of two
+ * cube that contains the grid, and sub-cubes outside of the grid are
+ * skipped, so the cost is proportional to the number of blocks also for
+ * grids that are much longer in one dimension.  The n-dimensional Hilbert
+ * curve follows C. H. Hamilton, Compact Hilbert Indices, 2006.
+ */
+public enum BlockOrder {
+
+	RASTER, MORTON, HILBERT;
+
+	/**
+	 * Visit all positions of a grid.  The position passed to the consumer
+	 * is reused and has to be copied if it is kept.
+	 *
+	 * @param gridDimensions
+	 * @param consumer
+	 */
+	public void forEach(final long[] gridDimensions, final Consumer<long[]> consumer) {
+
+		final int n = gridDimensions.length;
+		for (final long s : gridDimensions)
+			if (s <= 0)
+				return;
+
+		if (this == RASTER || n == 0) {
+			final long[] position = new long[n];
+			while (true) {
+				consumer.accept(position);
+				int d = 0;
+				for (; d < n; ++d) {
+					if (++position[d] < gridDimensions[d])
+						break;
+					position[d] = 0;
+				}
+				if (d >= n)
+					break;
+			}
+			return;
+		}
+
+		long max = 1;
+		for (final long s : gridDimensions)
+			max = Math.max(max, s);
+		final int levels = 64 - Long.numberOfLeadingZeros(max - 1);
+
+		/* one origin per level, level 0 is the visited position */
+		final long[][] origins = new long[levels + 1][n];
+		visit(gridDimensions, levels, origins, 0, 0, consumer);
+	}
+
+	/**
+	 * Indices of all blocks of a grid in this order, 8 bytes per block.
+	 *
+	 * @param grid
+	 * @return
+	 */
+	public long[] indices(final BlockGrid grid) {
+
+		final long numBlocks = grid.getNumBlocks();
+		if (numBlocks > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Too many blocks for " + this + " order: " + numBlocks);
+
+		final long[] indices = new long[(int)numBlocks];
+		final int[] i = new int[1];
+		forEach(grid.getGridDimensions(), gridPosition -> indices[i[0]++] = grid.index(gridPosition));
+		return indices;
+	}
+
+	/**
+	 * Visit the cube of size 2^level at origins[level] in this order.
+	 *
+	 * @param entry Hilbert entry point
+	 * @param direction Hilbert intra sub-cube direction
+	 */
+	protected void visit(
+			final long[] gridDimensions,
+			final int level,
+			final long[][] origins,
+			final int entry,
+			final int direction,
+			final Consumer<long[]> consumer) {
+
+		final long[] origin = origins[level];
+		if (level == 0) {
+			consumer.accept(origin);
+			return;
+		}
+
+		final int n = gridDimensions.length;
+		final long[] child = origins[level - 1];
+		final long half = 1L << (level - 1);
+		for (int w = 0; w < 1 << n; ++w) {
+			final int bits = this == HILBERT ? rotateLeft(gray(w), direction + 1, n) ^ entry : w;
+			boolean inside = true;
+			for (int d = 0; d < n; ++d) {
+				child[d] = origin[d] + ((bits >> d) & 1) * half;
+				inside &= child[d] < gridDimensions[d];
+			}
+			if (!inside)
+				continue;
+			if (this == HILBERT)
+				visit(
+						gridDimensions,
+						level - 1,
+						origins,
+						entry ^ rotateLeft(entry(w), direction + 1, n),
+						(direction + direction(w, n) + 1) % n,
+						consumer);
+			else
+				visit(gridDimensions, level - 1, origins, 0, 0, consumer);
+		}
+	}
+
+	protected static int gray(final int i) {
+
+		return i ^ (i >>> 1);
+	}
+
+	protected static int rotateLeft(final int bits, final int k, final int n) {
+
+		final int r = k % n;
+		final int mask = (1 << n) - 1;
+		return ((bits << r) | (bits >>> (n - r))) & mask;
+	}
+
+	/* number of trailing set bits */
+	protected static int trailingOnes(final int i) {
+
+		return Integer.numberOfTrailingZeros(~i);
+	}
+
+	/* entry point of sub-cube w */
+	protected static int entry(final int w) {
+
+		return w == 0 ? 0 : gray(2 * ((w - 1) / 2));
+	}
+
+	/* intra sub-cube direction of sub-cube w */
+	protected static int direction(final int w, final int n) {
+
+		if (w == 0)
+			return 0;
+		else if ((w & 1) == 0)
+			return trailingOnes(w - 1) % n;
+		else
+			return trailingOnes(w) % n;
+	}
+}
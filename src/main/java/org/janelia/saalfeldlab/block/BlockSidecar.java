@@ -0,0 +1,196 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Per block state of a dataset that is stored next to it as a 1D UINT64
+ * dataset in the same container, e.g. a {@link BlockManifest} or
+ * {@link BlockChecksums}.
+ *
+ * Values are kept in memory and changes mark the sidecar block that
+ * contains them as dirty, so checkpoints only rewrite the sidecar blocks
+ * that changed.  Writes to the container are synchronized on the writer
+ * because the HDF5 writer is not thread safe.
+ */
+public abstract class BlockSidecar {
+
+	protected static final int VALUES_PER_BLOCK = 8192;
+
+	protected final N5Reader n5;
+	protected final String path;
+	protected final DatasetAttributes attributes;
+	protected final AtomicLongArray values;
+	protected final AtomicIntegerArray dirty;
+	protected final long checkpointInterval;
+	protected final AtomicLong lastCheckpoint = new AtomicLong(System.currentTimeMillis());
+	protected final ReentrantLock checkpointLock = new ReentrantLock();
+
+	protected boolean isNew = true;
+	protected boolean isComplete = false;
+
+	protected BlockSidecar(
+			final N5Reader n5,
+			final String path,
+			final long numValues,
+			final long checkpointInterval) {
+
+		this.n5 = n5;
+		this.path = path;
+		this.checkpointInterval = checkpointInterval;
+
+		if (numValues > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many blocks for " + path + ": " + numValues);
+
+		values = new AtomicLongArray((int)numValues);
+		attributes = new DatasetAttributes(
+				new long[] {Math.max(1, numValues)},
+				new int[] {(int)Math.max(1, Math.min(numValues, VALUES_PER_BLOCK))},
+				DataType.UINT64,
+				new GzipCompression());
+		dirty = new AtomicIntegerArray((int)((numValues + VALUES_PER_BLOCK - 1) / VALUES_PER_BLOCK));
+	}
+
+	/**
+	 * Create the sidecar dataset for a target dataset.
+	 *
+	 * @param targetAttributes
+	 */
+	protected void create(final DatasetAttributes targetAttributes) {
+
+		final N5Writer n5Writer = (N5Writer)n5;
+		n5Writer.createDataset(path, attributes);
+		n5Writer.setAttribute(path, "targetDimensions", targetAttributes.getDimensions());
+		n5Writer.setAttribute(path, "targetBlockSize", targetAttributes.getBlockSize());
+		n5Writer.setAttribute(path, "complete", false);
+	}
+
+	/**
+	 * @param targetAttributes
+	 * @return true if the stored sidecar was recorded for a dataset with the
+	 *         same dimensions and block size
+	 */
+	protected boolean matches(final DatasetAttributes targetAttributes) {
+
+		return
+				Arrays.equals(targetAttributes.getDimensions(), n5.getAttribute(path, "targetDimensions", long[].class)) &&
+				Arrays.equals(targetAttributes.getBlockSize(), n5.getAttribute(path, "targetBlockSize", int[].class));
+	}
+
+	protected void load() {
+
+		isNew = false;
+		final Boolean complete = n5.getAttribute(path, "complete", Boolean.class);
+		isComplete = complete != null && complete;
+
+		for (int k = 0; k < dirty.length(); ++k) {
+			final DataBlock<?> block = n5.readBlock(path, attributes, k);
+			if (block == null)
+				continue;
+			final long[] data = (long[])block.getData();
+			final int offset = k * VALUES_PER_BLOCK;
+			for (int i = 0; i < data.length && offset + i < values.length(); ++i)
+				values.set(offset + i, data[i]);
+		}
+	}
+
+	/**
+	 * @return true if the sidecar did not exist before or was replaced
+	 */
+	public boolean isNew() {
+
+		return isNew;
+	}
+
+	/**
+	 * @return true if the target dataset was completely written
+	 */
+	public boolean isComplete() {
+
+		return isComplete;
+	}
+
+	/**
+	 * Mark the sidecar block that contains value {@code i} for the next
+	 * checkpoint.
+	 *
+	 * @param i
+	 */
+	protected void setDirty(final int i) {
+
+		dirty.set(i / VALUES_PER_BLOCK, 1);
+	}
+
+	/**
+	 * Write a checkpoint if the last one is older than the checkpoint
+	 * interval and no other thread is writing one.
+	 */
+	public void checkpointIfDue() {
+
+		final long t = System.currentTimeMillis();
+		if (t - lastCheckpoint.get() >= checkpointInterval && checkpointLock.tryLock()) {
+			try {
+				lastCheckpoint.set(t);
+				writeDirty();
+			} finally {
+				checkpointLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Write all changes.
+	 */
+	public void checkpoint() {
+
+		checkpointLock.lock();
+		try {
+			lastCheckpoint.set(System.currentTimeMillis());
+			writeDirty();
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	/**
+	 * Write all changes and mark the target dataset as completely written.
+	 */
+	public void complete() {
+
+		checkpoint();
+		synchronized (n5) {
+			((N5Writer)n5).setAttribute(path, "complete", true);
+		}
+		isComplete = true;
+	}
+
+	protected void writeDirty() {
+
+		for (int k = 0; k < dirty.length(); ++k) {
+			if (dirty.getAndSet(k, 0) == 0)
+				continue;
+			final int offset = k * VALUES_PER_BLOCK;
+			final int n = Math.min(VALUES_PER_BLOCK, values.length() - offset);
+			final long[] data = new long[n];
+			for (int i = 0; i < n; ++i)
+				data[i] = values.get(offset + i);
+			synchronized (n5) {
+				((N5Writer)n5).writeBlock(path, attributes, new LongArrayDataBlock(new int[] {n}, new long[] {k}, data));
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks over the linear indices of a block grid.  The indices are
+ * split into contiguous ranges, enough per thread to balance the load, but
+ * far fewer than blocks, to keep the number of futures small.
+ */
+public class BlockTasks {
+
+	/* ranges per thread */
+	protected static final long RANGES_PER_THREAD = 64;
+
+	/**
+	 * A task that processes the blocks with linear indices in
+	 * {@code [from, to)}.
+	 */
+	@FunctionalInterface
+	public static interface RangeTask {
+
+		public void run(final long from, final long to);
+	}
+
+	private BlockTasks() {}
+
+	/**
+	 * Submit one task per contiguous range of the linear indices
+	 * {@code [0, numBlocks)}.
+	 *
+	 * @param numBlocks
+	 * @param numThreads number of threads that run the tasks
+	 * @param task
+	 * @param exec
+	 * @return a future that completes when all tasks are done
+	 */
+	public static CompletableFuture<Void> runRanges(
+			final long numBlocks,
+			final int numThreads,
+			final RangeTask task,
+			final Executor exec) {
+
+		try {
+			return runRanges(numBlocks, numThreads, task, exec, null, 0);
+		} catch (final InterruptedException e) {
+			/* only waiting for a budget is interruptible */
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Submit one task per contiguous range of the linear indices
+	 * {@code [0, numBlocks)}.  With a memory budget, each task reserves
+	 * {@code taskBytes} before it is submitted and releases them when it is
+	 * done, so submitting waits while the budget is used up.  Tasks that
+	 * need more than the whole budget reserve all of it and run alone.
+	 *
+	 * @param numBlocks
+	 * @param numThreads number of threads that run the tasks
+	 * @param task
+	 * @param exec
+	 * @param budget may be null
+	 * @param taskBytes memory used by one task
+	 * @return a future that completes when all tasks are done
+	 * @throws InterruptedException
+	 */
+	public static CompletableFuture<Void> runRanges(
+			final long numBlocks,
+			final int numThreads,
+			final RangeTask task,
+			final Executor exec,
+			final MemoryBudget budget,
+			final long taskBytes) throws InterruptedException {
+
+		final long step = Math.max(1, numBlocks / (Math.max(1, numThreads) * RANGES_PER_THREAD));
+		final ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (long i = 0; i < numBlocks; i += step) {
+			final long from = i;
+			final long to = Math.min(numBlocks, i + step);
+			final long bytes = budget == null ? 0 : budget.acquire(Math.min(taskBytes, budget.getCapacity()));
+			final CompletableFuture<Void> future = CompletableFuture.runAsync(() -> task.run(from, to), exec);
+			futures.add(budget == null ? future : future.whenComplete((r, e) -> budget.release(bytes)));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+	}
+}
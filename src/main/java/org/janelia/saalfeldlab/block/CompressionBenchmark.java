@@ -0,0 +1,205 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.janelia.saalfeldlab.n5.blosc.BloscCompression;
+
+/**
+ * Measures compression ratio and encoding/ decoding speed of candidate
+ * {@link Compression compressions} on a sample of {@link DataBlock DataBlocks}
+ * and picks the best one for an {@link Objective}.
+ *
+ * Read and write cost are modeled as the time to decode/ encode a block plus
+ * the time to transfer its encoded bytes at a given storage bandwidth, so
+ * that fast storage favors fast codecs and slow storage favors small
+ * blocks.
+ */
+public class CompressionBenchmark {
+
+	public enum Objective {
+		/* smallest encoded size */
+		SIZE,
+		/* fastest read, i.e. transfer and decode */
+		READ,
+		/* fastest write, i.e. encode and transfer */
+		WRITE
+	}
+
+	public static class Result {
+
+		public final String name;
+		public final Compression compression;
+		public long numBytes;
+		public long numEncodedBytes;
+		public long encodeNanos;
+		public long decodeNanos;
+
+		public Result(final String name, final Compression compression) {
+
+			this.name = name;
+			this.compression = compression;
+		}
+
+		public double ratio() {
+
+			return numEncodedBytes == 0 ? 0 : (double)numBytes / numEncodedBytes;
+		}
+
+		public double encodeMBPerSecond() {
+
+			return encodeNanos == 0 ? 0 : numBytes / 1024.0 / 1024.0 / (encodeNanos / 1e9);
+		}
+
+		public double decodeMBPerSecond() {
+
+			return decodeNanos == 0 ? 0 : numBytes / 1024.0 / 1024.0 / (decodeNanos / 1e9);
+		}
+
+		/**
+		 * Cost in seconds for the sample.
+		 *
+		 * @param objective
+		 * @param bandwidth storage bandwidth in MB/s
+		 * @return
+		 */
+		public double cost(final Objective objective, final double bandwidth) {
+
+			final double transfer = numEncodedBytes / 1024.0 / 1024.0 / bandwidth;
+			switch (objective) {
+			case READ:
+				return transfer + decodeNanos / 1e9;
+			case WRITE:
+				return transfer + encodeNanos / 1e9;
+			default:
+				return numEncodedBytes;
+			}
+		}
+	}
+
+	protected final List<Result> results = new ArrayList<>();
+
+	/**
+	 * Add a candidate.
+	 *
+	 * @param name for the table
+	 * @param compression
+	 */
+	public void add(final String name, final Compression compression) {
+
+		results.add(new Result(name, compression));
+	}
+
+	/**
+	 * Add the compressions of the N5 core library with a range of
+	 * parameters and Blosc.
+	 */
+	public void addDefaults() {
+
+		add("raw", new RawCompression());
+		add("gzip 1", new GzipCompression(1));
+		add("gzip 6", new GzipCompression(6));
+		add("gzip 9", new GzipCompression(9));
+		add("lz4", new Lz4Compression());
+		add("bzip2", new Bzip2Compression());
+		add("xz", new XzCompression());
+		try {
+			add("blosc lz4", new BloscCompression("lz4", 5, BloscCompression.SHUFFLE, 0, 1));
+			add("blosc zstd", new BloscCompression("zstd", 5, BloscCompression.SHUFFLE, 0, 1));
+		} catch (final LinkageError e) {
+			/* native Blosc library not available */
+		}
+	}
+
+	/**
+	 * Remove candidates, e.g. those that the output format does not support.
+	 *
+	 * @param filter
+	 */
+	public void removeIf(final Predicate<Compression> filter) {
+
+		results.removeIf(result -> filter.test(result.compression));
+	}
+
+	/**
+	 * Encode and decode all sample blocks with all candidates.  Candidates
+	 * that fail (e.g. because a native library is missing) are removed.
+	 *
+	 * @param samples
+	 * @param datasetAttributes attributes of the samples, the compression is ignored
+	 * @param bytesPerElement
+	 */
+	public void run(final List<DataBlock<?>> samples, final DatasetAttributes datasetAttributes, final int bytesPerElement) {
+
+		final ArrayList<Result> failed = new ArrayList<>();
+		for (final Result result : results) {
+			final DatasetAttributes attributes = new DatasetAttributes(
+					datasetAttributes.getDimensions(),
+					datasetAttributes.getBlockSize(),
+					datasetAttributes.getDataType(),
+					result.compression);
+			try {
+				for (final DataBlock<?> sample : samples) {
+					long t = System.nanoTime();
+					final byte[] bytes = RawBlocks.encode(attributes, sample);
+					result.encodeNanos += System.nanoTime() - t;
+					t = System.nanoTime();
+					RawBlocks.decode(bytes, attributes, sample.getGridPosition());
+					result.decodeNanos += System.nanoTime() - t;
+					result.numBytes += (long)sample.getNumElements() * bytesPerElement;
+					result.numEncodedBytes += bytes.length;
+				}
+			} catch (final Exception | LinkageError e) {
+				failed.add(result);
+			}
+		}
+		results.removeAll(failed);
+	}
+
+	public List<Result> getResults() {
+
+		return results;
+	}
+
+	/**
+	 * @param objective
+	 * @param bandwidth storage bandwidth in MB/s
+	 * @return the best candidate or null if there are none
+	 */
+	public Result best(final Objective objective, final double bandwidth) {
+
+		Result best = null;
+		for (final Result result : results)
+			if (best == null || result.cost(objective, bandwidth) < best.cost(objective, bandwidth))
+				best = result;
+		return best;
+	}
+
+	public void print(final PrintStream out, final Result best, final String indent) {
+
+		out.println(indent + String.format(Locale.ROOT, "%-12s %8s %14s %14s", "compression", "ratio", "encode MB/s", "decode MB/s"));
+		for (final Result result : results)
+			out.println(indent + String.format(
+					Locale.ROOT,
+					"%-12s %8.2f %14.1f %14.1f%s",
+					result.name,
+					result.ratio(),
+					result.encodeMBPerSecond(),
+					result.decodeMBPerSecond(),
+					result == best ? "  *" : ""));
+	}
+}
@@ -0,0 +1,595 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+/**
+ * Static helpers to create and manipulate {@link DataBlock DataBlocks}
+ * directly on their primitive arrays.
+ */
+public class DataBlocks {
+
+	private DataBlocks() {}
+
+	/**
+	 * Create a {@link DataBlock} for a primitive array.
+	 *
+	 * @param size
+	 * @param gridPosition
+	 * @param data byte[], short[], int[], long[], float[], or double[]
+	 * @return
+	 */
+	public static DataBlock<?> createDataBlock(final int[] size, final long[] gridPosition, final Object data) {
+
+		if (data instanceof byte[])
+			return new ByteArrayDataBlock(size, gridPosition, (byte[])data);
+		else if (data instanceof short[])
+			return new ShortArrayDataBlock(size, gridPosition, (short[])data);
+		else if (data instanceof int[])
+			return new IntArrayDataBlock(size, gridPosition, (int[])data);
+		else if (data instanceof long[])
+			return new LongArrayDataBlock(size, gridPosition, (long[])data);
+		else if (data instanceof float[])
+			return new FloatArrayDataBlock(size, gridPosition, (float[])data);
+		else if (data instanceof double[])
+			return new DoubleArrayDataBlock(size, gridPosition, (double[])data);
+		else
+			throw new IllegalArgumentException("Unsupported data " + (data == null ? null : data.getClass()));
+	}
+
+	/**
+	 * Read a primitive array of the given {@link DataType} as double values,
+	 * unsigned types are converted as unsigned.
+	 *
+	 * @param data
+	 * @param dataType
+	 * @return
+	 */
+	public static double[] toDoubles(final Object data, final DataType dataType) {
+
+		final double[] values;
+		switch (dataType) {
+		case UINT8: {
+			final byte[] a = (byte[])data;
+			values = new double[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = a[i] & 0xff;
+			break;
+		}
+		case INT8: {
+			final byte[] a = (byte[])data;
+			values = new double[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = a[i];
+			break;
+		}
+		case UINT16: {
+			final short[] a = (short[])data;
+			values = new double[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = a[i] & 0xffff;
+			break;
+		}
+		case INT16: {
+			final short[] a = (short[])data;
+			values = new double[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = a[i];
+			break;
+		}
+		case UINT32: {
+			final int[] a = (int[])data;
+			values = new double[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = a[i] & 0xffffffffL;
+			break;
+		}
+		case INT32: {
+			final int[] a = (int[])data;
+			values = new double[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = a[i];
+			break;
+		}
+		case UINT64: {
+			final long[] a = (long[])data;
+			values = new double[a.length];
+			for (int i = 0; i < a.length; ++i) {
+				final long v = a[i];
+				values[i] = v >= 0 ? v : (double)(v >>> 1) * 2.0 + (v & 1);
+			}
+			break;
+		}
+		case INT64: {
+			final long[] a = (long[])data;
+			values = new double[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = a[i];
+			break;
+		}
+		case FLOAT32: {
+			final float[] a = (float[])data;
+			values = new double[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = a[i];
+			break;
+		}
+		case FLOAT64:
+			values = ((double[])data).clone();
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported data type " + dataType);
+		}
+		return values;
+	}
+
+	protected static long clamp(final double v, final double min, final double max) {
+
+		if (v < min)
+			return (long)min;
+		else if (v > max)
+			return (long)max;
+		else
+			return Math.round(v);
+	}
+
+	/**
+	 * Convert double values into a primitive array of the given
+	 * {@link DataType}.  Integer types are rounded and clamped to their
+	 * range, NaN becomes 0.
+	 *
+	 * @param values
+	 * @param dataType
+	 * @return
+	 */
+	public static Object fromDoubles(final double[] values, final DataType dataType) {
+
+		switch (dataType) {
+		case UINT8: {
+			final byte[] a = new byte[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = (byte)clamp(values[i], 0, 0xff);
+			return a;
+		}
+		case INT8: {
+			final byte[] a = new byte[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = (byte)clamp(values[i], Byte.MIN_VALUE, Byte.MAX_VALUE);
+			return a;
+		}
+		case UINT16: {
+			final short[] a = new short[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = (short)clamp(values[i], 0, 0xffff);
+			return a;
+		}
+		case INT16: {
+			final short[] a = new short[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = (short)clamp(values[i], Short.MIN_VALUE, Short.MAX_VALUE);
+			return a;
+		}
+		case UINT32: {
+			final int[] a = new int[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = (int)clamp(values[i], 0, 0xffffffffL);
+			return a;
+		}
+		case INT32: {
+			final int[] a = new int[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = (int)clamp(values[i], Integer.MIN_VALUE, Integer.MAX_VALUE);
+			return a;
+		}
+		case UINT64: {
+			final long[] a = new long[values.length];
+			for (int i = 0; i < a.length; ++i) {
+				final double v = values[i];
+				if (!(v > 0))
+					a[i] = 0;
+				else if (v < 0x1p63)
+					a[i] = Math.round(v);
+				else if (v < 0x1p64)
+					a[i] = (long)(v - 0x1p63) + Long.MIN_VALUE;
+				else
+					a[i] = -1L;
+			}
+			return a;
+		}
+		case INT64: {
+			final long[] a = new long[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = Math.round(values[i]);
+			return a;
+		}
+		case FLOAT32: {
+			final float[] a = new float[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = (float)values[i];
+			return a;
+		}
+		case FLOAT64:
+			return values.clone();
+		default:
+			throw new IllegalArgumentException("Unsupported data type " + dataType);
+		}
+	}
+
+	/**
+	 * Read a primitive array of the given {@link DataType} as long values,
+	 * unsigned types are converted as unsigned.  Floating point values are
+	 * represented by their bits, so this is only useful for comparisons.
+	 *
+	 * @param data
+	 * @param dataType
+	 * @return
+	 */
+	public static long[] toLongs(final Object data, final DataType dataType) {
+
+		final long[] values;
+		switch (dataType) {
+		case UINT8:
+		case INT8: {
+			final byte[] a = (byte[])data;
+			final int mask = dataType == DataType.UINT8 ? 0xff : -1;
+			values = new long[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = a[i] & mask;
+			break;
+		}
+		case UINT16:
+		case INT16: {
+			final short[] a = (short[])data;
+			final int mask = dataType == DataType.UINT16 ? 0xffff : -1;
+			values = new long[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = a[i] & mask;
+			break;
+		}
+		case UINT32:
+		case INT32: {
+			final int[] a = (int[])data;
+			final long mask = dataType == DataType.UINT32 ? 0xffffffffL : -1L;
+			values = new long[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = a[i] & mask;
+			break;
+		}
+		case UINT64:
+		case INT64:
+			values = ((long[])data).clone();
+			break;
+		case FLOAT32: {
+			final float[] a = (float[])data;
+			values = new long[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = Float.floatToRawIntBits(a[i]);
+			break;
+		}
+		case FLOAT64: {
+			final double[] a = (double[])data;
+			values = new long[a.length];
+			for (int i = 0; i < a.length; ++i)
+				values[i] = Double.doubleToRawLongBits(a[i]);
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Unsupported data type " + dataType);
+		}
+		return values;
+	}
+
+	/**
+	 * Inverse of {@link #toLongs(Object, DataType)}, integer values are
+	 * truncated to the width of the type.
+	 *
+	 * @param values
+	 * @param dataType
+	 * @return
+	 */
+	public static Object fromLongs(final long[] values, final DataType dataType) {
+
+		switch (dataType) {
+		case UINT8:
+		case INT8: {
+			final byte[] a = new byte[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = (byte)values[i];
+			return a;
+		}
+		case UINT16:
+		case INT16: {
+			final short[] a = new short[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = (short)values[i];
+			return a;
+		}
+		case UINT32:
+		case INT32: {
+			final int[] a = new int[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = (int)values[i];
+			return a;
+		}
+		case UINT64:
+		case INT64:
+			return values.clone();
+		case FLOAT32: {
+			final float[] a = new float[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = Float.intBitsToFloat((int)values[i]);
+			return a;
+		}
+		case FLOAT64: {
+			final double[] a = new double[values.length];
+			for (int i = 0; i < a.length; ++i)
+				a[i] = Double.longBitsToDouble(values[i]);
+			return a;
+		}
+		default:
+			throw new IllegalArgumentException("Unsupported data type " + dataType);
+		}
+	}
+
+	/**
+	 * Number of bytes of one element of the given {@link DataType}.
+	 *
+	 * @param dataType
+	 * @return
+	 */
+	public static int bytesPerElement(final DataType dataType) {
+
+		switch (dataType) {
+		case UINT8:
+		case INT8:
+			return 1;
+		case UINT16:
+		case INT16:
+			return 2;
+		case UINT32:
+		case INT32:
+		case FLOAT32:
+			return 4;
+		case UINT64:
+		case INT64:
+		case FLOAT64:
+			return 8;
+		default:
+			throw new IllegalArgumentException("Unsupported data type " + dataType);
+		}
+	}
+
+	/**
+	 * Whether all elements of a primitive array are 0, the fill value of N5
+	 * and of the Zarr arrays that n5-copy creates, i.e. whether a missing
+	 * block reads back as the same values.  Floating point values are
+	 * compared by their bits, so -0.0 is not empty.
+	 *
+	 * @param data byte[], short[], int[], long[], float[], or double[]
+	 * @return
+	 */
+	public static boolean isEmpty(final Object data) {
+
+		if (data instanceof byte[]) {
+			for (final byte v : (byte[])data)
+				if (v != 0) return false;
+		} else if (data instanceof short[]) {
+			for (final short v : (short[])data)
+				if (v != 0) return false;
+		} else if (data instanceof int[]) {
+			for (final int v : (int[])data)
+				if (v != 0) return false;
+		} else if (data instanceof long[]) {
+			for (final long v : (long[])data)
+				if (v != 0) return false;
+		} else if (data instanceof float[]) {
+			for (final float v : (float[])data)
+				if (Float.floatToRawIntBits(v) != 0) return false;
+		} else if (data instanceof double[]) {
+			for (final double v : (double[])data)
+				if (Double.doubleToRawLongBits(v) != 0) return false;
+		} else
+			return false;
+
+		return true;
+	}
+
+	/**
+	 * Copy the intersection of two blocks from one primitive array into
+	 * another of the same type, row by row.  Both arrays are flattened in
+	 * N5 order (x fastest).
+	 *
+	 * @param src source array
+	 * @param srcSize size of the source block
+	 * @param srcMin min of the source block in dataset coordinates
+	 * @param dst target array
+	 * @param dstSize size of the target block
+	 * @param dstMin min of the target block in dataset coordinates
+	 */
+	public static void copyIntersection(
+			final Object src,
+			final int[] srcSize,
+			final long[] srcMin,
+			final Object dst,
+			final int[] dstSize,
+			final long[] dstMin) {
+
+		final int n = srcSize.length;
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		for (int d = 0; d < n; ++d) {
+			min[d] = Math.max(srcMin[d], dstMin[d]);
+			max[d] = Math.min(srcMin[d] + srcSize[d], dstMin[d] + dstSize[d]) - 1;
+			if (max[d] < min[d])
+				return;
+		}
+
+		final int rowLength = (int)(max[0] - min[0] + 1);
+		final long[] position = min.clone();
+		while (true) {
+			int srcIndex = 0;
+			int dstIndex = 0;
+			for (int d = n - 1; d >= 0; --d) {
+				srcIndex = srcIndex * srcSize[d] + (int)(position[d] - srcMin[d]);
+				dstIndex = dstIndex * dstSize[d] + (int)(position[d] - dstMin[d]);
+			}
+			System.arraycopy(src, srcIndex, dst, dstIndex, rowLength);
+
+			int d = 1;
+			for (; d < n; ++d) {
+				if (++position[d] <= max[d])
+					break;
+				position[d] = min[d];
+			}
+			if (d >= n)
+				break;
+		}
+	}
+
+	/**
+	 * Permute an array of per dimension values such that
+	 * {@code permuted[d] = array[axes[d]]}.
+	 *
+	 * @param array
+	 * @param axes
+	 * @return
+	 */
+	public static long[] permute(final long[] array, final int[] axes) {
+
+		final long[] permuted = new long[axes.length];
+		for (int d = 0; d < axes.length; ++d)
+			permuted[d] = array[axes[d]];
+		return permuted;
+	}
+
+	public static int[] permute(final int[] array, final int[] axes) {
+
+		final int[] permuted = new int[axes.length];
+		for (int d = 0; d < axes.length; ++d)
+			permuted[d] = array[axes[d]];
+		return permuted;
+	}
+
+	public static double[] permute(final double[] array, final int[] axes) {
+
+		final double[] permuted = new double[axes.length];
+		for (int d = 0; d < axes.length; ++d)
+			permuted[d] = array[axes[d]];
+		return permuted;
+	}
+
+	/**
+	 * Inverse of {@link #permute(long[], int[])}.
+	 *
+	 * @param permuted
+	 * @param axes
+	 * @return
+	 */
+	public static long[] unpermute(final long[] permuted, final int[] axes) {
+
+		final long[] array = new long[axes.length];
+		for (int d = 0; d < axes.length; ++d)
+			array[axes[d]] = permuted[d];
+		return array;
+	}
+
+	/**
+	 * Transpose a primitive array flattened in N5 order (x fastest) such that
+	 * dimension d of the result is dimension {@code axes[d]} of the source.
+	 * The result is written in order, reading the source with the stride of
+	 * the dimension that becomes x.
+	 *
+	 * @param src byte[], short[], int[], long[], float[], or double[]
+	 * @param srcSize size of the source block
+	 * @param axes
+	 * @return the transposed array of size {@link #permute(int[], int[])
+	 *         permute(srcSize, axes)}
+	 */
+	public static Object transpose(final Object src, final int[] srcSize, final int[] axes) {
+
+		final int n = srcSize.length;
+		final int[] srcStrides = new int[n];
+		srcStrides[0] = 1;
+		for (int d = 1; d < n; ++d)
+			srcStrides[d] = srcStrides[d - 1] * srcSize[d - 1];
+		final int[] dstSize = permute(srcSize, axes);
+
+		/* source index of the first element of every target row */
+		final int rowLength = dstSize[0];
+		final int numRows = rowLength == 0 ? 0 : DataBlock.getNumElements(srcSize) / rowLength;
+		final int[] rowStarts = new int[numRows];
+		final int[] position = new int[n];
+		for (int r = 0; r < numRows; ++r) {
+			int start = 0;
+			for (int d = 1; d < n; ++d)
+				start += position[d] * srcStrides[axes[d]];
+			rowStarts[r] = start;
+			for (int d = 1; d < n; ++d) {
+				if (++position[d] < dstSize[d])
+					break;
+				position[d] = 0;
+			}
+		}
+
+		final int stride = srcStrides[axes[0]];
+		if (src instanceof byte[]) {
+			final byte[] a = (byte[])src;
+			final byte[] b = new byte[a.length];
+			int j = 0;
+			for (final int start : rowStarts)
+				for (int x = 0, i = start; x < rowLength; ++x, i += stride)
+					b[j++] = a[i];
+			return b;
+		} else if (src instanceof short[]) {
+			final short[] a = (short[])src;
+			final short[] b = new short[a.length];
+			int j = 0;
+			for (final int start : rowStarts)
+				for (int x = 0, i = start; x < rowLength; ++x, i += stride)
+					b[j++] = a[i];
+			return b;
+		} else if (src instanceof int[]) {
+			final int[] a = (int[])src;
+			final int[] b = new int[a.length];
+			int j = 0;
+			for (final int start : rowStarts)
+				for (int x = 0, i = start; x < rowLength; ++x, i += stride)
+					b[j++] = a[i];
+			return b;
+		} else if (src instanceof long[]) {
+			final long[] a = (long[])src;
+			final long[] b = new long[a.length];
+			int j = 0;
+			for (final int start : rowStarts)
+				for (int x = 0, i = start; x < rowLength; ++x, i += stride)
+					b[j++] = a[i];
+			return b;
+		} else if (src instanceof float[]) {
+			final float[] a = (float[])src;
+			final float[] b = new float[a.length];
+			int j = 0;
+			for (final int start : rowStarts)
+				for (int x = 0, i = start; x < rowLength; ++x, i += stride)
+					b[j++] = a[i];
+			return b;
+		} else if (src instanceof double[]) {
+			final double[] a = (double[])src;
+			final double[] b = new double[a.length];
+			int j = 0;
+			for (final int start : rowStarts)
+				for (int x = 0, i = start; x < rowLength; ++x, i += stride)
+					b[j++] = a[i];
+			return b;
+		} else
+			throw new IllegalArgumentException("Unsupported data " + (src == null ? null : src.getClass()));
+	}
+}
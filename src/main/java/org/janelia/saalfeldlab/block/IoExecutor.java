@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking block reads and writes separately from the CPU sized pool
+ * that decodes and encodes them, so that many requests can be in flight on
+ * high latency storage like S3, Google Cloud Storage, or NFS.
+ *
+ * On Java 21 or later, tasks can run on virtual threads, at most
+ * {@code concurrency} at a time.  Otherwise, or if virtual threads are not
+ * requested, they run on a pool of {@code concurrency} daemon threads.
+ * Tasks must not wait for other tasks of the same executor.
+ */
+public class IoExecutor implements Executor {
+
+	protected final int concurrency;
+	protected final ExecutorService exec;
+	protected final Semaphore permits;
+
+	public IoExecutor(final int concurrency, final boolean virtualThreads) {
+
+		this.concurrency = concurrency;
+		final ExecutorService virtualExec = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+		if (virtualExec == null) {
+			final AtomicInteger i = new AtomicInteger();
+			final ThreadFactory threadFactory = runnable -> {
+				final Thread thread = new Thread(runnable, "n5-io-" + i.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			};
+			exec = Executors.newFixedThreadPool(concurrency, threadFactory);
+			permits = null;
+		} else {
+			exec = virtualExec;
+			permits = new Semaphore(concurrency);
+		}
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor() if it is available, i.e.
+	 * on Java 21 or later.
+	 *
+	 * @return the executor or null
+	 */
+	protected static ExecutorService newVirtualThreadPerTaskExecutor() {
+
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (final ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	public int getConcurrency() {
+
+		return concurrency;
+	}
+
+	public boolean isVirtual() {
+
+		return permits != null;
+	}
+
+	@Override
+	public void execute(final Runnable task) {
+
+		if (permits == null)
+			exec.execute(task);
+		else
+			exec.execute(() -> {
+				permits.acquireUninterruptibly();
+				try {
+					task.run();
+				} finally {
+					permits.release();
+				}
+			});
+	}
+
+	public void shutdown() {
+
+		exec.shutdown();
+	}
+}
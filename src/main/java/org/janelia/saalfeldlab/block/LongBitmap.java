@@ -0,0 +1,274 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.function.LongConsumer;
+
+/**
+ * A compressed set of long values for dense ranges like the IDs of a
+ * label volume, organized like a Roaring bitmap: values are grouped by
+ * their upper 48 bits into containers for the lower 16 bits.  A container
+ * stores up to 4096 values as a sorted array (2 bytes per value) and more
+ * as a bitmap of 2^16 bits (8 KB), so dense ranges take about 1 bit per
+ * possible value instead of 16 or more bytes per value in a hash set.
+ * Bitmaps of several sets are merged container by container with word-wise
+ * OR.
+ *
+ * Not thread safe.
+ */
+public class LongBitmap {
+
+	protected static final int ARRAY_MAX = 4096;
+
+	protected static final int BITMAP_WORDS = 1 << 10;
+
+	protected static final class Container {
+
+		/* sorted lower 16 bits, null for bitmaps */
+		protected char[] values = new char[4];
+
+		/* 2^16 bits, null for arrays */
+		protected long[] bits = null;
+
+		protected int cardinality = 0;
+
+		protected Container copy() {
+
+			final Container copy = new Container();
+			copy.values = values == null ? null : values.clone();
+			copy.bits = bits == null ? null : bits.clone();
+			copy.cardinality = cardinality;
+			return copy;
+		}
+
+		protected boolean add(final char low) {
+
+			if (bits != null) {
+				final int word = low >>> 6;
+				final long mask = 1L << low;
+				if ((bits[word] & mask) != 0)
+					return false;
+				bits[word] |= mask;
+				++cardinality;
+				return true;
+			}
+
+			final int i = Arrays.binarySearch(values, 0, cardinality, low);
+			if (i >= 0)
+				return false;
+			if (cardinality == ARRAY_MAX) {
+				toBitmap();
+				return add(low);
+			}
+			final int insert = -i - 1;
+			if (cardinality == values.length)
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX, 2 * values.length));
+			System.arraycopy(values, insert, values, insert + 1, cardinality - insert);
+			values[insert] = low;
+			++cardinality;
+			return true;
+		}
+
+		protected boolean contains(final char low) {
+
+			if (bits != null)
+				return (bits[low >>> 6] & (1L << low)) != 0;
+			else
+				return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+		}
+
+		protected void toBitmap() {
+
+			bits = new long[BITMAP_WORDS];
+			for (int i = 0; i < cardinality; ++i)
+				bits[values[i] >>> 6] |= 1L << values[i];
+			values = null;
+		}
+
+		protected void or(final Container other) {
+
+			if (other.bits != null) {
+				if (bits == null)
+					toBitmap();
+				int c = 0;
+				for (int w = 0; w < BITMAP_WORDS; ++w) {
+					bits[w] |= other.bits[w];
+					c += Long.bitCount(bits[w]);
+				}
+				cardinality = c;
+			} else if (bits != null) {
+				for (int i = 0; i < other.cardinality; ++i)
+					add(other.values[i]);
+			} else {
+				/* merge sorted arrays */
+				final char[] merged = new char[cardinality + other.cardinality];
+				int i = 0, j = 0, k = 0;
+				while (i < cardinality && j < other.cardinality) {
+					final char a = values[i];
+					final char b = other.values[j];
+					if (a < b) {
+						merged[k++] = a;
+						++i;
+					} else if (b < a) {
+						merged[k++] = b;
+						++j;
+					} else {
+						merged[k++] = a;
+						++i;
+						++j;
+					}
+				}
+				while (i < cardinality)
+					merged[k++] = values[i++];
+				while (j < other.cardinality)
+					merged[k++] = other.values[j++];
+				values = merged;
+				cardinality = k;
+				if (cardinality > ARRAY_MAX)
+					toBitmap();
+			}
+		}
+
+		protected long sizeInBytes() {
+
+			return 32 + (bits == null ? 2L * values.length : 8L * bits.length);
+		}
+	}
+
+	/* containers by the upper 48 bits */
+	protected final HashMap<Long, Container> containers = new HashMap<>();
+
+	/* values of labels are clustered, most adds go to the last container */
+	protected long lastKey;
+	protected Container lastContainer = null;
+
+	protected long size = 0;
+
+	/**
+	 * The upper 48 bits of a value that select its container, such that
+	 * values with equal keys are in a range of 2^16.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static long key(final long value) {
+
+		return value >> 16;
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value was not in the set
+	 */
+	public boolean add(final long value) {
+
+		final long key = key(value);
+		if (lastContainer == null || key != lastKey) {
+			lastContainer = containers.computeIfAbsent(key, k -> new Container());
+			lastKey = key;
+		}
+		if (lastContainer.add((char)value)) {
+			++size;
+			return true;
+		} else
+			return false;
+	}
+
+	public boolean contains(final long value) {
+
+		final Container container = containers.get(key(value));
+		return container != null && container.contains((char)value);
+	}
+
+	/**
+	 * Add all values of another set.
+	 *
+	 * @param other
+	 */
+	public void or(final LongBitmap other) {
+
+		for (final Entry<Long, Container> entry : other.containers.entrySet()) {
+			final Container container = containers.get(entry.getKey());
+			if (container == null) {
+				containers.put(entry.getKey(), entry.getValue().copy());
+				size += entry.getValue().cardinality;
+			} else {
+				size -= container.cardinality;
+				container.or(entry.getValue());
+				size += container.cardinality;
+			}
+		}
+	}
+
+	public long size() {
+
+		return size;
+	}
+
+	/**
+	 * @return all values in ascending order
+	 */
+	public long[] toArray() {
+
+		if (size > Integer.MAX_VALUE - 8)
+			throw new IllegalStateException("Too many values for an array: " + size);
+
+		final long[] array = new long[(int)size];
+		final int[] i = new int[1];
+		forEach(false, value -> array[i[0]++] = value);
+		return array;
+	}
+
+	/**
+	 * Pass all values in ascending order to a consumer, without copying
+	 * them into an array.
+	 *
+	 * @param isUnsigned order values as unsigned 64 bit integers
+	 * @param consumer
+	 */
+	public void forEach(final boolean isUnsigned, final LongConsumer consumer) {
+
+		/* flipping the sign bit sorts unsigned keys with a signed sort */
+		final long flip = isUnsigned ? Long.MIN_VALUE : 0;
+		final long[] keys = new long[containers.size()];
+		int n = 0;
+		for (final Long key : containers.keySet())
+			keys[n++] = key ^ flip;
+		Arrays.sort(keys);
+
+		for (final long flippedKey : keys) {
+			final long key = flippedKey ^ flip;
+			final Container container = containers.get(key);
+			final long high = key << 16;
+			if (container.bits == null) {
+				for (int j = 0; j < container.cardinality; ++j)
+					consumer.accept(high | container.values[j]);
+			} else {
+				for (int w = 0; w < BITMAP_WORDS; ++w) {
+					long word = container.bits[w];
+					while (word != 0) {
+						consumer.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+						word &= word - 1;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Approximate memory used by the containers.
+	 *
+	 * @return
+	 */
+	public long sizeInBytes() {
+
+		long bytes = 0;
+		for (final Container container : containers.values())
+			bytes += container.sizeInBytes() + 48;
+		return bytes;
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+/**
+ * A budget of bytes for work in flight.  Producers {@link #acquire(long)
+ * acquire} the memory that a task will need before they submit it and
+ * block while the budget is exhausted, tasks {@link #release(long) release}
+ * it when they are done.
+ *
+ * Requests larger than the whole budget are rejected, producers have to
+ * split their work such that every task fits into the budget, and request
+ * the whole budget for work that cannot be split any further, which then
+ * runs alone.
+ */
+public class MemoryBudget {
+
+	protected final long capacity;
+	protected long available;
+
+	public MemoryBudget(final long capacity) {
+
+		this.capacity = capacity;
+		available = capacity;
+	}
+
+	public long getCapacity() {
+
+		return capacity;
+	}
+
+	public synchronized long getAvailable() {
+
+		return available;
+	}
+
+	/**
+	 * Wait until {@code bytes} are available and take them.
+	 *
+	 * @param bytes
+	 * @return the number of bytes taken, to be passed to {@link #release(long)}
+	 * @throws InterruptedException
+	 * @throws IllegalArgumentException if more than the whole budget is requested
+	 */
+	public synchronized long acquire(final long bytes) throws InterruptedException {
+
+		if (bytes > capacity)
+			throw new IllegalArgumentException("Requested " + bytes + " bytes from a memory budget of " + capacity + " bytes.");
+		final long n = Math.max(0, bytes);
+		while (available < n)
+			wait();
+		available -= n;
+		return n;
+	}
+
+	public synchronized void release(final long bytes) {
+
+		available += bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Parse a number of bytes with an optional unit suffix k, m, g, or t
+	 * (binary), e.g. 8g.
+	 *
+	 * @param string
+	 * @return
+	 */
+	public static long parse(final String string) {
+
+		final String s = string.trim().toLowerCase();
+		final char unit = s.isEmpty() ? ' ' : s.charAt(s.length() - 1);
+		final int shift;
+		switch (unit) {
+		case 'k':
+			shift = 10;
+			break;
+		case 'm':
+			shift = 20;
+			break;
+		case 'g':
+			shift = 30;
+			break;
+		case 't':
+			shift = 40;
+			break;
+		default:
+			return Long.parseLong(s);
+		}
+		return Math.round(Double.parseDouble(s.substring(0, s.length() - 1)) * (1L << shift));
+	}
+}
@@ -0,0 +1,271 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects throughput statistics of block-wise tools from many threads and
+ * periodically reports blocks/s, compressed and uncompressed MB/s, the
+ * share of time spent in reading, decoding, encoding, and writing, and an
+ * estimate of the remaining time.
+ *
+ * Reports are printed to {@link System#err} so that they do not interfere
+ * with results printed to {@link System#out}, and are optionally appended
+ * as JSON lines to a file for machine consumption.
+ *
+ * Phase times are summed over all threads, i.e. they are thread seconds,
+ * not wall clock seconds.  Phases that a backend does not expose
+ * separately (e.g. decoding in HDF5) are attributed to the enclosing phase.
+ */
+public class ProgressReporter implements Closeable {
+
+	public enum Phase {
+		READ, DECODE, ENCODE, WRITE
+	}
+
+	protected static final double MB = 1024.0 * 1024.0;
+
+	protected final String name;
+	protected final PrintStream out;
+	protected final PrintWriter json;
+	protected final ScheduledExecutorService scheduler;
+
+	protected final long startTime = System.nanoTime();
+	protected final AtomicLong totalBlocks = new AtomicLong();
+	protected final LongAdder numBlocks = new LongAdder();
+	protected final LongAdder bytesRead = new LongAdder();
+	protected final LongAdder bytesWritten = new LongAdder();
+	protected final LongAdder bytesUncompressed = new LongAdder();
+	protected final LongAdder[] nanos = new LongAdder[Phase.values().length];
+
+	/**
+	 *
+	 * @param name of the tool, e.g. n5-copy
+	 * @param interval between reports in seconds, no periodic reports if &lt;= 0
+	 * @param jsonPath file to append JSON lines to, may be null
+	 * @throws IOException
+	 */
+	public ProgressReporter(final String name, final double interval, final String jsonPath) throws IOException {
+
+		this.name = name;
+		out = System.err;
+		json = jsonPath == null ? null : new PrintWriter(new FileWriter(jsonPath, true));
+		for (int i = 0; i < nanos.length; ++i)
+			nanos[i] = new LongAdder();
+
+		if (interval > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread thread = new Thread(r, name + "-progress");
+				thread.setDaemon(true);
+				return thread;
+			});
+			final long ms = Math.max(1, Math.round(interval * 1000));
+			scheduler.scheduleAtFixedRate(() -> report(false), ms, ms, TimeUnit.MILLISECONDS);
+		} else
+			scheduler = null;
+	}
+
+	/**
+	 * A reporter that only collects statistics.
+	 */
+	public ProgressReporter() {
+
+		name = null;
+		out = null;
+		json = null;
+		scheduler = null;
+		for (int i = 0; i < nanos.length; ++i)
+			nanos[i] = new LongAdder();
+	}
+
+	/**
+	 * Add to the number of blocks that are expected in total, used for the
+	 * ETA.
+	 *
+	 * @param n
+	 */
+	public void addTotalBlocks(final long n) {
+
+		totalBlocks.addAndGet(n);
+	}
+
+	public void addBlocks(final long n) {
+
+		numBlocks.add(n);
+	}
+
+	public void addBytesRead(final long n) {
+
+		bytesRead.add(n);
+	}
+
+	public void addBytesWritten(final long n) {
+
+		bytesWritten.add(n);
+	}
+
+	public void addBytesUncompressed(final long n) {
+
+		bytesUncompressed.add(n);
+	}
+
+	/**
+	 * @return a timestamp to be passed to {@link #stop(Phase, long)}
+	 */
+	public long start() {
+
+		return System.nanoTime();
+	}
+
+	/**
+	 * Add the time since {@code start} to {@code phase}.
+	 *
+	 * @param phase
+	 * @param start as returned by {@link #start()}
+	 */
+	public void stop(final Phase phase, final long start) {
+
+		nanos[phase.ordinal()].add(System.nanoTime() - start);
+	}
+
+	public long getNumBlocks() {
+
+		return numBlocks.sum();
+	}
+
+	public long getTotalBlocks() {
+
+		return totalBlocks.get();
+	}
+
+	public long getBytesRead() {
+
+		return bytesRead.sum();
+	}
+
+	public long getBytesWritten() {
+
+		return bytesWritten.sum();
+	}
+
+	public long getBytesUncompressed() {
+
+		return bytesUncompressed.sum();
+	}
+
+	public double getSeconds(final Phase phase) {
+
+		return nanos[phase.ordinal()].sum() / 1e9;
+	}
+
+	/**
+	 * Print a report and append it to the JSON lines file if any.
+	 *
+	 * @param last whether this is the final report
+	 */
+	public synchronized void report(final boolean last) {
+
+		if (out == null && json == null)
+			return;
+
+		final double elapsed = (System.nanoTime() - startTime) / 1e9;
+		final long blocks = getNumBlocks();
+		final long total = getTotalBlocks();
+		final long read = getBytesRead();
+		final long written = getBytesWritten();
+		final long uncompressed = getBytesUncompressed();
+		final double blocksPerSecond = elapsed > 0 ? blocks / elapsed : 0;
+		final double eta = blocks > 0 && total > blocks ? (total - blocks) / blocksPerSecond : 0;
+
+		double phaseSum = 0;
+		final double[] seconds = new double[nanos.length];
+		for (final Phase phase : Phase.values()) {
+			seconds[phase.ordinal()] = getSeconds(phase);
+			phaseSum += seconds[phase.ordinal()];
+		}
+
+		if (out != null) {
+			final StringBuilder line = new StringBuilder(name);
+			line.append(last ? " done: " : ": ");
+			line.append(blocks);
+			if (total > 0)
+				line.append(String.format(Locale.ROOT, "/%d blocks (%.1f%%)", total, 100.0 * blocks / total));
+			else
+				line.append(" blocks");
+			line.append(String.format(Locale.ROOT, ", %.1f blocks/s", blocksPerSecond));
+			if (read > 0)
+				line.append(String.format(Locale.ROOT, ", read %.1f MB/s", read / MB / elapsed));
+			if (written > 0)
+				line.append(String.format(Locale.ROOT, ", written %.1f MB/s", written / MB / elapsed));
+			line.append(String.format(Locale.ROOT, ", uncompressed %.1f MB/s", uncompressed / MB / elapsed));
+			if (phaseSum > 0) {
+				line.append(", time");
+				for (final Phase phase : Phase.values())
+					if (seconds[phase.ordinal()] > 0)
+						line.append(String.format(Locale.ROOT, " %s %.0f%%", phase.name().toLowerCase(), 100.0 * seconds[phase.ordinal()] / phaseSum));
+			}
+			line.append(", elapsed ").append(formatSeconds(elapsed));
+			if (!last && eta > 0)
+				line.append(", ETA ").append(formatSeconds(eta));
+			out.println(line);
+		}
+
+		if (json != null) {
+			final StringBuilder line = new StringBuilder("{");
+			line.append("\"tool\":\"").append(name).append('"');
+			line.append(",\"final\":").append(last);
+			line.append(",\"elapsed_s\":").append(format(elapsed));
+			line.append(",\"blocks\":").append(blocks);
+			line.append(",\"total_blocks\":").append(total);
+			line.append(",\"blocks_per_s\":").append(format(blocksPerSecond));
+			line.append(",\"bytes_read\":").append(read);
+			line.append(",\"bytes_written\":").append(written);
+			line.append(",\"bytes_uncompressed\":").append(uncompressed);
+			line.append(",\"read_mb_per_s\":").append(format(read / MB / elapsed));
+			line.append(",\"written_mb_per_s\":").append(format(written / MB / elapsed));
+			line.append(",\"uncompressed_mb_per_s\":").append(format(uncompressed / MB / elapsed));
+			for (final Phase phase : Phase.values())
+				line.append(",\"").append(phase.name().toLowerCase()).append("_s\":").append(format(seconds[phase.ordinal()]));
+			line.append(",\"eta_s\":").append(format(eta));
+			line.append('}');
+			json.println(line);
+			json.flush();
+		}
+	}
+
+	protected static String format(final double value) {
+
+		return String.format(Locale.ROOT, "%.3f", Double.isFinite(value) ? value : 0);
+	}
+
+	protected static String formatSeconds(final double seconds) {
+
+		final long s = Math.round(seconds);
+		return String.format(Locale.ROOT, "%d:%02d:%02d", s / 3600, s / 60 % 60, s % 60);
+	}
+
+	/**
+	 * Stop periodic reports and print the final report.
+	 */
+	@Override
+	public void close() {
+
+		if (scheduler != null)
+			scheduler.shutdownNow();
+		report(true);
+		if (json != null)
+			json.close();
+	}
+}
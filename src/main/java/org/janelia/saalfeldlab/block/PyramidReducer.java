@@ -0,0 +1,213 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * Downsamples a stream of blocks of one scale level by a factor of 2 in all
+ * dimensions into the next scale level.  Both levels use the same block
+ * size, so every block of the coarser level collects up to 2<sup>n</sup>
+ * blocks of the finer level.  It is reduced (mean or mode) and passed on as
+ * soon as its last finer block arrived, so finer blocks have to be buffered
+ * only until their neighbors arrive.  Finer blocks can arrive in any order
+ * and from any thread, but every block has to arrive exactly once.  If
+ * the blocks come from a {@link Rechunker} that knows about the scale
+ * levels (see {@link Rechunker#setPyramid}), every parent block is
+ * completed within one column, so pending parent blocks are bounded and
+ * counted in its memory budget.
+ */
+public class PyramidReducer implements Consumer<DataBlock<?>> {
+
+	protected static class Pending {
+
+		protected final Object data;
+		protected final int[] size;
+		protected int remaining;
+
+		protected Pending(final Object data, final int[] size, final int remaining) {
+
+			this.data = data;
+			this.size = size;
+			this.remaining = remaining;
+		}
+	}
+
+	protected final DatasetAttributes attributes;
+	protected final DatasetAttributes parentAttributes;
+	protected final BlockGrid grid;
+	protected final BlockGrid parentGrid;
+	protected final DataType dataType;
+	protected final int[] blockSize;
+	protected final boolean mode;
+	protected final Consumer<DataBlock<?>> parentSink;
+	protected final int n;
+	protected final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * @param attributes of the finer level
+	 * @param parentAttributes of the coarser level
+	 * @param mode use the mode instead of the mean, e.g. for labels
+	 * @param parentSink receives the blocks of the coarser level
+	 */
+	public PyramidReducer(
+			final DatasetAttributes attributes,
+			final DatasetAttributes parentAttributes,
+			final boolean mode,
+			final Consumer<DataBlock<?>> parentSink) {
+
+		this.attributes = attributes;
+		this.parentAttributes = parentAttributes;
+		this.mode = mode;
+		this.parentSink = parentSink;
+		grid = new BlockGrid(attributes);
+		parentGrid = new BlockGrid(parentAttributes);
+		dataType = attributes.getDataType();
+		blockSize = attributes.getBlockSize();
+		n = grid.numDimensions();
+	}
+
+	/**
+	 * Dimensions of the next coarser scale level.
+	 *
+	 * @param dimensions
+	 * @return
+	 */
+	public static long[] downsampledDimensions(final long[] dimensions) {
+
+		final long[] parentDimensions = new long[dimensions.length];
+		for (int d = 0; d < dimensions.length; ++d)
+			parentDimensions[d] = (dimensions[d] + 1) / 2;
+		return parentDimensions;
+	}
+
+	@Override
+	public void accept(final DataBlock<?> block) {
+
+		final long[] gridPosition = block.getGridPosition();
+		final long[] parentPosition = new long[n];
+		for (int d = 0; d < n; ++d)
+			parentPosition[d] = gridPosition[d] / 2;
+
+		/* region of the finer level covered by the parent block */
+		final long[] min = new long[n];
+		final int[] size = new int[n];
+		final int[] parentSize = parentGrid.blockSize(parentPosition);
+		final long[] dimensions = grid.getDimensions();
+		int numChildren = 1;
+		for (int d = 0; d < n; ++d) {
+			min[d] = parentPosition[d] * 2L * blockSize[d];
+			size[d] = (int)Math.min(2L * blockSize[d], dimensions[d] - min[d]);
+			numChildren *= (size[d] + blockSize[d] - 1) / blockSize[d];
+		}
+
+		final int remaining = numChildren;
+		final Pending p = pending.computeIfAbsent(
+				parentGrid.index(parentPosition),
+				k -> new Pending(dataType.createDataBlock(size, parentPosition).getData(), size, remaining));
+
+		final long[] blockMin = new long[n];
+		grid.blockMin(gridPosition, blockMin);
+
+		final boolean complete;
+		synchronized (p) {
+			DataBlocks.copyIntersection(block.getData(), block.getSize(), blockMin, p.data, p.size, min);
+			complete = --p.remaining == 0;
+		}
+
+		if (complete) {
+			pending.remove(parentGrid.index(parentPosition));
+			final Object parentData = mode ? mode(p.data, p.size, parentSize) : mean(p.data, p.size, parentSize);
+			parentSink.accept(DataBlocks.createDataBlock(parentSize, parentPosition, parentData));
+		}
+	}
+
+	protected static int product(final int[] size) {
+
+		int p = 1;
+		for (final int s : size)
+			p *= s;
+		return p;
+	}
+
+	protected Object mean(final Object data, final int[] size, final int[] parentSize) {
+
+		final double[] values = DataBlocks.toDoubles(data, dataType);
+		final double[] parentValues = new double[product(parentSize)];
+		final int[] position = new int[n];
+		for (int i = 0; i < parentValues.length; ++i) {
+			index(i, parentSize, position);
+			double sum = 0;
+			int count = 0;
+			for (int k = 0; k < 1 << n; ++k) {
+				final int j = childIndex(position, k, size);
+				if (j >= 0) {
+					sum += values[j];
+					++count;
+				}
+			}
+			parentValues[i] = sum / count;
+		}
+		return DataBlocks.fromDoubles(parentValues, dataType);
+	}
+
+	protected Object mode(final Object data, final int[] size, final int[] parentSize) {
+
+		final long[] values = DataBlocks.toLongs(data, dataType);
+		final long[] parentValues = new long[product(parentSize)];
+		final int[] position = new int[n];
+		final TLongIntHashMap counts = new TLongIntHashMap();
+		for (int i = 0; i < parentValues.length; ++i) {
+			index(i, parentSize, position);
+			counts.clear();
+			long mode = 0;
+			int maxCount = 0;
+			for (int k = 0; k < 1 << n; ++k) {
+				final int j = childIndex(position, k, size);
+				if (j >= 0) {
+					final long v = values[j];
+					final int count = counts.adjustOrPutValue(v, 1, 1);
+					/* ties go to the first value */
+					if (count > maxCount) {
+						maxCount = count;
+						mode = v;
+					}
+				}
+			}
+			parentValues[i] = mode;
+		}
+		return DataBlocks.fromLongs(parentValues, dataType);
+	}
+
+	protected static void index(int i, final int[] size, final int[] position) {
+
+		for (int d = 0; d < size.length; ++d) {
+			position[d] = i % size[d];
+			i /= size[d];
+		}
+	}
+
+	/**
+	 * Index of the {@code k}th child (bit d of k is the offset in dimension
+	 * d) of a parent voxel in the finer region, or -1 if it is outside.
+	 */
+	protected static int childIndex(final int[] parentPosition, final int k, final int[] size) {
+
+		int j = 0;
+		for (int d = size.length - 1; d >= 0; --d) {
+			final int x = 2 * parentPosition[d] + ((k >> d) & 1);
+			if (x >= size[d])
+				return -1;
+			j = j * size[d] + x;
+		}
+		return j;
+	}
+}
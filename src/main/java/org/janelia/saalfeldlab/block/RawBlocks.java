@@ -0,0 +1,171 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.FileSystemKeyValueAccess;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
+import org.janelia.saalfeldlab.n5.KeyValueAccess;
+import org.janelia.saalfeldlab.n5.LockedChannel;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5KeyValueReader;
+import org.janelia.saalfeldlab.n5.N5KeyValueWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Access to the encoded (compressed, with header) bytes of N5 blocks in
+ * key value stores.  This is used to copy blocks between containers without
+ * decoding them.
+ *
+ * Only the N5 format is supported, because the encoded bytes of Zarr chunks
+ * depend on metadata (order, fill value, filters, separator) that is not
+ * carried over by {@link DatasetAttributes}.
+ */
+public class RawBlocks {
+
+	private RawBlocks() {}
+
+	/**
+	 * Whether encoded blocks can be moved from {@code n5Reader} to
+	 * {@code n5Writer} as they are.
+	 *
+	 * @param n5Reader
+	 * @param n5Writer
+	 * @return
+	 */
+	public static boolean supports(final N5Reader n5Reader, final N5Writer n5Writer) {
+
+		return n5Reader instanceof N5KeyValueReader && n5Writer instanceof N5KeyValueWriter;
+	}
+
+	public static String blockPath(final GsonKeyValueN5Reader n5, final String datasetName, final long... gridPosition) {
+
+		return n5.absoluteDataBlockPath(N5URI.normalizeGroupPath(datasetName), gridPosition);
+	}
+
+	/**
+	 * Read the encoded bytes of a block.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param gridPosition
+	 * @return the encoded block or null if the block does not exist
+	 */
+	public static byte[] read(final GsonKeyValueN5Reader n5, final String datasetName, final long... gridPosition) {
+
+		final KeyValueAccess kva = n5.getKeyValueAccess();
+		final String path = blockPath(n5, datasetName, gridPosition);
+
+		/* no existence check, that would be a second request per block on cloud storage */
+		try (
+				final LockedChannel channel = kva.lockForReading(path);
+				final InputStream in = channel.newInputStream()) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[65536];
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} catch (final N5Exception.N5NoSuchKeyException | NoSuchFileException e) {
+			return null;
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Decode the encoded bytes of a block.
+	 *
+	 * @param bytes
+	 * @param datasetAttributes
+	 * @param gridPosition
+	 * @return
+	 */
+	public static DataBlock<?> decode(final byte[] bytes, final DatasetAttributes datasetAttributes, final long[] gridPosition) {
+
+		try {
+			return DefaultBlockReader.readBlock(new ByteArrayInputStream(bytes), datasetAttributes, gridPosition.clone());
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Encode a block.
+	 *
+	 * @param datasetAttributes
+	 * @param dataBlock
+	 * @return
+	 */
+	public static byte[] encode(final DatasetAttributes datasetAttributes, final DataBlock<?> dataBlock) {
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			DefaultBlockWriter.writeBlock(out, datasetAttributes, dataBlock);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Write the encoded bytes of a block.  On the file system, the block is
+	 * written to a temporary file that replaces the block file, so a block
+	 * file that is a hard link shared with other blocks (see
+	 * {@link BlockDeduplicator}) is unlinked instead of written into.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param gridPosition
+	 * @param bytes
+	 */
+	public static void write(final GsonKeyValueN5Reader n5, final String datasetName, final long[] gridPosition, final byte[] bytes) {
+
+		final KeyValueAccess kva = n5.getKeyValueAccess();
+		final String path = blockPath(n5, datasetName, gridPosition);
+		if (kva instanceof FileSystemKeyValueAccess) {
+			replace(Paths.get(path), bytes);
+			return;
+		}
+		try (
+				final LockedChannel channel = kva.lockForWriting(path);
+				final OutputStream out = channel.newOutputStream()) {
+			out.write(bytes);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	protected static void replace(final Path file, final byte[] bytes) {
+
+		try {
+			Files.createDirectories(file.getParent());
+			final Path tmp = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+			try {
+				Files.write(tmp, bytes);
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,956 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.janelia.saalfeldlab.block.ProgressReporter.Phase;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
+import org.janelia.saalfeldlab.n5.N5KeyValueReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Copies a dataset into a different block grid such that every source block
+ * is read and decoded once, only source blocks on the borders of unaligned
+ * columns (see below) are read once per column.
+ *
+ * The dataset is split into columns along all but the last dimension.  A
+ * column is as wide as the least common multiple of source and output
+ * block size in that dimension, so no block crosses a column border.  If
+ * that multiple is larger than {@link #MAX_COLUMN_BLOCKS} blocks, columns
+ * are aligned with the output grid only and the source blocks on their
+ * borders are read once per column, so that the memory of a column stays
+ * bounded for any block sizes.  Columns are
+ * submitted in a {@link BlockOrder} and processed in parallel, at most
+ * {@link #setMaxColumns(int) maxColumns} at a time.  Each column is swept
+ * along the last dimension one layer of output blocks at a time.  The
+ * source blocks of a layer are loaded in parallel, the output blocks are
+ * assembled from them in parallel and handed to the sink, and source blocks
+ * that are not needed by the next layer are released.  The layers of a
+ * column are chained with futures, tasks never wait for other tasks, so
+ * the executor does not add threads that would pick up more columns.  Per
+ * column, at most ceil(outputBlockSize / sourceBlockSize) + 1 layers of
+ * source blocks are held in memory.
+ *
+ * The output can be a sub-volume of the source that starts at an offset in
+ * the source.  Only source blocks that intersect the sub-volume are read.
+ * If the offset is not aligned with the source grid, source blocks on
+ * column borders are read once per column.
+ *
+ * The axes of the output can be a permutation of the source axes.  Source
+ * blocks are then transposed right after they are read, and everything
+ * else, including the offset, happens in output axis order.
+ *
+ * Several output grids of the same dimensions can be written in one sweep,
+ * e.g. to write the same data into several containers with different block
+ * sizes.  Columns are then as wide as the least common multiple of all
+ * block sizes (output block sizes whose multiple is too large are
+ * rejected), and the layers of all outputs are processed in the order in
+ * which they end along the last dimension, so every source block is still
+ * read once.
+ *
+ * With a {@link MemoryBudget}, every column reserves the memory that it
+ * needs at most before it is submitted.  Columns are narrowed, in
+ * multiples of the output block sizes, until the largest fits into the
+ * budget.  If even a column of single output blocks does not fit, columns
+ * reserve the whole budget and are copied one at a time.
+ *
+ * Outputs that are reduced into coarser scale levels by
+ * {@link PyramidReducer}s (see {@link #setPyramid}) align columns with the
+ * blocks of the coarsest level, so every parent block is completed within
+ * one column, and at most one layer of pending parent blocks per level is
+ * held in memory and counted towards the column.
+ *
+ * With an I/O {@link Executor}, source blocks are read and output blocks
+ * are handed to the targets in the I/O executor while decoding and
+ * assembly stay in the CPU sized executor, so that many reads and writes
+ * can be in flight on high latency storage.
+ */
+public class Rechunker {
+
+	/* maximum column width as a multiple of the larger block size */
+	protected static final int MAX_COLUMN_BLOCKS = 8;
+
+	protected final N5Reader n5;
+	protected final String datasetName;
+	protected final DatasetAttributes sourceAttributes;
+	protected final DatasetAttributes[] outputAttributes;
+	protected final BlockGrid sourceGrid;
+	protected final BlockGrid[] outputGrids;
+	protected final ExecutorService exec;
+	protected final ProgressReporter progress;
+	protected final MemoryBudget budget;
+	protected final int n;
+	protected final long[] dimensions;
+	protected final int[] sourceBlockSize;
+	protected final int[][] outputBlockSizes;
+	protected final long[] offset;
+	protected final int[] axes;
+	protected final long[] columnSize;
+	protected final int[] pyramidLevels;
+	protected final int[] pyramidBytesPerElement;
+	protected BlockOrder order = BlockOrder.RASTER;
+	protected Executor io = null;
+	protected int maxColumns = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Where the blocks of one output grid go.
+	 */
+	public static class Target {
+
+		protected final BlockManifest manifest;
+		protected final Predicate<long[]> skip;
+		protected final Consumer<DataBlock<?>> sink;
+
+		/**
+		 *
+		 * @param manifest may be null
+		 * @param skip tests grid positions of output blocks, may be null
+		 * @param sink receives each output block that is not skipped exactly once
+		 */
+		public Target(final BlockManifest manifest, final Predicate<long[]> skip, final Consumer<DataBlock<?>> sink) {
+
+			this.manifest = manifest;
+			this.skip = skip;
+			this.sink = sink;
+		}
+	}
+
+	/**
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param sourceAttributes
+	 * @param outputAttributes one per output grid, all with the same
+	 *        dimensions and data type
+	 * @param offset position of the output origin in the (transposed)
+	 *        source, the output dimensions are the dimensions of the
+	 *        sub-volume, may be null
+	 * @param axes output dimension d is source dimension axes[d], may be null
+	 * @param exec
+	 * @param progress
+	 * @param budget may be null
+	 */
+	public Rechunker(
+			final N5Reader n5,
+			final String datasetName,
+			final DatasetAttributes sourceAttributes,
+			final List<DatasetAttributes> outputAttributes,
+			final long[] offset,
+			final int[] axes,
+			final ExecutorService exec,
+			final ProgressReporter progress,
+			final MemoryBudget budget) {
+
+		this.n5 = n5;
+		this.datasetName = datasetName;
+		this.sourceAttributes = sourceAttributes;
+		this.outputAttributes = outputAttributes.toArray(new DatasetAttributes[outputAttributes.size()]);
+		this.exec = exec;
+		this.progress = progress;
+		this.budget = budget;
+
+		n = sourceAttributes.getNumDimensions();
+		this.axes = axes == null || isIdentity(axes) ? null : axes.clone();
+		if (this.axes == null)
+			sourceGrid = new BlockGrid(sourceAttributes);
+		else
+			sourceGrid = new BlockGrid(
+					DataBlocks.permute(sourceAttributes.getDimensions(), axes),
+					DataBlocks.permute(sourceAttributes.getBlockSize(), axes));
+		outputGrids = new BlockGrid[this.outputAttributes.length];
+		outputBlockSizes = new int[this.outputAttributes.length][];
+		for (int o = 0; o < outputGrids.length; ++o) {
+			outputGrids[o] = new BlockGrid(this.outputAttributes[o]);
+			outputBlockSizes[o] = this.outputAttributes[o].getBlockSize();
+		}
+		dimensions = this.outputAttributes[0].getDimensions();
+		sourceBlockSize = sourceGrid.getBlockSize();
+		this.offset = offset == null ? new long[n] : offset.clone();
+
+		columnSize = new long[Math.max(0, n - 1)];
+		pyramidLevels = new int[outputGrids.length];
+		pyramidBytesPerElement = new int[outputGrids.length];
+		layoutColumns();
+	}
+
+	public Rechunker(
+			final N5Reader n5,
+			final String datasetName,
+			final DatasetAttributes sourceAttributes,
+			final DatasetAttributes outputAttributes,
+			final long[] offset,
+			final int[] axes,
+			final ExecutorService exec,
+			final ProgressReporter progress,
+			final MemoryBudget budget) {
+
+		this(n5, datasetName, sourceAttributes, Collections.singletonList(outputAttributes), offset, axes, exec, progress, budget);
+	}
+
+	public Rechunker(
+			final N5Reader n5,
+			final String datasetName,
+			final DatasetAttributes sourceAttributes,
+			final DatasetAttributes outputAttributes,
+			final long[] offset,
+			final ExecutorService exec,
+			final ProgressReporter progress,
+			final MemoryBudget budget) {
+
+		this(n5, datasetName, sourceAttributes, outputAttributes, offset, null, exec, progress, budget);
+	}
+
+	public Rechunker(
+			final N5Reader n5,
+			final String datasetName,
+			final DatasetAttributes sourceAttributes,
+			final DatasetAttributes outputAttributes,
+			final ExecutorService exec,
+			final ProgressReporter progress,
+			final MemoryBudget budget) {
+
+		this(n5, datasetName, sourceAttributes, outputAttributes, null, null, exec, progress, budget);
+	}
+
+	public Rechunker(
+			final N5Reader n5,
+			final String datasetName,
+			final DatasetAttributes sourceAttributes,
+			final DatasetAttributes outputAttributes,
+			final ExecutorService exec,
+			final ProgressReporter progress) {
+
+		this(n5, datasetName, sourceAttributes, outputAttributes, exec, progress, null);
+	}
+
+	public Rechunker(
+			final N5Reader n5,
+			final String datasetName,
+			final DatasetAttributes sourceAttributes,
+			final DatasetAttributes outputAttributes,
+			final ExecutorService exec) {
+
+		this(n5, datasetName, sourceAttributes, outputAttributes, exec, new ProgressReporter());
+	}
+
+	/**
+	 * Set the order in which columns are submitted, raster by default.
+	 *
+	 * @param order
+	 */
+	public void setOrder(final BlockOrder order) {
+
+		this.order = order;
+	}
+
+	/**
+	 * Set the number of columns that are copied at the same time, the
+	 * number of available processors by default.
+	 *
+	 * @param maxColumns
+	 */
+	public void setMaxColumns(final int maxColumns) {
+
+		this.maxColumns = Math.max(1, maxColumns);
+	}
+
+	/**
+	 * Read source blocks and hand output blocks to the targets in this
+	 * executor, null (default) to do everything in the executor passed to
+	 * the constructor.  Targets that encode blocks should do this in the
+	 * CPU sized executor.
+	 *
+	 * @param io
+	 */
+	public void setIoExecutor(final Executor io) {
+
+		this.io = io;
+	}
+
+	/**
+	 * Declare that the blocks of output o are reduced into numLevels coarser
+	 * scale levels by {@link PyramidReducer}s.  Columns are then aligned
+	 * with the blocks of the coarsest level, and the pending parent blocks
+	 * count towards the memory of a column.
+	 *
+	 * @param o
+	 * @param numLevels
+	 * @param dataType of the scale levels
+	 */
+	public void setPyramid(final int o, final int numLevels, final DataType dataType) {
+
+		pyramidLevels[o] = numLevels;
+		pyramidBytesPerElement[o] = DataBlocks.bytesPerElement(dataType);
+		layoutColumns();
+	}
+
+	/**
+	 * Set the column width in all but the last dimension, see the class
+	 * description, and narrow the columns until they fit into the memory
+	 * budget.
+	 */
+	protected void layoutColumns() {
+
+		final long[] columnStep = new long[columnSize.length];
+		for (int d = 0; d < columnSize.length; ++d) {
+			long outputLcm = 1;
+			long max = sourceBlockSize[d];
+			long maxTile = 0;
+			for (int o = 0; o < outputBlockSizes.length; ++o) {
+				/* a block of the coarsest scale level */
+				final long tile = (long)outputBlockSizes[o][d] << pyramidLevels[o];
+				outputLcm = lcm(outputLcm, tile);
+				max = Math.max(max, outputBlockSizes[o][d]);
+				maxTile = Math.max(maxTile, tile);
+			}
+			final long lcm = lcm(outputLcm, sourceBlockSize[d]);
+			final long limit = Math.max(MAX_COLUMN_BLOCKS * max, maxTile);
+			if (lcm <= limit)
+				columnSize[d] = lcm;
+			else if (dimensions[d] <= limit)
+				columnSize[d] = dimensions[d];
+			else if (outputLcm <= limit)
+				/* aligned with the output grids only, border source blocks are read by both columns */
+				columnSize[d] = limit / outputLcm * outputLcm;
+			else
+				throw new IllegalArgumentException(
+						"The output block sizes in dimension " + d + " do not align (least common multiple " + outputLcm +
+						"), copy them in separate runs.");
+			columnStep[d] = outputLcm;
+		}
+
+		if (budget != null)
+			fitColumns(columnStep, budget.getCapacity());
+	}
+
+	protected static boolean isIdentity(final int[] axes) {
+
+		for (int d = 0; d < axes.length; ++d)
+			if (axes[d] != d)
+				return false;
+		return true;
+	}
+
+	protected static long gcd(long a, long b) {
+
+		while (b != 0) {
+			final long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	protected static long lcm(final long a, final long b) {
+
+		return a / gcd(a, b) * b;
+	}
+
+	/**
+	 * Copy all output blocks that are not marked as done in the manifest
+	 * (if any) and mark them as done.
+	 *
+	 * @param manifest may be null
+	 * @param sink receives each output block exactly once
+	 * @return a future that completes when all output blocks are copied
+	 */
+	public CompletableFuture<Void> copy(final BlockManifest manifest, final Consumer<DataBlock<?>> sink) {
+
+		return copy(manifest, null, sink);
+	}
+
+	/**
+	 * Copy all output blocks that are neither marked as done in the manifest
+	 * (if any) nor skipped, and mark them as done.  Skipped blocks are
+	 * marked as done without reading their sources.
+	 *
+	 * Columns are submitted when one of the {@link #setMaxColumns(int)
+	 * maxColumns} slots is free, and with a {@link MemoryBudget}, also the
+	 * memory that a column needs at most is acquired before it is
+	 * submitted, i.e. this method blocks until enough columns are done.
+	 *
+	 * @param manifest may be null
+	 * @param skip tests grid positions of output blocks, may be null
+	 * @param sink receives each output block that is not skipped exactly once
+	 * @return a future that completes when all output blocks are copied
+	 */
+	public CompletableFuture<Void> copy(final BlockManifest manifest, final Predicate<long[]> skip, final Consumer<DataBlock<?>> sink) {
+
+		return copy(Collections.singletonList(new Target(manifest, skip, sink)));
+	}
+
+	/**
+	 * Copy the blocks of all output grids in one sweep, see
+	 * {@link #copy(BlockManifest, Predicate, Consumer)}.
+	 *
+	 * @param targets one per output grid
+	 * @return a future that completes when all output blocks are copied
+	 */
+	public CompletableFuture<Void> copy(final List<Target> targets) {
+
+		if (targets.size() != outputGrids.length)
+			throw new IllegalArgumentException("Expected " + outputGrids.length + " targets, got " + targets.size());
+
+		final long[] numColumns = new long[columnSize.length];
+		for (int d = 0; d < numColumns.length; ++d)
+			numColumns[d] = (dimensions[d] + columnSize[d] - 1) / columnSize[d];
+
+		final ArrayList<long[]> columns = new ArrayList<>();
+		order.forEach(numColumns, column -> columns.add(column.clone()));
+
+		final Semaphore slots = new Semaphore(maxColumns);
+		final ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (final long[] column : columns) {
+			final long bytes;
+			try {
+				slots.acquire();
+				try {
+					bytes = budget == null ? 0 : budget.acquire(Math.min(columnBytes(column), budget.getCapacity()));
+				} catch (final InterruptedException e) {
+					slots.release();
+					throw e;
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				final CompletableFuture<Void> interrupted = new CompletableFuture<>();
+				interrupted.completeExceptionally(e);
+				futures.add(interrupted);
+				break;
+			}
+			futures.add(
+					CompletableFuture
+							.completedFuture(column)
+							.thenComposeAsync(c -> copyColumn(c, targets), exec)
+							.whenComplete((r, e) -> {
+								if (budget != null)
+									budget.release(bytes);
+								slots.release();
+							}));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+	}
+
+	/**
+	 * Halve the widest column dimension, in multiples of the output block
+	 * sizes, until the largest column fits into the memory budget or
+	 * columns are a single output block wide.
+	 *
+	 * @param columnStep least common multiple of the output (coarsest scale
+	 *        level) block sizes per dimension
+	 * @param capacity
+	 */
+	protected void fitColumns(final long[] columnStep, final long capacity) {
+
+		while (maxColumnBytes() > capacity) {
+			int widest = -1;
+			long widestSteps = 1;
+			for (int d = 0; d < columnSize.length; ++d) {
+				final long steps = (Math.min(columnSize[d], dimensions[d]) + columnStep[d] - 1) / columnStep[d];
+				if (steps > widestSteps) {
+					widest = d;
+					widestSteps = steps;
+				}
+			}
+			if (widest < 0)
+				return;
+			columnSize[widest] = (widestSteps + 1) / 2 * columnStep[widest];
+		}
+	}
+
+	/**
+	 * Upper bound of {@link #columnBytes} for all columns.
+	 *
+	 * @return
+	 */
+	protected long maxColumnBytes() {
+
+		final int last = n - 1;
+		int maxOutputBlockSize = 0;
+		for (final int[] outputBlockSize : outputBlockSizes)
+			maxOutputBlockSize = Math.max(maxOutputBlockSize, outputBlockSize[last]);
+		long sourceBlocks = (maxOutputBlockSize + sourceBlockSize[last] - 1) / sourceBlockSize[last] + 1;
+		final long[] widths = new long[last];
+		for (int d = 0; d < last; ++d) {
+			/* a span of w pixels touches at most ceil((w - 1) / s) + 1 blocks of size s */
+			widths[d] = Math.min(columnSize[d], dimensions[d]);
+			sourceBlocks *= (widths[d] + sourceBlockSize[d] - 2) / sourceBlockSize[d] + 1;
+		}
+		long sourceBlockElements = 1;
+		for (int d = 0; d < n; ++d)
+			sourceBlockElements *= sourceBlockSize[d];
+
+		long maxOutputElements = 0;
+		for (final int[] outputBlockSize : outputBlockSizes) {
+			long outputElements = 1;
+			for (int d = 0; d < n; ++d) {
+				if (d < last) {
+					final long width = Math.min(columnSize[d], dimensions[d]);
+					outputElements *= (width + outputBlockSize[d] - 2) / outputBlockSize[d] + 1;
+				}
+				outputElements *= outputBlockSize[d];
+			}
+			maxOutputElements = Math.max(maxOutputElements, outputElements);
+		}
+		final int bytesPerElement = DataBlocks.bytesPerElement(sourceAttributes.getDataType());
+		return (sourceBlocks * sourceBlockElements + maxOutputElements) * bytesPerElement + pyramidBytes(widths);
+	}
+
+	/**
+	 * Upper bound of the memory that {@link #copyColumn} needs for a column:
+	 * ceil(max outputBlockSize / sourceBlockSize) + 1 layers of source
+	 * blocks, the largest layer of output blocks, and the pending parent
+	 * blocks of the scale levels.
+	 *
+	 * @param column
+	 * @return
+	 */
+	protected long columnBytes(final long[] column) {
+
+		final int last = n - 1;
+		int maxOutputBlockSize = 0;
+		for (final int[] outputBlockSize : outputBlockSizes)
+			maxOutputBlockSize = Math.max(maxOutputBlockSize, outputBlockSize[last]);
+		long sourceBlocks = (maxOutputBlockSize + sourceBlockSize[last] - 1) / sourceBlockSize[last] + 1;
+		final long[] widths = new long[last];
+		for (int d = 0; d < last; ++d) {
+			final long min = column[d] * columnSize[d];
+			final long max = Math.min(dimensions[d], min + columnSize[d]) - 1;
+			widths[d] = max - min + 1;
+			sourceBlocks *= (max + offset[d]) / sourceBlockSize[d] - (min + offset[d]) / sourceBlockSize[d] + 1;
+		}
+		long sourceBlockElements = 1;
+		for (int d = 0; d < n; ++d)
+			sourceBlockElements *= sourceBlockSize[d];
+
+		long maxOutputElements = 0;
+		for (final int[] outputBlockSize : outputBlockSizes) {
+			long outputElements = 1;
+			for (int d = 0; d < n; ++d) {
+				if (d < last) {
+					final long min = column[d] * columnSize[d];
+					final long max = Math.min(dimensions[d], min + columnSize[d]) - 1;
+					outputElements *= max / outputBlockSize[d] - min / outputBlockSize[d] + 1;
+				}
+				outputElements *= outputBlockSize[d];
+			}
+			maxOutputElements = Math.max(maxOutputElements, outputElements);
+		}
+		final int bytesPerElement = DataBlocks.bytesPerElement(sourceAttributes.getDataType());
+		return (sourceBlocks * sourceBlockElements + maxOutputElements) * bytesPerElement + pyramidBytes(widths);
+	}
+
+	/**
+	 * Upper bound of the pending parent blocks of all scale levels for a
+	 * column of the given widths: one layer of parent blocks per level, each
+	 * collecting 2 blocks per dimension of the finer level.
+	 *
+	 * @param widths of the column in all but the last dimension
+	 * @return
+	 */
+	protected long pyramidBytes(final long[] widths) {
+
+		final int last = n - 1;
+		long bytes = 0;
+		for (int o = 0; o < outputBlockSizes.length; ++o) {
+			final int[] blockSize = outputBlockSizes[o];
+			for (int s = 1; s <= pyramidLevels[o]; ++s) {
+				long elements = 2L * blockSize[last];
+				for (int d = 0; d < last; ++d) {
+					final long finerWidth = (widths[d] + (1L << (s - 1)) - 1) >> (s - 1);
+					final long parentWidth = 2L * blockSize[d];
+					elements *= (finerWidth + parentWidth - 1) / parentWidth * parentWidth;
+				}
+				bytes += elements * pyramidBytesPerElement[o];
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Copy the output blocks of a column layer by layer.
+	 *
+	 * @param column
+	 * @param targets
+	 * @return a future that completes when the last layer is copied
+	 */
+	protected CompletableFuture<Void> copyColumn(final long[] column, final List<Target> targets) {
+
+		final int last = n - 1;
+		final int m = outputGrids.length;
+
+		/* output grid ranges of this column */
+		final long[][] outputMin = new long[m][n];
+		final long[][] outputMax = new long[m][n];
+		for (int o = 0; o < m; ++o) {
+			for (int d = 0; d < last; ++d) {
+				final long min = column[d] * columnSize[d];
+				final long max = Math.min(dimensions[d], min + columnSize[d]) - 1;
+				outputMin[o][d] = min / outputBlockSizes[o][d];
+				outputMax[o][d] = max / outputBlockSizes[o][d];
+			}
+		}
+
+		/* next layer of each output */
+		return copyLayers(outputMin, outputMax, new long[m], new HashMap<>(), targets);
+	}
+
+	/**
+	 * Copy the remaining layers of a column, the layers of all outputs in
+	 * the order in which they end.  Layers that are done right away (e.g.
+	 * all blocks done or skipped) are passed in a loop, the others continue
+	 * when their blocks are copied.
+	 */
+	protected CompletableFuture<Void> copyLayers(
+			final long[][] outputMin,
+			final long[][] outputMax,
+			final long[] layers,
+			final HashMap<Long, DataBlock<?>> sourceBlocks,
+			final List<Target> targets) {
+
+		final int last = n - 1;
+		while (true) {
+
+			int o = -1;
+			long end = Long.MAX_VALUE;
+			for (int i = 0; i < layers.length; ++i) {
+				if (layers[i] < outputGrids[i].getGridDimensions()[last]) {
+					final long layerEnd = Math.min(dimensions[last], (layers[i] + 1) * outputBlockSizes[i][last]);
+					if (layerEnd < end) {
+						end = layerEnd;
+						o = i;
+					}
+				}
+			}
+			if (o < 0)
+				return CompletableFuture.completedFuture(null);
+
+			outputMin[o][last] = layers[o];
+			outputMax[o][last] = layers[o];
+			final CompletableFuture<Void> layer = copyLayer(o, outputMin[o], outputMax[o], sourceBlocks, targets.get(o));
+			final int copied = o;
+			if (!layer.isDone())
+				return layer.thenCompose(r -> {
+					nextLayer(copied, layers, sourceBlocks);
+					return copyLayers(outputMin, outputMax, layers, sourceBlocks, targets);
+				});
+			/* rethrows if the layer failed */
+			layer.join();
+			nextLayer(o, layers, sourceBlocks);
+		}
+	}
+
+	/**
+	 * Move output o to its next layer and release the source blocks that
+	 * the next layers of all outputs do not need.
+	 */
+	protected void nextLayer(final int o, final long[] layers, final HashMap<Long, DataBlock<?>> sourceBlocks) {
+
+		final int last = n - 1;
+		++layers[o];
+		long nextMin = Long.MAX_VALUE;
+		for (int i = 0; i < layers.length; ++i)
+			if (layers[i] < outputGrids[i].getGridDimensions()[last])
+				nextMin = Math.min(nextMin, (layers[i] * outputBlockSizes[i][last] + offset[last]) / sourceBlockSize[last]);
+		final long[] sourcePosition = new long[n];
+		for (final Iterator<Entry<Long, DataBlock<?>>> it = sourceBlocks.entrySet().iterator(); it.hasNext();) {
+			sourceGrid.gridPosition(it.next().getKey(), sourcePosition);
+			if (sourcePosition[last] < nextMin)
+				it.remove();
+		}
+	}
+
+	/**
+	 * Copy the output blocks of one output grid between outputMin and
+	 * outputMax (inclusive), loading the source blocks that are missing.
+	 * The source blocks are only modified by the stage that stores the
+	 * loaded blocks, before the blocks are assembled and after the previous
+	 * layer is done.
+	 *
+	 * @return a future that completes when all output blocks of the layer
+	 *         are handed to the target
+	 */
+	protected CompletableFuture<Void> copyLayer(
+			final int o,
+			final long[] outputMin,
+			final long[] outputMax,
+			final HashMap<Long, DataBlock<?>> sourceBlocks,
+			final Target target) {
+
+		final BlockGrid outputGrid = outputGrids[o];
+		final BlockManifest manifest = target.manifest;
+
+		/* output blocks of this layer that are not yet done */
+		final ArrayList<long[]> outputPositions = new ArrayList<>();
+		final long[] position = outputMin.clone();
+		while (true) {
+			if (manifest == null || !manifest.isDone(outputGrid.index(position))) {
+				if (target.skip != null && target.skip.test(position)) {
+					if (manifest != null)
+						manifest.markDone(outputGrid.index(position));
+				} else
+					outputPositions.add(position.clone());
+			}
+			int d = 0;
+			for (; d < n; ++d) {
+				if (++position[d] <= outputMax[d])
+					break;
+				position[d] = outputMin[d];
+			}
+			if (d >= n)
+				break;
+		}
+
+		if (outputPositions.isEmpty())
+			return CompletableFuture.completedFuture(null);
+
+		/* load missing source blocks in parallel */
+		final ArrayList<long[]> sourcePositions = new ArrayList<>();
+		for (final long[] outputPosition : outputPositions)
+			addSourcePositions(o, outputPosition, sourceBlocks, sourcePositions);
+
+		final ArrayList<CompletableFuture<DataBlock<?>>> loads = new ArrayList<>();
+		for (final long[] sourcePosition : sourcePositions) {
+			if (io != null && n5 instanceof N5KeyValueReader)
+				loads.add(CompletableFuture
+						.supplyAsync(() -> readBytes(sourcePosition), io)
+						.thenApplyAsync(bytes -> decodeBlock(bytes, sourcePosition), exec));
+			else
+				loads.add(CompletableFuture.supplyAsync(() -> readBlock(sourcePosition), exec));
+		}
+		return CompletableFuture.allOf(loads.toArray(new CompletableFuture[loads.size()])).thenCompose(r -> {
+
+			/* all loads are done, join does not wait */
+			for (int i = 0; i < loads.size(); ++i)
+				sourceBlocks.put(sourceGrid.index(sourcePositions.get(i)), loads.get(i).join());
+
+			/* assemble and emit output blocks in parallel */
+			final ArrayList<CompletableFuture<Void>> writes = new ArrayList<>();
+			for (final long[] outputPosition : outputPositions) {
+				final Consumer<DataBlock<?>> emit = outputBlock -> {
+					target.sink.accept(outputBlock);
+					if (manifest != null) {
+						manifest.markDone(outputGrid.index(outputPosition));
+						manifest.checkpointIfDue();
+					}
+				};
+				if (io == null)
+					writes.add(CompletableFuture.runAsync(() -> emit.accept(assemble(o, outputPosition, sourceBlocks)), exec));
+				else
+					writes.add(CompletableFuture
+							.supplyAsync(() -> assemble(o, outputPosition, sourceBlocks), exec)
+							.thenAcceptAsync(emit, io));
+			}
+			return CompletableFuture.allOf(writes.toArray(new CompletableFuture[writes.size()]));
+		});
+	}
+
+	/**
+	 * Read a source block.  For N5 key value stores, reading and decoding
+	 * (including transposition) are timed separately.
+	 *
+	 * @param gridPosition in the (transposed) source grid
+	 * @return the block or null if it does not exist
+	 */
+	protected DataBlock<?> readBlock(final long[] gridPosition) {
+
+		if (n5 instanceof N5KeyValueReader)
+			return decodeBlock(readBytes(gridPosition), gridPosition);
+		else {
+			final long[] sourcePosition = axes == null ? gridPosition : DataBlocks.unpermute(gridPosition, axes);
+			final long t = progress.start();
+			final DataBlock<?> dataBlock = transpose(n5.readBlock(datasetName, sourceAttributes, sourcePosition), gridPosition);
+			progress.stop(Phase.READ, t);
+			return dataBlock;
+		}
+	}
+
+	/**
+	 * Read an encoded source block from an N5 key value store.
+	 *
+	 * @param gridPosition in the (transposed) source grid
+	 * @return the encoded block or null if it does not exist
+	 */
+	protected byte[] readBytes(final long[] gridPosition) {
+
+		final long[] sourcePosition = axes == null ? gridPosition : DataBlocks.unpermute(gridPosition, axes);
+		final long t = progress.start();
+		final byte[] bytes = RawBlocks.read((GsonKeyValueN5Reader)n5, datasetName, sourcePosition);
+		progress.stop(Phase.READ, t);
+		if (bytes != null)
+			progress.addBytesRead(bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * Decode (and transpose) a source block read by {@link #readBytes}.
+	 *
+	 * @param bytes may be null
+	 * @param gridPosition in the (transposed) source grid
+	 * @return the block or null if bytes is null
+	 */
+	protected DataBlock<?> decodeBlock(final byte[] bytes, final long[] gridPosition) {
+
+		if (bytes == null)
+			return null;
+		final long[] sourcePosition = axes == null ? gridPosition : DataBlocks.unpermute(gridPosition, axes);
+		final long t = progress.start();
+		final DataBlock<?> dataBlock = transpose(RawBlocks.decode(bytes, sourceAttributes, sourcePosition), gridPosition);
+		progress.stop(Phase.DECODE, t);
+		return dataBlock;
+	}
+
+	protected DataBlock<?> transpose(final DataBlock<?> dataBlock, final long[] gridPosition) {
+
+		if (axes == null || dataBlock == null)
+			return dataBlock;
+
+		return DataBlocks.createDataBlock(
+				DataBlocks.permute(dataBlock.getSize(), axes),
+				gridPosition.clone(),
+				DataBlocks.transpose(dataBlock.getData(), dataBlock.getSize(), axes));
+	}
+
+	/**
+	 * Add the grid positions of source blocks that intersect an output
+	 * block and are neither loaded nor already in the list.
+	 */
+	protected void addSourcePositions(
+			final int o,
+			final long[] outputPosition,
+			final HashMap<Long, DataBlock<?>> sourceBlocks,
+			final ArrayList<long[]> sourcePositions) {
+
+		for (final long[] position : gridPositions(o, outputPosition)) {
+			final long index = sourceGrid.index(position);
+			if (!sourceBlocks.containsKey(index)) {
+				sourceBlocks.put(index, null);
+				sourcePositions.add(position);
+			}
+		}
+	}
+
+	/**
+	 * Grid positions of the source blocks that intersect an output block, in
+	 * source axis order.
+	 *
+	 * @param outputPosition
+	 * @return
+	 */
+	public ArrayList<long[]> sourcePositions(final long[] outputPosition) {
+
+		return sourcePositions(0, outputPosition);
+	}
+
+	/**
+	 * Grid positions of the source blocks that intersect a block of output
+	 * grid o, in source axis order.
+	 *
+	 * @param o
+	 * @param outputPosition
+	 * @return
+	 */
+	public ArrayList<long[]> sourcePositions(final int o, final long[] outputPosition) {
+
+		final ArrayList<long[]> positions = gridPositions(o, outputPosition);
+		if (axes != null)
+			positions.replaceAll(position -> DataBlocks.unpermute(position, axes));
+		return positions;
+	}
+
+	/**
+	 * Grid positions of the source blocks that intersect an output block, in
+	 * the transposed source grid.
+	 *
+	 * @param outputPosition
+	 * @return
+	 */
+	protected ArrayList<long[]> gridPositions(final int o, final long[] outputPosition) {
+
+		final ArrayList<long[]> sourcePositions = new ArrayList<>();
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		final int[] size = outputGrids[o].blockSize(outputPosition);
+		for (int d = 0; d < n; ++d) {
+			final long outputMin = outputPosition[d] * outputBlockSizes[o][d] + offset[d];
+			min[d] = outputMin / sourceBlockSize[d];
+			max[d] = (outputMin + size[d] - 1) / sourceBlockSize[d];
+		}
+
+		final long[] position = min.clone();
+		while (true) {
+			sourcePositions.add(position.clone());
+			int d = 0;
+			for (; d < n; ++d) {
+				if (++position[d] <= max[d])
+					break;
+				position[d] = min[d];
+			}
+			if (d >= n)
+				break;
+		}
+		return sourcePositions;
+	}
+
+	protected DataBlock<?> assemble(final int o, final long[] outputPosition, final HashMap<Long, DataBlock<?>> sourceBlocks) {
+
+		final BlockGrid outputGrid = outputGrids[o];
+		final int[] size = outputGrid.blockSize(outputPosition);
+
+		/* in source coordinates */
+		final long[] outputMin = new long[n];
+		outputGrid.blockMin(outputPosition, outputMin);
+		for (int d = 0; d < n; ++d)
+			outputMin[d] += offset[d];
+		final DataBlock<?> outputBlock = outputAttributes[o].getDataType().createDataBlock(size, outputPosition.clone());
+
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		for (int d = 0; d < n; ++d) {
+			min[d] = outputMin[d] / sourceBlockSize[d];
+			max[d] = (outputMin[d] + size[d] - 1) / sourceBlockSize[d];
+		}
+
+		final long[] sourceMin = new long[n];
+		final long[] position = min.clone();
+		while (true) {
+			final DataBlock<?> sourceBlock = sourceBlocks.get(sourceGrid.index(position));
+			/* missing source blocks stay 0 */
+			if (sourceBlock != null) {
+				sourceGrid.blockMin(position, sourceMin);
+				DataBlocks.copyIntersection(
+						sourceBlock.getData(),
+						sourceBlock.getSize(),
+						sourceMin,
+						outputBlock.getData(),
+						size,
+						outputMin);
+			}
+			int d = 0;
+			for (; d < n; ++d) {
+				if (++position[d] <= max[d])
+					break;
+				position[d] = min[d];
+			}
+			if (d >= n)
+				break;
+		}
+
+		return outputBlock;
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Collects a stream of chunks into Zarr v3 shards.  Chunks are encoded in
+ * the thread that passes them, and a shard is assembled and written by
+ * {@link ZarrShardWriter#writeShard(String, long[], byte[])} as soon as its
+ * last chunk arrived, so only encoded chunks of incomplete shards are held
+ * in memory.  Chunks can arrive in any order and from any thread, but every
+ * chunk has to arrive exactly once.
+ */
+public class ShardAssembler implements Consumer<DataBlock<?>> {
+
+	protected static class Pending {
+
+		protected final byte[][] chunks;
+		protected int remaining;
+
+		protected Pending(final int numChunks, final int remaining) {
+
+			chunks = new byte[numChunks][];
+			this.remaining = remaining;
+		}
+	}
+
+	protected final ZarrShardWriter writer;
+	protected final String datasetPath;
+	protected final DatasetAttributes attributes;
+	protected final int gzipLevel;
+	protected final boolean skipEmpty;
+	protected final BlockGrid chunkGrid;
+	protected final BlockGrid shardGrid;
+	protected final int[] chunkSize;
+	protected final long[] chunksPerShard;
+	protected final int numChunksPerShard;
+	protected final int n;
+	protected final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * @param writer
+	 * @param datasetPath
+	 * @param attributes dimensions, chunk size, and data type
+	 * @param shardSize a multiple of the chunk size
+	 * @param gzipLevel gzip compression level or -1 for no compression
+	 * @param skipEmpty do not store chunks that contain only 0
+	 */
+	public ShardAssembler(
+			final ZarrShardWriter writer,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final int[] shardSize,
+			final int gzipLevel,
+			final boolean skipEmpty) {
+
+		this.writer = writer;
+		this.datasetPath = datasetPath;
+		this.attributes = attributes;
+		this.gzipLevel = gzipLevel;
+		this.skipEmpty = skipEmpty;
+		chunkGrid = new BlockGrid(attributes);
+		shardGrid = new BlockGrid(attributes.getDimensions(), shardSize);
+		chunkSize = attributes.getBlockSize();
+		n = chunkSize.length;
+		chunksPerShard = new long[n];
+		long m = 1;
+		for (int d = 0; d < n; ++d) {
+			if (shardSize[d] % chunkSize[d] != 0)
+				throw new IllegalArgumentException("Shard size " + shardSize[d] + " is not a multiple of the chunk size " + chunkSize[d]);
+			chunksPerShard[d] = shardSize[d] / chunkSize[d];
+			m *= chunksPerShard[d];
+		}
+		numChunksPerShard = (int)m;
+	}
+
+	/**
+	 * Number of chunks of a shard that are inside the dataset.
+	 */
+	protected int numChunks(final long[] shardPosition) {
+
+		final long[] chunkGridDimensions = chunkGrid.getGridDimensions();
+		long m = 1;
+		for (int d = 0; d < n; ++d)
+			m *= Math.min(chunksPerShard[d], chunkGridDimensions[d] - shardPosition[d] * chunksPerShard[d]);
+		return (int)m;
+	}
+
+	@Override
+	public void accept(final DataBlock<?> chunk) {
+
+		final long[] gridPosition = chunk.getGridPosition();
+		final long[] shardPosition = new long[n];
+		final long[] positionInShard = new long[n];
+		for (int d = 0; d < n; ++d) {
+			shardPosition[d] = gridPosition[d] / chunksPerShard[d];
+			positionInShard[d] = gridPosition[d] % chunksPerShard[d];
+		}
+
+		/* encode outside of the lock, border chunks are padded */
+		final byte[] bytes;
+		if (skipEmpty && DataBlocks.isEmpty(chunk.getData()))
+			bytes = null;
+		else {
+			final Object data;
+			if (DataBlock.getNumElements(chunkSize) == chunk.getNumElements())
+				data = chunk.getData();
+			else {
+				final long[] min = new long[n];
+				chunkGrid.blockMin(gridPosition, min);
+				data = attributes.getDataType().createDataBlock(chunkSize, gridPosition).getData();
+				DataBlocks.copyIntersection(chunk.getData(), chunk.getSize(), min, data, chunkSize, min);
+			}
+			bytes = ZarrShardWriter.encodeChunk(data, gzipLevel);
+		}
+
+		final long shardIndex = shardGrid.index(shardPosition);
+		final Pending shard = pending.computeIfAbsent(shardIndex, k -> new Pending(numChunksPerShard, numChunks(shardPosition)));
+		final boolean complete;
+		synchronized (shard) {
+			shard.chunks[(int)IntervalIndexer.positionToIndex(positionInShard, chunksPerShard)] = bytes;
+			complete = --shard.remaining == 0;
+		}
+		if (complete) {
+			pending.remove(shardIndex);
+			boolean isEmpty = true;
+			for (final byte[] c : shard.chunks)
+				isEmpty &= c == null;
+			if (!isEmpty)
+				writer.writeShard(datasetPath, shardPosition, ZarrShardWriter.assembleShard(shard.chunks));
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.util.function.UnaryOperator;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+/**
+ * Converts {@link DataBlock DataBlocks} into another {@link DataType} with
+ * an optional linear transformation of the values
+ *
+ * target = source * scale + offset
+ *
+ * Integer targets are rounded and clamped to their range.  Conversions
+ * between integer types without transformation are exact, also for 64 bit
+ * values, e.g. to narrow uint64 labels to uint32.
+ */
+public class TypeConverter implements UnaryOperator<DataBlock<?>> {
+
+	protected final DataType sourceType;
+	protected final DataType targetType;
+	protected final double scale;
+	protected final double offset;
+
+	public TypeConverter(final DataType sourceType, final DataType targetType, final double scale, final double offset) {
+
+		this.sourceType = sourceType;
+		this.targetType = targetType;
+		this.scale = scale;
+		this.offset = offset;
+	}
+
+	/**
+	 * Map the contrast range [min, max] to [0, max value] of an integer target
+	 * type, e.g. [0, 255] for uint8, or to [0, 1] for floating point targets,
+	 * like the contrast range of n5-view.
+	 *
+	 * @param sourceType
+	 * @param targetType
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	public static TypeConverter contrast(final DataType sourceType, final DataType targetType, final double min, final double max) {
+
+		final double scale = maxValue(targetType) / (max - min);
+		return new TypeConverter(sourceType, targetType, scale, -min * scale);
+	}
+
+	public DataType getSourceType() {
+
+		return sourceType;
+	}
+
+	public DataType getTargetType() {
+
+		return targetType;
+	}
+
+	public double getScale() {
+
+		return scale;
+	}
+
+	public double getOffset() {
+
+		return offset;
+	}
+
+	public boolean isIdentity() {
+
+		return sourceType == targetType && scale == 1 && offset == 0;
+	}
+
+	public static boolean isInteger(final DataType dataType) {
+
+		return dataType != DataType.FLOAT32 && dataType != DataType.FLOAT64;
+	}
+
+	/**
+	 * @param dataType
+	 * @return the largest value of an integer type or 1 for floating point types
+	 */
+	public static double maxValue(final DataType dataType) {
+
+		switch (dataType) {
+		case UINT64:
+			return 0x1p64 - 1;
+		case FLOAT32:
+		case FLOAT64:
+			return 1;
+		default:
+			return maxLong(dataType);
+		}
+	}
+
+	protected static long minLong(final DataType dataType) {
+
+		switch (dataType) {
+		case INT8:
+			return Byte.MIN_VALUE;
+		case INT16:
+			return Short.MIN_VALUE;
+		case INT32:
+			return Integer.MIN_VALUE;
+		case INT64:
+			return Long.MIN_VALUE;
+		default:
+			return 0;
+		}
+	}
+
+	/* uint64 values above Long.MAX_VALUE are handled separately */
+	protected static long maxLong(final DataType dataType) {
+
+		switch (dataType) {
+		case UINT8:
+			return 0xffL;
+		case INT8:
+			return Byte.MAX_VALUE;
+		case UINT16:
+			return 0xffffL;
+		case INT16:
+			return Short.MAX_VALUE;
+		case UINT32:
+			return 0xffffffffL;
+		case INT32:
+			return Integer.MAX_VALUE;
+		default:
+			return Long.MAX_VALUE;
+		}
+	}
+
+	@Override
+	public DataBlock<?> apply(final DataBlock<?> dataBlock) {
+
+		final Object data;
+		if (scale == 1 && offset == 0 && isInteger(sourceType) && isInteger(targetType))
+			data = convertIntegers(dataBlock.getData());
+		else {
+			final double[] values = DataBlocks.toDoubles(dataBlock.getData(), sourceType);
+			if (scale != 1 || offset != 0)
+				for (int i = 0; i < values.length; ++i)
+					values[i] = values[i] * scale + offset;
+			data = DataBlocks.fromDoubles(values, targetType);
+		}
+		return DataBlocks.createDataBlock(dataBlock.getSize(), dataBlock.getGridPosition(), data);
+	}
+
+	protected Object convertIntegers(final Object data) {
+
+		final long[] values = DataBlocks.toLongs(data, sourceType);
+		final long min = minLong(targetType);
+		final long max = maxLong(targetType);
+		for (int i = 0; i < values.length; ++i) {
+			final long v = values[i];
+			if (sourceType == DataType.UINT64 && v < 0) {
+				/* above Long.MAX_VALUE */
+				if (targetType != DataType.UINT64)
+					values[i] = max;
+			} else if (v < min)
+				values[i] = min;
+			else if (v > max)
+				values[i] = max;
+		}
+		return DataBlocks.fromLongs(values, targetType);
+	}
+}
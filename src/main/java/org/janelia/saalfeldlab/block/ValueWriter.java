@@ -0,0 +1,286 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Streams values, optionally with a count per value, through buffers of
+ * bounded size into
+ *
+ * <ul>
+ * <li>text, one value per line, or value,count lines with a header,</li>
+ * <li>a single line of comma separated values in brackets, the stdout
+ * format of earlier versions of n5-unique,</li>
+ * <li>little-endian binary 64 bit values, or (value, count) pairs, or</li>
+ * <li>a 1D dataset of n values, or a 2D dataset of 2 x n (value, count)
+ * pairs, in blocks of {@link #BLOCK_SIZE} values.</li>
+ * </ul>
+ *
+ * Floating point values are written as doubles, counts are only supported
+ * for integer values.
+ */
+public class ValueWriter implements Closeable {
+
+	public enum Format {
+		TEXT, BINARY, ARRAY
+	}
+
+	public static final int BLOCK_SIZE = 1 << 16;
+
+	protected static final int BUFFER_SIZE = 1 << 16;
+
+	protected final boolean isUnsigned;
+	protected final boolean hasCounts;
+
+	/* files */
+	protected final OutputStream out;
+	protected final boolean isStdout;
+	protected final ByteBuffer bytes;
+	protected final Writer text;
+	protected final boolean isArray;
+	protected long numValues = 0;
+
+	/* datasets */
+	protected final N5Writer n5;
+	protected final String datasetName;
+	protected final DatasetAttributes attributes;
+	protected final long[] longs;
+	protected final double[] doubles;
+	protected int length = 0;
+	protected long blockIndex = 0;
+
+	protected ValueWriter(
+			final OutputStream out,
+			final boolean isStdout,
+			final Format format,
+			final N5Writer n5,
+			final String datasetName,
+			final DatasetAttributes attributes,
+			final boolean isUnsigned,
+			final boolean isReal,
+			final boolean hasCounts) {
+
+		if (hasCounts && isReal)
+			throw new IllegalArgumentException("Counts are only supported for integer values.");
+		if (hasCounts && format == Format.ARRAY)
+			throw new IllegalArgumentException("Counts are not supported in the array format.");
+
+		this.out = out;
+		this.isStdout = isStdout;
+		this.n5 = n5;
+		this.datasetName = datasetName;
+		this.attributes = attributes;
+		this.isUnsigned = isUnsigned;
+		this.hasCounts = hasCounts;
+
+		bytes = out != null && format == Format.BINARY ? ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN) : null;
+		isArray = format == Format.ARRAY;
+		text = out != null && (format == Format.TEXT || isArray) ? new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE) : null;
+		longs = n5 != null && !isReal ? new long[(hasCounts ? 2 : 1) * BLOCK_SIZE] : null;
+		doubles = n5 != null && isReal ? new double[BLOCK_SIZE] : null;
+	}
+
+	/**
+	 * Write to a file or to stdout.
+	 *
+	 * @param path the file or null for stdout
+	 * @param format
+	 * @param isUnsigned print integer values as unsigned 64 bit integers
+	 * @param isReal
+	 * @param hasCounts
+	 * @return
+	 * @throws IOException
+	 */
+	public static ValueWriter toFile(
+			final String path,
+			final Format format,
+			final boolean isUnsigned,
+			final boolean isReal,
+			final boolean hasCounts) throws IOException {
+
+		final ValueWriter writer = new ValueWriter(
+				path == null ? System.out : Files.newOutputStream(Paths.get(path)),
+				path == null,
+				format,
+				null,
+				null,
+				null,
+				isUnsigned,
+				isReal,
+				hasCounts);
+		if (writer.text != null && hasCounts)
+			writer.text.write("value,count\n");
+		return writer;
+	}
+
+	/**
+	 * Write to a new dataset, UINT64, INT64, or FLOAT64.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param numValues
+	 * @param isUnsigned
+	 * @param isReal
+	 * @param hasCounts
+	 * @return
+	 */
+	public static ValueWriter toDataset(
+			final N5Writer n5,
+			final String datasetName,
+			final long numValues,
+			final boolean isUnsigned,
+			final boolean isReal,
+			final boolean hasCounts) {
+
+		final int blockSize = (int)Math.max(1, Math.min(numValues, BLOCK_SIZE));
+		final DatasetAttributes attributes = new DatasetAttributes(
+				hasCounts ? new long[] {2, numValues} : new long[] {numValues},
+				hasCounts ? new int[] {2, blockSize} : new int[] {blockSize},
+				isReal ? DataType.FLOAT64 : isUnsigned ? DataType.UINT64 : DataType.INT64,
+				new GzipCompression());
+		n5.createDataset(datasetName, attributes);
+		return new ValueWriter(null, false, null, n5, datasetName, attributes, isUnsigned, isReal, hasCounts);
+	}
+
+	public void write(final long value) throws IOException {
+
+		if (bytes != null) {
+			if (bytes.remaining() < 8)
+				flushBytes();
+			bytes.putLong(value);
+		} else if (text != null) {
+			separate();
+			text.write(isUnsigned ? Long.toUnsignedString(value) : Long.toString(value));
+			terminate();
+		} else {
+			longs[length++] = value;
+			if (length == longs.length)
+				writeBlock();
+		}
+	}
+
+	public void write(final long value, final long count) throws IOException {
+
+		if (bytes != null) {
+			if (bytes.remaining() < 16)
+				flushBytes();
+			bytes.putLong(value);
+			bytes.putLong(count);
+		} else if (text != null) {
+			text.write(isUnsigned ? Long.toUnsignedString(value) : Long.toString(value));
+			text.write(',');
+			text.write(Long.toString(count));
+			text.write('\n');
+		} else {
+			longs[length++] = value;
+			longs[length++] = count;
+			if (length == longs.length)
+				writeBlock();
+		}
+	}
+
+	public void write(final double value) throws IOException {
+
+		if (bytes != null) {
+			if (bytes.remaining() < 8)
+				flushBytes();
+			bytes.putDouble(value);
+		} else if (text != null) {
+			separate();
+			text.write(Double.toString(value));
+			terminate();
+		} else {
+			doubles[length++] = value;
+			if (length == doubles.length)
+				writeBlock();
+		}
+	}
+
+	/* start a text value, the array format separates values by commas */
+	protected void separate() throws IOException {
+
+		if (isArray)
+			text.write(numValues++ == 0 ? "[" : ", ");
+	}
+
+	/* end a text value, the other text formats write one value per line */
+	protected void terminate() throws IOException {
+
+		if (!isArray)
+			text.write('\n');
+	}
+
+	protected void flushBytes() throws IOException {
+
+		out.write(bytes.array(), 0, bytes.position());
+		bytes.clear();
+	}
+
+	protected void writeBlock() {
+
+		if (length == 0)
+			return;
+		if (hasCounts)
+			n5.writeBlock(
+					datasetName,
+					attributes,
+					new LongArrayDataBlock(new int[] {2, length / 2}, new long[] {0, blockIndex}, Arrays.copyOf(longs, length)));
+		else if (longs != null)
+			n5.writeBlock(
+					datasetName,
+					attributes,
+					new LongArrayDataBlock(new int[] {length}, new long[] {blockIndex}, Arrays.copyOf(longs, length)));
+		else
+			n5.writeBlock(
+					datasetName,
+					attributes,
+					new DoubleArrayDataBlock(new int[] {length}, new long[] {blockIndex}, Arrays.copyOf(doubles, length)));
+		++blockIndex;
+		length = 0;
+	}
+
+	/**
+	 * Write what is buffered and close the file, stdout is only flushed.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (bytes != null)
+			flushBytes();
+		else if (text != null) {
+			/* like Arrays.toString and an empty line */
+			if (isArray)
+				text.write(numValues == 0 ? "[]\n\n" : "]\n\n");
+			text.flush();
+		}
+		else
+			writeBlock();
+
+		if (out != null) {
+			if (isStdout)
+				out.flush();
+			else
+				out.close();
+		}
+	}
+}
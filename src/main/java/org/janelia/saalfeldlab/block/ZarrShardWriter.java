@@ -0,0 +1,369 @@
+/**
+ *
+ */
+package org.janelia.saalfeldlab.block;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.GZIPOutputStream;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Writes Zarr v3 groups and sharded arrays to the file system.  Each shard
+ * is one file that contains the encoded inner chunks followed by an index
+ * of their offsets and sizes (the sharding_indexed codec with the index at
+ * the end).
+ *
+ * Axes are reversed with respect to N5 such that the data of an N5 block
+ * (x fastest) is a C order Zarr chunk, the same mapping that n5-zarr uses.
+ * Inner chunks are little endian and either uncompressed or gzip
+ * compressed.  Border chunks are padded to the full chunk size.  Missing
+ * chunks are marked in the index and read as the fill value 0.
+ */
+public class ZarrShardWriter {
+
+	public static final String METADATA_FILE = "zarr.json";
+
+	/* index entry of a missing chunk */
+	protected static final long MISSING = 0xffffffffffffffffL;
+
+	protected final Path basePath;
+	protected final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+	/**
+	 *
+	 * @param basePath file system path of the container
+	 */
+	public ZarrShardWriter(final String basePath) {
+
+		this.basePath = Paths.get(basePath).toAbsolutePath();
+	}
+
+	protected Path path(final String groupPath) {
+
+		Path path = basePath;
+		for (final String component : groupPath.split("/"))
+			if (!component.isEmpty())
+				path = path.resolve(component);
+		return path;
+	}
+
+	protected static JsonArray reversed(final long[] array) {
+
+		final JsonArray json = new JsonArray();
+		for (int i = array.length - 1; i >= 0; --i)
+			json.add(array[i]);
+		return json;
+	}
+
+	protected static JsonArray reversed(final int[] array) {
+
+		final JsonArray json = new JsonArray();
+		for (int i = array.length - 1; i >= 0; --i)
+			json.add(array[i]);
+		return json;
+	}
+
+	protected static JsonObject codec(final String name, final JsonObject configuration) {
+
+		final JsonObject codec = new JsonObject();
+		codec.addProperty("name", name);
+		if (configuration != null)
+			codec.add("configuration", configuration);
+		return codec;
+	}
+
+	protected static JsonObject bytesCodec() {
+
+		final JsonObject configuration = new JsonObject();
+		configuration.addProperty("endian", "little");
+		return codec("bytes", configuration);
+	}
+
+	public static String zarrDataType(final DataType dataType) {
+
+		switch (dataType) {
+		case UINT8:
+			return "uint8";
+		case INT8:
+			return "int8";
+		case UINT16:
+			return "uint16";
+		case INT16:
+			return "int16";
+		case UINT32:
+			return "uint32";
+		case INT32:
+			return "int32";
+		case UINT64:
+			return "uint64";
+		case INT64:
+			return "int64";
+		case FLOAT32:
+			return "float32";
+		case FLOAT64:
+			return "float64";
+		default:
+			throw new IllegalArgumentException("Unsupported data type " + dataType);
+		}
+	}
+
+	protected JsonObject readMetadata(final String groupPath) throws IOException {
+
+		final Path file = path(groupPath).resolve(METADATA_FILE);
+		if (!Files.isRegularFile(file))
+			return null;
+		return gson.fromJson(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), JsonObject.class);
+	}
+
+	protected void writeMetadata(final String groupPath, final JsonObject metadata) throws IOException {
+
+		final Path directory = path(groupPath);
+		Files.createDirectories(directory);
+		Files.write(directory.resolve(METADATA_FILE), gson.toJson(metadata).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Create a group and all missing parent groups.
+	 *
+	 * @param groupPath
+	 */
+	public synchronized void createGroup(final String groupPath) {
+
+		try {
+			final String[] components = groupPath.split("/");
+			String path = "";
+			for (int i = 0; i <= components.length; ++i) {
+				if (i > 0) {
+					if (components[i - 1].isEmpty())
+						continue;
+					path += "/" + components[i - 1];
+				}
+				if (readMetadata(path) == null) {
+					final JsonObject metadata = new JsonObject();
+					metadata.addProperty("zarr_format", 3);
+					metadata.addProperty("node_type", "group");
+					metadata.add("attributes", new JsonObject());
+					writeMetadata(path, metadata);
+				}
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Create a sharded array, its parent groups are created if they do not
+	 * exist.
+	 *
+	 * @param datasetPath
+	 * @param attributes dimensions, inner chunk size, and data type, compression is ignored
+	 * @param shardSize size of a shard, a multiple of the chunk size
+	 * @param gzipLevel gzip compression level of the chunks or -1 for no compression
+	 */
+	public synchronized void createArray(
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final int[] shardSize,
+			final int gzipLevel) {
+
+		final int lastSeparator = datasetPath.lastIndexOf('/');
+		if (lastSeparator > 0)
+			createGroup(datasetPath.substring(0, lastSeparator));
+		else
+			createGroup("");
+
+		final JsonObject chunkGrid = new JsonObject();
+		chunkGrid.addProperty("name", "regular");
+		final JsonObject chunkGridConfiguration = new JsonObject();
+		chunkGridConfiguration.add("chunk_shape", reversed(shardSize));
+		chunkGrid.add("configuration", chunkGridConfiguration);
+
+		final JsonObject chunkKeyEncoding = new JsonObject();
+		chunkKeyEncoding.addProperty("name", "default");
+		final JsonObject chunkKeyEncodingConfiguration = new JsonObject();
+		chunkKeyEncodingConfiguration.addProperty("separator", "/");
+		chunkKeyEncoding.add("configuration", chunkKeyEncodingConfiguration);
+
+		final JsonArray chunkCodecs = new JsonArray();
+		chunkCodecs.add(bytesCodec());
+		if (gzipLevel >= 0) {
+			final JsonObject gzipConfiguration = new JsonObject();
+			gzipConfiguration.addProperty("level", gzipLevel);
+			chunkCodecs.add(codec("gzip", gzipConfiguration));
+		}
+		final JsonArray indexCodecs = new JsonArray();
+		indexCodecs.add(bytesCodec());
+
+		final JsonObject shardingConfiguration = new JsonObject();
+		shardingConfiguration.add("chunk_shape", reversed(attributes.getBlockSize()));
+		shardingConfiguration.add("codecs", chunkCodecs);
+		shardingConfiguration.add("index_codecs", indexCodecs);
+		shardingConfiguration.addProperty("index_location", "end");
+		final JsonArray codecs = new JsonArray();
+		codecs.add(codec("sharding_indexed", shardingConfiguration));
+
+		final JsonObject metadata = new JsonObject();
+		metadata.addProperty("zarr_format", 3);
+		metadata.addProperty("node_type", "array");
+		metadata.add("shape", reversed(attributes.getDimensions()));
+		metadata.addProperty("data_type", zarrDataType(attributes.getDataType()));
+		metadata.add("chunk_grid", chunkGrid);
+		metadata.add("chunk_key_encoding", chunkKeyEncoding);
+		metadata.addProperty("fill_value", 0);
+		metadata.add("codecs", codecs);
+		metadata.add("attributes", new JsonObject());
+
+		try {
+			writeMetadata(datasetPath, metadata);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Add attributes to an existing group or array.
+	 *
+	 * @param groupPath
+	 * @param attributes
+	 */
+	public synchronized void setAttributes(final String groupPath, final Map<String, ?> attributes) {
+
+		try {
+			final JsonObject metadata = readMetadata(groupPath);
+			JsonObject json = metadata.getAsJsonObject("attributes");
+			if (json == null) {
+				json = new JsonObject();
+				metadata.add("attributes", json);
+			}
+			for (final Entry<String, ?> entry : attributes.entrySet()) {
+				final Object value = entry.getValue();
+				json.add(entry.getKey(), value instanceof JsonElement ? (JsonElement)value : gson.toJsonTree(value));
+			}
+			writeMetadata(groupPath, metadata);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Encode the data of a full size chunk.
+	 *
+	 * @param data byte[], short[], int[], long[], float[], or double[]
+	 * @param gzipLevel gzip compression level or -1 for no compression
+	 * @return
+	 */
+	public static byte[] encodeChunk(final Object data, final int gzipLevel) {
+
+		final ByteBuffer buffer;
+		if (data instanceof byte[])
+			buffer = ByteBuffer.wrap((byte[])data);
+		else if (data instanceof short[]) {
+			final short[] a = (short[])data;
+			buffer = ByteBuffer.allocate(a.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.asShortBuffer().put(a);
+		} else if (data instanceof int[]) {
+			final int[] a = (int[])data;
+			buffer = ByteBuffer.allocate(a.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.asIntBuffer().put(a);
+		} else if (data instanceof long[]) {
+			final long[] a = (long[])data;
+			buffer = ByteBuffer.allocate(a.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.asLongBuffer().put(a);
+		} else if (data instanceof float[]) {
+			final float[] a = (float[])data;
+			buffer = ByteBuffer.allocate(a.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.asFloatBuffer().put(a);
+		} else if (data instanceof double[]) {
+			final double[] a = (double[])data;
+			buffer = ByteBuffer.allocate(a.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.asDoubleBuffer().put(a);
+		} else
+			throw new IllegalArgumentException("Unsupported data " + data);
+
+		final byte[] bytes = buffer.array();
+		if (gzipLevel < 0)
+			return bytes;
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+		try (final GZIPOutputStream gzip = new GZIPOutputStream(out) {
+			{
+				def.setLevel(gzipLevel);
+			}
+		}) {
+			gzip.write(bytes);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Concatenate encoded chunks and append the index.
+	 *
+	 * @param chunks encoded chunks in the order of the index (C order in
+	 *        Zarr, i.e. x fastest in N5), null for missing chunks
+	 * @return
+	 */
+	public static byte[] assembleShard(final byte[][] chunks) {
+
+		long size = 16L * chunks.length;
+		for (final byte[] chunk : chunks)
+			if (chunk != null)
+				size += chunk.length;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Shard of " + size + " bytes is too large, use a smaller shard size");
+
+		final ByteBuffer shard = ByteBuffer.allocate((int)size);
+		final ByteBuffer index = ByteBuffer.allocate(16 * chunks.length).order(ByteOrder.LITTLE_ENDIAN);
+		for (final byte[] chunk : chunks) {
+			if (chunk == null) {
+				index.putLong(MISSING);
+				index.putLong(MISSING);
+			} else {
+				index.putLong(shard.position());
+				index.putLong(chunk.length);
+				shard.put(chunk);
+			}
+		}
+		shard.put(index.array());
+		return shard.array();
+	}
+
+	/**
+	 * Write a shard with a single write.
+	 *
+	 * @param datasetPath
+	 * @param shardPosition position in the N5 shard grid
+	 * @param bytes
+	 */
+	public void writeShard(final String datasetPath, final long[] shardPosition, final byte[] bytes) {
+
+		Path path = path(datasetPath).resolve("c");
+		for (int d = shardPosition.length - 1; d >= 0; --d)
+			path = path.resolve(Long.toString(shardPosition[d]));
+		try {
+			Files.createDirectories(path.getParent());
+			Files.write(path, bytes);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
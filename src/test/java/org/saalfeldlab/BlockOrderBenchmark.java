@@ -0,0 +1,53 @@
+package org.saalfeldlab;
+
+import java.util.Locale;
+
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.BlockOrder;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.universe.N5Factory;
+
+/**
+ * Reads all blocks of a dataset in every {@link BlockOrder} with a single
+ * thread and prints blocks/s, e.g. to compare orders on file system N5,
+ * HDF5, and Zarr containers:
+ *
+ * <pre>
+ * BlockOrderBenchmark /path/file.n5 /volumes/raw [raster,morton,hilbert]
+ * </pre>
+ *
+ * Each order profits from what the previous orders left in the page cache,
+ * so run one order per process after dropping the caches
+ * ({@code sync; echo 3 > /proc/sys/vm/drop_caches}) for cold numbers.
+ */
+public class BlockOrderBenchmark {
+
+	public static void main(final String... args) {
+
+		if (args.length < 2) {
+			System.err.println("usage: BlockOrderBenchmark container dataset [raster,morton,hilbert]");
+			return;
+		}
+
+		final N5Reader n5 = new N5Factory().openReader(args[0]);
+		final String dataset = args[1];
+		final String orders = args.length > 2 ? args[2] : "raster,morton,hilbert";
+		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+		final BlockGrid grid = new BlockGrid(attributes);
+
+		System.out.println(String.format(Locale.ROOT, "%-8s %10s %10s %12s", "order", "blocks", "seconds", "blocks/s"));
+		for (final String name : orders.split(",\\s*")) {
+			final BlockOrder order = BlockOrder.valueOf(name.toUpperCase());
+			final long[] numBlocks = new long[1];
+			final long t = System.nanoTime();
+			order.forEach(grid.getGridDimensions(), gridPosition -> {
+				if (n5.readBlock(dataset, attributes, gridPosition) != null)
+					++numBlocks[0];
+			});
+			final double seconds = (System.nanoTime() - t) / 1e9;
+			System.out.println(String.format(Locale.ROOT, "%-8s %10d %10.2f %12.1f", name, numBlocks[0], seconds, numBlocks[0] / seconds));
+		}
+		n5.close();
+	}
+}
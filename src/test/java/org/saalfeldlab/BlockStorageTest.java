@@ -0,0 +1,259 @@
+package org.saalfeldlab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.block.BlockChecksums;
+import org.janelia.saalfeldlab.block.BlockDeduplicator;
+import org.janelia.saalfeldlab.block.BlockDelta;
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.BlockManifest;
+import org.janelia.saalfeldlab.block.DataBlocks;
+import org.janelia.saalfeldlab.block.RawBlocks;
+import org.janelia.saalfeldlab.block.ShardAssembler;
+import org.janelia.saalfeldlab.block.ZarrShardWriter;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class BlockStorageTest {
+
+	private static Path tmp;
+	private static N5FSWriter n5;
+	private static final DatasetAttributes attributes = new DatasetAttributes(new long[]{100, 50, 30}, new int[]{10, 10, 10}, DataType.UINT16, new RawCompression());
+	private static final DatasetAttributes smallAttributes = new DatasetAttributes(new long[]{8, 8}, new int[]{4, 4}, DataType.UINT16, new RawCompression());
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+
+		tmp = Files.createTempDirectory("n5-block-storage-test");
+		n5 = new N5FSWriter(tmp.resolve("output.n5").toString());
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+
+		TestContainers.delete(tmp);
+	}
+
+	@Test
+	public void testChecksums() {
+
+		n5.createDataset("/checksums", attributes);
+		assertNull(BlockChecksums.load(n5, "/checksums"));
+
+		final BlockChecksums checksums = BlockChecksums.open(n5, "/checksums", attributes, false, 0);
+		assertTrue(checksums.isNew());
+		final long checksum = BlockChecksums.checksum(new byte[]{1, 2, 3});
+		checksums.set(new long[]{9, 4, 2}, checksum);
+		checksums.set(new long[]{0, 0, 0}, 17);
+		checksums.set(new long[]{2, 0, 0}, BlockChecksums.MISSING);
+		checksums.complete();
+
+		final BlockChecksums loaded = BlockChecksums.load(n5, "/checksums");
+		assertTrue(loaded.isComplete());
+		assertEquals(checksum, loaded.get(new long[]{9, 4, 2}));
+		assertEquals(17, loaded.get(new long[]{0, 0, 0}));
+		assertEquals(BlockChecksums.NOT_RECORDED, loaded.get(new long[]{1, 0, 0}));
+		assertEquals(BlockChecksums.MISSING, loaded.get(new long[]{2, 0, 0}));
+
+		/* kept when reopened, replaced if not */
+		final BlockChecksums kept = BlockChecksums.open(n5, "/checksums", attributes, true, 0);
+		assertFalse(kept.isNew());
+		assertFalse(BlockChecksums.load(n5, "/checksums").isComplete());
+		assertEquals(17, kept.get(new long[]{0, 0, 0}));
+		final BlockChecksums replaced = BlockChecksums.open(n5, "/checksums", attributes, false, 0);
+		assertTrue(replaced.isNew());
+		assertEquals(BlockChecksums.NOT_RECORDED, replaced.get(new long[]{0, 0, 0}));
+	}
+
+	@Test
+	public void testManifest() {
+
+		n5.createDataset("/manifest", attributes);
+		final BlockManifest manifest = BlockManifest.open(n5, "/manifest", attributes, Long.MAX_VALUE);
+		assertTrue(manifest.isNew());
+		assertEquals(150, manifest.getNumBlocks());
+
+		/* 150 blocks span three words */
+		manifest.markDone(0);
+		manifest.markDone(63);
+		manifest.markDone(64);
+		manifest.markDone(149);
+		manifest.markDone(149);
+		assertEquals(4, manifest.countDone());
+
+		/* not written before the checkpoint is due */
+		manifest.checkpointIfDue();
+		assertEquals(0, BlockManifest.open(n5, "/manifest", attributes, Long.MAX_VALUE).countDone());
+
+		manifest.checkpoint();
+		final BlockManifest resumed = BlockManifest.open(n5, "/manifest", attributes, Long.MAX_VALUE);
+		assertFalse(resumed.isNew());
+		assertFalse(resumed.isComplete());
+		for (long i = 0; i < resumed.getNumBlocks(); ++i)
+			assertEquals(i == 0 || i == 63 || i == 64 || i == 149, resumed.isDone(i));
+
+		resumed.complete();
+		assertTrue(BlockManifest.open(n5, "/manifest", attributes, Long.MAX_VALUE).isComplete());
+
+		/* blocks of a different compression are not resumed */
+		final DatasetAttributes gzip = new DatasetAttributes(attributes.getDimensions(), attributes.getBlockSize(), DataType.UINT16, new GzipCompression());
+		assertTrue(BlockManifest.open(n5, "/manifest", gzip, Long.MAX_VALUE).isNew());
+
+		/* a changed layout starts over */
+		final DatasetAttributes changed = new DatasetAttributes(attributes.getDimensions(), new int[]{20, 10, 10}, DataType.UINT16, new RawCompression());
+		n5.createDataset("/manifest", changed);
+		final BlockManifest restarted = BlockManifest.open(n5, "/manifest", changed, Long.MAX_VALUE);
+		assertTrue(restarted.isNew());
+		assertEquals(0, restarted.countDone());
+	}
+
+	private static byte[] encode(final short value) {
+
+		final short[] data = new short[16];
+		Arrays.fill(data, value);
+		return RawBlocks.encode(smallAttributes, new ShortArrayDataBlock(new int[]{4, 4}, new long[]{0, 0}, data));
+	}
+
+	private static Path path(final String datasetName, final long... gridPosition) {
+
+		return Paths.get(RawBlocks.blockPath(n5, datasetName, gridPosition));
+	}
+
+	@Test
+	public void testDedup() throws Exception {
+
+		n5.createDataset("/dedup", smallAttributes);
+		assertTrue(BlockDeduplicator.supports(n5));
+
+		final BlockDeduplicator dedup = new BlockDeduplicator();
+		final byte[] padding = encode((short)0);
+		final byte[] other = encode((short)7);
+		assertFalse(dedup.write(n5, "/dedup", new long[]{0, 0}, padding));
+		assertTrue(dedup.write(n5, "/dedup", new long[]{1, 0}, padding));
+		assertTrue(dedup.write(n5, "/dedup", new long[]{0, 1}, padding));
+		assertFalse(dedup.write(n5, "/dedup", new long[]{1, 1}, other));
+
+		assertEquals(4, dedup.getNumBlocks());
+		assertEquals(2, dedup.getNumLinked());
+		assertTrue(Files.isSameFile(path("/dedup", 0, 0), path("/dedup", 1, 0)));
+		assertTrue(Files.isSameFile(path("/dedup", 0, 0), path("/dedup", 0, 1)));
+		assertFalse(Files.isSameFile(path("/dedup", 0, 0), path("/dedup", 1, 1)));
+
+		/* rewriting a linked block, with or without dedup, does not change the blocks it was linked to */
+		assertFalse(new BlockDeduplicator().write(n5, "/dedup", new long[]{1, 0}, other));
+		RawBlocks.write(n5, "/dedup", new long[]{0, 1}, other);
+		assertFalse(Files.isSameFile(path("/dedup", 0, 0), path("/dedup", 0, 1)));
+		assertArrayEquals(padding, RawBlocks.read(n5, "/dedup", 0, 0));
+		assertArrayEquals(other, RawBlocks.read(n5, "/dedup", 1, 0));
+		assertArrayEquals(other, RawBlocks.read(n5, "/dedup", 0, 1));
+
+		/* no temporary files are left behind */
+		try (final Stream<Path> files = Files.list(path("/dedup", 0, 0).getParent())) {
+			assertFalse(files.anyMatch(file -> file.getFileName().toString().endsWith(".tmp")));
+		}
+	}
+
+	@Test
+	public void testDelta() throws Exception {
+
+		final N5FSWriter source = new N5FSWriter(tmp.resolve("source.n5").toString());
+		source.createDataset("/delta", smallAttributes);
+		n5.createDataset("/delta", smallAttributes);
+
+		final long[] gridPosition = new long[]{1, 0};
+		final List<long[]> sourcePositions = Collections.singletonList(gridPosition);
+		final BlockDelta delta = new BlockDelta(source, "/delta", n5, "/delta", smallAttributes, true);
+
+		/* missing in both */
+		assertTrue(delta.isUnchanged(gridPosition, sourcePositions));
+
+		/* new in the source */
+		source.writeBlock("/delta", smallAttributes, new ShortArrayDataBlock(new int[]{4, 4}, gridPosition, new short[16]));
+		assertFalse(delta.isUnchanged(gridPosition, sourcePositions));
+		RawBlocks.write(n5, "/delta", gridPosition, RawBlocks.read(source, "/delta", gridPosition));
+		delta.markWritten(gridPosition);
+		assertTrue(delta.isUnchanged(gridPosition, sourcePositions));
+
+		/* modified in the source */
+		Files.setLastModifiedTime(
+				Paths.get(RawBlocks.blockPath(source, "/delta", gridPosition)),
+				FileTime.fromMillis(System.currentTimeMillis() + 10000));
+		assertFalse(delta.isUnchanged(gridPosition, sourcePositions));
+
+		/* deleted in the source */
+		source.deleteBlock("/delta", gridPosition);
+		assertFalse(delta.isUnchanged(gridPosition, sourcePositions));
+	}
+
+	@Test
+	public void testShards() throws Exception {
+
+		final Path path = tmp.resolve("shards.zarr");
+		final DatasetAttributes chunkAttributes = new DatasetAttributes(new long[]{5, 3}, new int[]{2, 2}, DataType.UINT16, new RawCompression());
+		final int[] shardSize = new int[]{4, 2};
+
+		final ZarrShardWriter writer = new ZarrShardWriter(path.toString());
+		writer.createArray("/volumes/raw", chunkAttributes, shardSize, -1);
+		assertTrue(Files.isRegularFile(path.resolve("zarr.json")));
+		assertTrue(Files.isRegularFile(path.resolve("volumes/zarr.json")));
+		assertTrue(Files.isRegularFile(path.resolve("volumes/raw/zarr.json")));
+
+		/* value = 100 * y + x */
+		final long[] values = new long[15];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = 100 * (i / 5) + i % 5;
+
+		final ShardAssembler assembler = new ShardAssembler(writer, "/volumes/raw", chunkAttributes, shardSize, -1, false);
+		final BlockGrid grid = new BlockGrid(chunkAttributes);
+		for (long i = 0; i < grid.getNumBlocks(); ++i) {
+			final long[] gridPosition = grid.gridPosition(i);
+			final int[] size = grid.blockSize(gridPosition);
+			final long[] min = new long[2];
+			grid.blockMin(gridPosition, min);
+			final long[] chunk = new long[size[0] * size[1]];
+			DataBlocks.copyIntersection(values, new int[]{5, 3}, new long[2], chunk, size, min);
+			assembler.accept(DataBlocks.createDataBlock(size, gridPosition, DataBlocks.fromLongs(chunk, DataType.UINT16)));
+		}
+
+		/* shard grid 2x2, Zarr keys are in reversed order */
+		for (int sy = 0; sy < 2; ++sy)
+			for (int sx = 0; sx < 2; ++sx)
+				assertTrue(Files.isRegularFile(path.resolve("volumes/raw/c/" + sy + "/" + sx)));
+
+		/* the last shard has one padded 2x2 chunk and one missing chunk */
+		final ByteBuffer shard = ByteBuffer.wrap(Files.readAllBytes(path.resolve("volumes/raw/c/1/1"))).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(4 * 2 + 2 * 16, shard.capacity());
+		shard.position(shard.capacity() - 2 * 16);
+		assertEquals(0, shard.getLong());
+		assertEquals(4 * 2, shard.getLong());
+		assertEquals(-1L, shard.getLong());
+		assertEquals(-1L, shard.getLong());
+
+		final short[] chunk = new short[4];
+		shard.position(0);
+		shard.asShortBuffer().get(chunk);
+		assertArrayEquals(new short[]{204, 0, 0, 0}, chunk);
+	}
+}
@@ -0,0 +1,363 @@
+package org.saalfeldlab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
+
+import org.janelia.saalfeldlab.block.BlockChecksums;
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.BlockOrder;
+import org.janelia.saalfeldlab.block.CompressionBenchmark;
+import org.janelia.saalfeldlab.block.DataBlocks;
+import org.janelia.saalfeldlab.block.IoExecutor;
+import org.janelia.saalfeldlab.block.LongBitmap;
+import org.janelia.saalfeldlab.block.MemoryBudget;
+import org.janelia.saalfeldlab.block.PyramidReducer;
+import org.janelia.saalfeldlab.block.TypeConverter;
+import org.janelia.saalfeldlab.block.ValueWriter;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.Test;
+
+public class BlockTest {
+
+	@Test
+	public void testIsEmpty() {
+
+		assertTrue(DataBlocks.isEmpty(new byte[10]));
+		assertTrue(DataBlocks.isEmpty(new short[10]));
+		assertTrue(DataBlocks.isEmpty(new int[10]));
+		assertTrue(DataBlocks.isEmpty(new long[10]));
+		assertTrue(DataBlocks.isEmpty(new float[10]));
+		assertTrue(DataBlocks.isEmpty(new double[10]));
+		assertTrue(DataBlocks.isEmpty(new long[0]));
+
+		/* a single value anywhere, including the last element of a border block */
+		assertFalse(DataBlocks.isEmpty(new byte[]{0, 0, -1}));
+		assertFalse(DataBlocks.isEmpty(new int[]{0, Integer.MIN_VALUE, 0}));
+		assertFalse(DataBlocks.isEmpty(new double[]{0, 0, 1e-300}));
+
+		/* missing blocks read as +0.0, so -0.0 and NaN have to be written */
+		assertFalse(DataBlocks.isEmpty(new float[]{0, -0.0f, 0}));
+		assertFalse(DataBlocks.isEmpty(new double[]{Double.NaN}));
+
+		assertFalse(DataBlocks.isEmpty(null));
+	}
+
+	private static ArrayList<long[]> positions(final BlockOrder order, final long[] gridDimensions) {
+
+		final ArrayList<long[]> positions = new ArrayList<>();
+		order.forEach(gridDimensions, position -> positions.add(position.clone()));
+		return positions;
+	}
+
+	@Test
+	public void testBlockOrder() {
+
+		for (final BlockOrder order : BlockOrder.values()) {
+			for (final long[] gridDimensions : new long[][]{{13, 5, 3}, {1000, 2, 1}, {7, 9}, {3, 0, 3}, {17}}) {
+				final ArrayList<long[]> positions = positions(order, gridDimensions);
+				final HashSet<String> unique = new HashSet<>();
+				for (final long[] position : positions) {
+					for (int d = 0; d < gridDimensions.length; ++d)
+						assertTrue(position[d] >= 0 && position[d] < gridDimensions[d]);
+					unique.add(Arrays.toString(position));
+				}
+				final long numBlocks = LongStream.of(gridDimensions).reduce(1, (a, b) -> a * b);
+				assertEquals(numBlocks, positions.size());
+				assertEquals(numBlocks, unique.size());
+			}
+		}
+
+		/* Hilbert order only steps to face neighbors */
+		for (final long[] gridDimensions : new long[][]{{16, 16}, {8, 8, 8}, {4, 4, 4, 4}}) {
+			final ArrayList<long[]> positions = positions(BlockOrder.HILBERT, gridDimensions);
+			for (int i = 1; i < positions.size(); ++i) {
+				long distance = 0;
+				for (int d = 0; d < gridDimensions.length; ++d)
+					distance += Math.abs(positions.get(i)[d] - positions.get(i - 1)[d]);
+				assertEquals(1, distance);
+			}
+		}
+
+		final BlockGrid grid = new BlockGrid(new long[]{100, 70, 30}, new int[]{16, 16, 16});
+		final long[] indices = BlockOrder.MORTON.indices(grid);
+		final long[] sorted = indices.clone();
+		Arrays.sort(sorted);
+		assertArrayEquals(LongStream.range(0, grid.getNumBlocks()).toArray(), sorted);
+		/* the first 2x2x2 blocks of Z-order */
+		assertEquals(grid.index(new long[]{1, 1, 1}), indices[7]);
+	}
+
+	/* dense runs, sparse values, and negative values */
+	private static long[] values(final Random random, final int n) {
+
+		final long[] values = new long[n];
+		for (int i = 0; i < n; ++i) {
+			switch (random.nextInt(4)) {
+			case 0:
+				values[i] = random.nextLong();
+				break;
+			case 1:
+				values[i] = -random.nextInt(100000);
+				break;
+			default:
+				values[i] = 1000000 + random.nextInt(200000);
+			}
+		}
+		return values;
+	}
+
+	@Test
+	public void testLongBitmap() {
+
+		final Random random = new Random(13);
+		final LongBitmap a = new LongBitmap();
+		final LongBitmap b = new LongBitmap();
+		final TreeSet<Long> expected = new TreeSet<>();
+		for (final long value : values(random, 50000))
+			assertEquals(expected.add(value), a.add(value));
+		for (final long value : values(random, 1000))
+			assertEquals(expected.contains(value), a.contains(value));
+		for (final long value : values(random, 50000)) {
+			b.add(value);
+			expected.add(value);
+		}
+		final long[] bValues = b.toArray();
+
+		a.or(b);
+		assertEquals(expected.size(), a.size());
+		assertArrayEquals(expected.stream().mapToLong(Long::longValue).toArray(), a.toArray());
+		assertArrayEquals(bValues, b.toArray());
+
+		final LongBitmap dense = new LongBitmap();
+		for (long value = 0; value < 1 << 20; ++value)
+			dense.add(value);
+		assertArrayEquals(LongStream.range(0, 1 << 20).toArray(), dense.toArray());
+		/* 1 bit per value plus overhead, instead of 16 bytes or more per value in a hash set */
+		assertTrue(dense.sizeInBytes() < (1 << 20) / 8 + 4096);
+	}
+
+	@Test
+	public void testMemoryBudget() throws InterruptedException {
+
+		assertEquals(1000, MemoryBudget.parse("1000"));
+		assertEquals(512L << 10, MemoryBudget.parse("512k"));
+		assertEquals(3L << 29, MemoryBudget.parse("1.5G"));
+
+		final MemoryBudget budget = new MemoryBudget(100);
+		assertEquals(60, budget.acquire(60));
+		assertEquals(40, budget.getAvailable());
+
+		/* a request for all waits until everything is released */
+		final long[] taken = new long[1];
+		final Thread thread = new Thread(() -> {
+			try {
+				taken[0] = budget.acquire(100);
+			} catch (final InterruptedException e) {}
+		});
+		thread.start();
+		budget.release(60);
+		thread.join();
+		assertEquals(100, taken[0]);
+		assertEquals(0, budget.getAvailable());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMemoryBudgetTooMuch() throws InterruptedException {
+
+		/* a request larger than the budget could never be served */
+		new MemoryBudget(100).acquire(101);
+	}
+
+	@Test
+	public void testTypeConverter() {
+
+		final DataBlock<?> contrasted = TypeConverter.contrast(DataType.FLOAT32, DataType.UINT8, 0.5, 1.5).apply(
+				new FloatArrayDataBlock(new int[]{5}, new long[]{3}, new float[]{0, 0.5f, 1, 1.5f, Float.NaN}));
+		assertArrayEquals(new long[]{3}, contrasted.getGridPosition());
+		assertArrayEquals(new byte[]{0, 0, (byte)128, (byte)255, 0}, (byte[])contrasted.getData());
+
+		/* labels that do not fit are clamped */
+		final DataBlock<?> narrowed = new TypeConverter(DataType.UINT64, DataType.UINT32, 1, 0).apply(
+				new LongArrayDataBlock(new int[]{4}, new long[]{0}, new long[]{0, 0xfffffffeL, 1L << 40, -1L}));
+		assertArrayEquals(new int[]{0, 0xfffffffe, -1, -1}, (int[])narrowed.getData());
+	}
+
+	@Test
+	public void testValueWriter() throws IOException {
+
+		final Path path = Files.createTempFile("values", ".txt");
+		try {
+			try (final ValueWriter writer = ValueWriter.toFile(path.toString(), ValueWriter.Format.TEXT, true, false, true)) {
+				writer.write(7, 3);
+				writer.write(-1, 2);
+			}
+			assertEquals(
+					Arrays.asList("value,count", "7,3", "18446744073709551615,2"),
+					Files.readAllLines(path, StandardCharsets.UTF_8));
+
+			/* the stdout format of earlier versions, Arrays.toString and an empty line */
+			try (final ValueWriter writer = ValueWriter.toFile(path.toString(), ValueWriter.Format.ARRAY, false, false, false)) {
+				writer.write(-1);
+				writer.write(0);
+				writer.write(7);
+			}
+			assertEquals(Arrays.toString(new long[]{-1, 0, 7}) + "\n\n", new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+
+			/* more values than fit into one buffer */
+			final long[] values = new long[3 * ValueWriter.BLOCK_SIZE / 8 + 5];
+			for (int i = 0; i < values.length; ++i)
+				values[i] = (long)i * i - 1000;
+			try (final ValueWriter writer = ValueWriter.toFile(path.toString(), ValueWriter.Format.BINARY, false, false, false)) {
+				for (final long value : values)
+					writer.write(value);
+			}
+			final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+			final long[] actual = new long[bytes.remaining() / 8];
+			bytes.asLongBuffer().get(actual);
+			assertArrayEquals(values, actual);
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void testChecksums() {
+
+		assertEquals(0xEF46DB3751D8E999L, BlockChecksums.xxHash64(new byte[0]));
+		assertEquals(0x44BC2CF5AD770999L, BlockChecksums.xxHash64("abc".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(0xFBCEA83C8A378BF1L, BlockChecksums.xxHash64("Nobody inspects the spammish repetition".getBytes(StandardCharsets.UTF_8)));
+
+		/* checksums of blocks never collide with the sentinels */
+		for (final byte[] bytes : new byte[][]{{}, {0}, {1, 2, 3}}) {
+			final long checksum = BlockChecksums.checksum(bytes);
+			assertTrue(checksum != BlockChecksums.NOT_RECORDED);
+			assertTrue(checksum != BlockChecksums.MISSING);
+		}
+	}
+
+	/* feed the blocks of a 7x5 uint8 image in reverse order and assemble the 4x3 parent */
+	private static long[] reduce(final long[] values, final boolean mode) {
+
+		final DatasetAttributes attributes = new DatasetAttributes(new long[]{7, 5}, new int[]{2, 2}, DataType.UINT8, new RawCompression());
+		final DatasetAttributes parentAttributes = new DatasetAttributes(PyramidReducer.downsampledDimensions(attributes.getDimensions()), new int[]{2, 2}, DataType.UINT8, new RawCompression());
+		final ArrayList<DataBlock<?>> parentBlocks = new ArrayList<>();
+		final PyramidReducer reducer = new PyramidReducer(attributes, parentAttributes, mode, parentBlocks::add);
+
+		final BlockGrid grid = new BlockGrid(attributes);
+		for (long i = grid.getNumBlocks() - 1; i >= 0; --i) {
+			final long[] gridPosition = grid.gridPosition(i);
+			final int[] size = grid.blockSize(gridPosition);
+			final long[] min = new long[2];
+			grid.blockMin(gridPosition, min);
+			final long[] blockValues = new long[size[0] * size[1]];
+			DataBlocks.copyIntersection(values, new int[]{7, 5}, new long[2], blockValues, size, min);
+			reducer.accept(DataBlocks.createDataBlock(size, gridPosition, DataBlocks.fromLongs(blockValues, DataType.UINT8)));
+		}
+
+		assertEquals(new BlockGrid(parentAttributes).getNumBlocks(), parentBlocks.size());
+		return TestContainers.assemble(parentBlocks, parentAttributes);
+	}
+
+	@Test
+	public void testPyramidReducer() {
+
+		final long[] values = TestContainers.random(7 * 5, 256, 42);
+		final long[] mean = new long[4 * 3];
+		for (int y = 0; y < 3; ++y)
+			for (int x = 0; x < 4; ++x) {
+				double sum = 0;
+				int count = 0;
+				for (int yy = 2 * y; yy < Math.min(5, 2 * y + 2); ++yy)
+					for (int xx = 2 * x; xx < Math.min(7, 2 * x + 2); ++xx) {
+						sum += values[yy * 7 + xx];
+						++count;
+					}
+				mean[y * 4 + x] = Math.round(sum / count);
+			}
+		assertArrayEquals(mean, reduce(values, false));
+
+		final long[] labels = new long[7 * 5];
+		for (int i = 0; i < labels.length; ++i)
+			labels[i] = (i % 7) / 2 + (i / 7 / 2) * 4;
+		/* one outlier per 2x2 neighborhood does not change the mode */
+		labels[0] = 100;
+		assertArrayEquals(LongStream.range(0, 4 * 3).toArray(), reduce(labels, true));
+	}
+
+	@Test
+	public void testCompressionBenchmark() {
+
+		final int[] blockSize = new int[]{64, 64};
+		final DatasetAttributes attributes = new DatasetAttributes(new long[]{256, 64}, blockSize, DataType.UINT16, new RawCompression());
+
+		/* smooth and therefore well compressible samples */
+		final ArrayList<DataBlock<?>> samples = new ArrayList<>();
+		for (int i = 0; i < 4; ++i) {
+			final short[] data = new short[64 * 64];
+			for (int j = 0; j < data.length; ++j)
+				data[j] = (short)(j / 256 + i);
+			samples.add(new ShortArrayDataBlock(blockSize, new long[]{i, 0}, data));
+		}
+
+		final CompressionBenchmark benchmark = new CompressionBenchmark();
+		benchmark.add("raw", new RawCompression());
+		benchmark.add("gzip 6", new GzipCompression(6));
+		benchmark.run(samples, attributes, 2);
+
+		final List<CompressionBenchmark.Result> results = benchmark.getResults();
+		assertEquals(2, results.size());
+		assertEquals(4 * 64 * 64 * 2, results.get(0).numBytes);
+		assertTrue(results.get(0).ratio() <= 1.0);
+		assertTrue(results.get(1).ratio() > 10);
+		assertEquals("gzip 6", benchmark.best(CompressionBenchmark.Objective.SIZE, 200).name);
+	}
+
+	@Test
+	public void testIoExecutor() {
+
+		/* virtual threads fall back to platform threads before Java 21 */
+		for (final boolean virtualThreads : new boolean[]{false, true}) {
+			final IoExecutor io = new IoExecutor(50, virtualThreads);
+			final AtomicInteger inFlight = new AtomicInteger();
+			final AtomicInteger max = new AtomicInteger();
+			final ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < 200; ++i)
+				futures.add(CompletableFuture.runAsync(() -> {
+					max.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+					try {
+						Thread.sleep(20);
+					} catch (final InterruptedException e) {}
+					inFlight.decrementAndGet();
+				}, io));
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+			io.shutdown();
+			assertTrue(max.get() <= 50);
+			assertTrue(max.get() > 25);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.saalfeldlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+
+import org.janelia.saalfeldlab.Copy;
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.DataBlocks;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.universe.N5Factory;
+
+import net.imglib2.RandomAccessibleInterval;
+import picocli.CommandLine;
+
+/**
+ * Compares the export of an N5 dataset into HDF5 by {@link Copy}, which
+ * reads, decodes and assembles blocks in parallel and serializes only the
+ * writes, with the single-threaded {@link N5Utils#save} that was used for
+ * HDF5 outputs before.  The source is a gzip compressed UINT16 volume of
+ * smooth noise in a temporary N5 container, the outputs are gzip
+ * compressed:
+ *
+ * <pre>
+ * CopyHDF5Benchmark [size [blockSize [repetitions]]]
+ * </pre>
+ *
+ * The deflate of every block runs inside N5HDF5Writer.writeBlock and
+ * therefore under the writer lock, so the speedup is bounded by the share of
+ * reading and decoding in the single-threaded time.
+ */
+public class CopyHDF5Benchmark {
+
+	public static void main(final String... args) throws IOException {
+
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		final int b = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		final int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		final File dir = Files.createTempDirectory("n5-copy-hdf5-benchmark").toFile();
+		final String inputPath = dir.getPath() + "/input.n5";
+		final N5FSWriter n5 = new N5FSWriter(inputPath);
+		try {
+			final int[] blockSize = new int[]{b, b, b};
+			final DatasetAttributes attributes = new DatasetAttributes(new long[]{n, n, n}, blockSize, DataType.UINT16, new GzipCompression());
+			write(n5, "/data", attributes);
+
+			final int numProcessors = Runtime.getRuntime().availableProcessors();
+			final double voxels = (double)n * n * n;
+			long saveTime = Long.MAX_VALUE;
+			long copyTime = Long.MAX_VALUE;
+			long copyTime1 = Long.MAX_VALUE;
+			for (int r = 0; r < repetitions; ++r) {
+				final File saved = new File(dir, "saved.h5");
+				long t = System.nanoTime();
+				final N5Writer hdf5 = new N5Factory().hdf5DefaultBlockSize(blockSize).openWriter(saved.getPath());
+				save(n5, hdf5, blockSize);
+				hdf5.close();
+				saveTime = Math.min(saveTime, System.nanoTime() - t);
+				saved.delete();
+
+				copyTime1 = Math.min(copyTime1, copy(dir, inputPath, 1));
+				copyTime = Math.min(copyTime, copy(dir, inputPath, numProcessors));
+			}
+
+			System.out.println(String.format(Locale.ROOT, "%-24s %10s %8s", "", "Mvx/s", "speedup"));
+			System.out.println(String.format(Locale.ROOT, "%-24s %10.1f %8.2f", "N5Utils.save", voxels / saveTime * 1000, 1.0));
+			System.out.println(String.format(Locale.ROOT, "%-24s %10.1f %8.2f", "n5-copy -t 1", voxels / copyTime1 * 1000, (double)saveTime / copyTime1));
+			System.out.println(String.format(Locale.ROOT, "%-24s %10.1f %8.2f", "n5-copy -t " + numProcessors, voxels / copyTime * 1000, (double)saveTime / copyTime));
+		} finally {
+			n5.remove();
+			dir.delete();
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static void save(final N5FSWriter n5, final N5Writer hdf5, final int[] blockSize) {
+
+		final RandomAccessibleInterval img = N5Utils.open(n5, "/data");
+		N5Utils.save(img, hdf5, "/data", blockSize, new GzipCompression());
+	}
+
+	private static long copy(final File dir, final String inputPath, final int numThreads) {
+
+		final File copied = new File(dir, "copied.h5");
+		final long t = System.nanoTime();
+		final int exitCode = new CommandLine(new Copy()).execute(
+				"-i", inputPath,
+				"-o", copied.getPath(),
+				"-d", "/data",
+				"-c", "gzip",
+				"-t", Integer.toString(numThreads),
+				"--progress", "0");
+		final long time = System.nanoTime() - t;
+		if (exitCode != 0)
+			throw new IllegalStateException("n5-copy failed with " + exitCode);
+		copied.delete();
+		return time;
+	}
+
+	/* smooth noise that compresses like image data */
+	private static void write(final N5FSWriter n5, final String dataset, final DatasetAttributes attributes) {
+
+		n5.createDataset(dataset, attributes);
+		final BlockGrid grid = new BlockGrid(attributes);
+		final long[] min = new long[3];
+		for (long i = 0; i < grid.getNumBlocks(); ++i) {
+			final long[] gridPosition = grid.gridPosition(i);
+			final int[] size = grid.blockSize(gridPosition);
+			grid.blockMin(gridPosition, min);
+			final long[] values = new long[DataBlock.getNumElements(size)];
+			for (int z = 0, j = 0; z < size[2]; ++z)
+				for (int y = 0; y < size[1]; ++y)
+					for (int x = 0; x < size[0]; ++x, ++j) {
+						final long h = (min[0] + x) * 73856093L ^ (min[1] + y) * 19349663L ^ (min[2] + z) * 83492791L;
+						values[j] = 1000 + (min[0] + x + min[1] + y + min[2] + z) % 2000 + (h & 0x3f);
+					}
+			n5.writeBlock(dataset, attributes, DataBlocks.createDataBlock(size, gridPosition, DataBlocks.fromLongs(values, DataType.UINT16)));
+		}
+	}
+}
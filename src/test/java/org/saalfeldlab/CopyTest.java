@@ -1,14 +1,42 @@
 package org.saalfeldlab;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongUnaryOperator;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
+import org.janelia.saalfeldlab.Copy;
+import org.janelia.saalfeldlab.block.BlockChecksums;
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.BlockManifest;
+import org.janelia.saalfeldlab.block.DataBlocks;
+import org.janelia.saalfeldlab.block.RawBlocks;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
 import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.RawCompression;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.junit.After;
@@ -26,6 +54,7 @@ import net.imglib2.img.basictypeaccess.array.ByteArray;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.view.Views;
+import picocli.CommandLine;
 
 public class CopyTest {
 
@@ -35,6 +64,13 @@ public class CopyTest {
 	private static final int[] blockSize = new int[]{44, 33, 22};
 	private static byte[] bytes;
 
+	private static final long[] n5Dimensions = new long[]{40, 30, 20};
+	private static final int[] n5BlockSize = new int[]{16, 16, 8};
+	private static final DatasetAttributes n5Attributes = new DatasetAttributes(n5Dimensions, n5BlockSize, DataType.UINT16, new GzipCompression());
+	private static Path basePath;
+	private static String inputPath;
+	private static long[] data;
+
 	@BeforeClass
 	public static void setUpBeforeClass() throws Exception {
 
@@ -44,12 +80,18 @@ public class CopyTest {
 		bytes = new byte[(int)dimensions[0] * (int)dimensions[1] * (int)dimensions[2]];
 		rnd.nextBytes(bytes);
 		Files.createDirectories(Paths.get(testDirPath).getParent());
+
+		basePath = Files.createTempDirectory("n5-copy-test");
+		inputPath = basePath.resolve("input.n5").toString();
+		data = TestContainers.random((int)(n5Dimensions[0] * n5Dimensions[1] * n5Dimensions[2]), 20000, 42);
+		TestContainers.write(new N5FSWriter(inputPath), "/data", n5Attributes, data);
 	}
 
 	@AfterClass
 	public static void tearDownAfterClass() throws Exception {
 
 		Files.delete(Paths.get(testDirPath).getParent());
+		TestContainers.delete(basePath);
 	}
 
 	@Before
@@ -91,4 +133,239 @@ public class CopyTest {
 
 		new N5HDF5Writer(testDirPath).remove();
 	}
+
+	static String output(final String name) {
+
+		return basePath.resolve(name).toString();
+	}
+
+	/* copy /data from the input into an output with more options */
+	static String[] args(final String inputPath, final String outputPath, final String... options) {
+
+		final String[] args = {"-i", inputPath, "-o", outputPath, "-d", "/data", "--progress", "0"};
+		return Stream.concat(Arrays.stream(args), Arrays.stream(options)).toArray(String[]::new);
+	}
+
+	@Test
+	public void testN5Copy() {
+
+		/* only the first copies blocks encoded, the others change values, compression, layout, or type */
+		final String[][] options = {{}, {"--scale", "2", "--offset", "1"}, {"-c", "raw"}, {"-b", "10,10,10"}, {"--type", "uint32"}, {"--type", "uint8", "--scale", "0.01"}};
+		final LongUnaryOperator[] conversions = {v -> v, v -> 2 * v + 1, v -> v, v -> v, v -> v, v -> Math.min(255, Math.round(v * 0.01))};
+		final DataType[] dataTypes = {DataType.UINT16, DataType.UINT16, DataType.UINT16, DataType.UINT16, DataType.UINT32, DataType.UINT8};
+
+		final N5FSReader input = new N5FSReader(inputPath);
+		for (int i = 0; i < options.length; ++i) {
+			final String outputPath = output("copy-" + i + ".n5");
+			final String log = TestContainers.execute(new Copy(), args(inputPath, outputPath, options[i]));
+			assertEquals(Arrays.toString(options[i]), i == 0, log.contains("copying encoded blocks"));
+
+			final N5FSReader n5 = new N5FSReader(outputPath);
+			final DatasetAttributes attributes = n5.getDatasetAttributes("/data");
+			assertEquals(dataTypes[i], attributes.getDataType());
+			assertArrayEquals(i == 3 ? new int[]{10, 10, 10} : n5BlockSize, attributes.getBlockSize());
+			assertEquals(i == 2, attributes.getCompression() instanceof RawCompression);
+			assertArrayEquals(LongStream.of(data).map(conversions[i]).toArray(), TestContainers.read(n5, "/data"));
+
+			if (i == 0) {
+				final BlockGrid grid = new BlockGrid(attributes);
+				for (long j = 0; j < grid.getNumBlocks(); ++j)
+					assertArrayEquals(RawBlocks.read(input, "/data", grid.gridPosition(j)), RawBlocks.read(n5, "/data", grid.gridPosition(j)));
+			}
+		}
+	}
+
+	/* records the written blocks and fails all writes after the first maxBlocks */
+	static class InterruptedCopy extends Copy {
+
+		final Set<String> written = Collections.newSetFromMap(new ConcurrentHashMap<>());
+		final AtomicInteger numWrites = new AtomicInteger();
+		final int maxBlocks;
+
+		InterruptedCopy(final int maxBlocks) {
+
+			this.maxBlocks = maxBlocks;
+			checkpointInterval = 0;
+		}
+
+		@Override
+		protected void writeBlock(
+				final Output output,
+				final String datasetName,
+				final DatasetAttributes outputAttributes,
+				final DataBlock<?> dataBlock,
+				final BlockChecksums checksums) {
+
+			if (numWrites.incrementAndGet() > maxBlocks)
+				throw new RuntimeException("interrupted");
+			super.writeBlock(output, datasetName, outputAttributes, dataBlock, checksums);
+			written.add(datasetName + Arrays.toString(dataBlock.getGridPosition()));
+		}
+	}
+
+	@Test
+	public void testResume() {
+
+		final String outputPath = output("resumed.n5");
+		final String[] args = args(inputPath, outputPath, "-b", "10,10,10", "-t", "2", "--resume");
+		final DatasetAttributes attributes = new DatasetAttributes(n5Dimensions, new int[]{10, 10, 10}, DataType.UINT16, new GzipCompression());
+		final long numBlocks = new BlockGrid(attributes).getNumBlocks();
+
+		final InterruptedCopy interrupted = new InterruptedCopy(5);
+		assertTrue(new CommandLine(interrupted).execute(args) != 0);
+		assertEquals(5, interrupted.written.size());
+		assertEquals(5, BlockManifest.open(new N5FSWriter(outputPath), "/data", attributes, 0).countDone());
+
+		final InterruptedCopy resumed = new InterruptedCopy(Integer.MAX_VALUE);
+		assertTrue(TestContainers.execute(resumed, args).contains("resuming, 5 of " + numBlocks + " blocks done"));
+
+		/* the blocks of the first run are not written again, together they are all blocks */
+		final Set<String> all = new HashSet<>(interrupted.written);
+		all.addAll(resumed.written);
+		assertEquals(interrupted.written.size() + resumed.written.size(), all.size());
+		assertEquals(numBlocks, all.size());
+		assertArrayEquals(data, TestContainers.read(new N5FSReader(outputPath), "/data"));
+
+		/* a complete copy is skipped */
+		final InterruptedCopy complete = new InterruptedCopy(0);
+		assertTrue(TestContainers.execute(complete, args).contains("already complete"));
+		assertTrue(complete.written.isEmpty());
+	}
+
+	/* records how many different datasets have blocks in flight at the same time */
+	static class TracingCopy extends Copy {
+
+		final ConcurrentHashMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+		final AtomicInteger maxDatasetsInFlight = new AtomicInteger();
+
+		@Override
+		protected void writeBlock(
+				final Output output,
+				final String datasetName,
+				final DatasetAttributes outputAttributes,
+				final DataBlock<?> dataBlock,
+				final BlockChecksums checksums) {
+
+			final AtomicInteger count = inFlight.computeIfAbsent(datasetName, k -> new AtomicInteger());
+			count.incrementAndGet();
+			try {
+				maxDatasetsInFlight.accumulateAndGet((int)inFlight.values().stream().filter(c -> c.get() > 0).count(), Math::max);
+				Thread.sleep(20);
+				super.writeBlock(output, datasetName, outputAttributes, dataBlock, checksums);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} finally {
+				count.decrementAndGet();
+			}
+		}
+	}
+
+	@Test
+	public void testSharedScheduling() {
+
+		final String groupPath = output("group.n5");
+		final N5FSWriter input = new N5FSWriter(groupPath);
+		for (int i = 0; i < 3; ++i) {
+			final long offset = i;
+			TestContainers.write(input, "/group/" + i, n5Attributes, LongStream.of(data).map(v -> v + offset).toArray());
+		}
+
+		/* datasets do not wait for each other, their blocks share the threads */
+		final String outputPath = output("group-copy.n5");
+		final TracingCopy copy = new TracingCopy();
+		TestContainers.execute(copy, "-i", groupPath, "-o", outputPath, "-d", "/group", "-b", "10,10,10", "-t", "4", "--progress", "0");
+		assertTrue(copy.maxDatasetsInFlight.get() >= 2);
+
+		final N5FSReader n5 = new N5FSReader(outputPath);
+		for (int i = 0; i < 3; ++i) {
+			final long offset = i;
+			assertArrayEquals(LongStream.of(data).map(v -> v + offset).toArray(), TestContainers.read(n5, "/group/" + i));
+		}
+	}
+
+	/* assert that exactly the empty blocks are missing */
+	static void assertSkipped(final N5Reader n5, final long[] values) {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes("/data");
+		final BlockGrid grid = new BlockGrid(attributes);
+		for (long i = 0; i < grid.getNumBlocks(); ++i) {
+			final long[] gridPosition = grid.gridPosition(i);
+			final int[] size = grid.blockSize(gridPosition);
+			final long[] min = new long[3];
+			grid.blockMin(gridPosition, min);
+			final long[] blockValues = new long[DataBlock.getNumElements(size)];
+			DataBlocks.copyIntersection(values, TestContainers.toInt(n5Dimensions), new long[3], blockValues, size, min);
+			assertEquals(Arrays.toString(gridPosition), DataBlocks.isEmpty(blockValues), n5.readBlock("/data", attributes, gridPosition) == null);
+		}
+	}
+
+	@Test
+	public void testSkipEmpty() {
+
+		/* zero except for one voxel in block (1, 0, 1), (x + y + z) % 7 for y >= 16, block (0, 0, 0) is missing */
+		final String sparsePath = output("sparse.n5");
+		final N5FSWriter sparse = new N5FSWriter(sparsePath);
+		final long[] values = new long[data.length];
+		for (int i = 0; i < values.length; ++i) {
+			final long x = i % n5Dimensions[0];
+			final long y = i / n5Dimensions[0] % n5Dimensions[1];
+			final long z = i / n5Dimensions[0] / n5Dimensions[1];
+			if (y >= 16)
+				values[i] = (x + y + z) % 7;
+		}
+		values[(int)(31 + n5Dimensions[0] * (15 + n5Dimensions[1] * 15))] = 1;
+		TestContainers.write(sparse, "/data", n5Attributes, values);
+		sparse.deleteBlock("/data", 0, 0, 0);
+
+		/* the missing block, and the zero blocks of the first row including the border blocks in x and z */
+		final String passthroughPath = output("sparse-passthrough.n5");
+		final String passthroughLog = TestContainers.execute(new Copy(), args(sparsePath, passthroughPath, "-e"));
+		assertTrue(passthroughLog.contains("copying encoded blocks"));
+		assertTrue(passthroughLog.contains("skipped 8 missing or empty blocks"));
+		assertSkipped(new N5FSReader(passthroughPath), values);
+		assertArrayEquals(values, TestContainers.read(new N5FSReader(passthroughPath), "/data"));
+
+		/* blocks of an existing output that are empty now are deleted */
+		final String rechunkedPath = output("sparse-rechunked.n5");
+		TestContainers.execute(new Copy(), args(sparsePath, rechunkedPath, "-b", "20,15,10"));
+		final String rechunkedLog = TestContainers.execute(new Copy(), args(sparsePath, rechunkedPath, "-b", "20,15,10", "-e"));
+		assertTrue(rechunkedLog.contains("skipped 4 missing or empty blocks"));
+		assertSkipped(new N5FSReader(rechunkedPath), values);
+		assertArrayEquals(values, TestContainers.read(new N5FSReader(rechunkedPath), "/data"));
+
+		/* missing blocks read as +0.0, a block of -0.0 has to be written */
+		final String floatPath = output("negative-zero.n5");
+		final N5FSWriter floats = new N5FSWriter(floatPath);
+		final DatasetAttributes floatAttributes = new DatasetAttributes(new long[]{8, 4}, new int[]{4, 4}, DataType.FLOAT32, new GzipCompression());
+		floats.createDataset("/data", floatAttributes);
+		final float[] negative = new float[16];
+		Arrays.fill(negative, -0.0f);
+		floats.writeBlock("/data", floatAttributes, new FloatArrayDataBlock(new int[]{4, 4}, new long[]{0, 0}, negative));
+		floats.writeBlock("/data", floatAttributes, new FloatArrayDataBlock(new int[]{4, 4}, new long[]{1, 0}, new float[16]));
+
+		final String floatOutputPath = output("negative-zero-copy.n5");
+		TestContainers.execute(new Copy(), args(floatPath, floatOutputPath, "-b", "2,2", "-e"));
+		final N5FSReader n5 = new N5FSReader(floatOutputPath);
+		final DatasetAttributes outputAttributes = n5.getDatasetAttributes("/data");
+		final BlockGrid grid = new BlockGrid(outputAttributes);
+		for (long i = 0; i < grid.getNumBlocks(); ++i) {
+			final long[] gridPosition = grid.gridPosition(i);
+			final DataBlock<?> block = n5.readBlock("/data", outputAttributes, gridPosition);
+			if (gridPosition[0] < 2) {
+				for (final float v : (float[])block.getData())
+					assertEquals(Float.floatToRawIntBits(-0.0f), Float.floatToRawIntBits(v));
+			} else
+				assertNull(block);
+		}
+	}
+
+	@Test
+	public void testShardedChecksums() {
+
+		/* checksums are recorded per block, shards are written in one piece */
+		final String outputPath = output("sharded-checksums.zarr");
+		assertTrue(new CommandLine(new Copy()).execute(args(inputPath, outputPath, "--shardSize", "32,32,16", "--checksums")) != 0);
+		assertFalse(Files.exists(Paths.get(outputPath)));
+	}
 }
@@ -0,0 +1,348 @@
+package org.saalfeldlab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.DataBlocks;
+import org.janelia.saalfeldlab.block.IoExecutor;
+import org.janelia.saalfeldlab.block.MemoryBudget;
+import org.janelia.saalfeldlab.block.ProgressReporter;
+import org.janelia.saalfeldlab.block.PyramidReducer;
+import org.janelia.saalfeldlab.block.Rechunker;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RechunkerTest {
+
+	private static final long[] dimensions = new long[]{23, 17, 11};
+	private static final int[] sourceBlockSize = new int[]{5, 7, 3};
+	private static final int[] outputBlockSize = new int[]{10, 4, 8};
+
+	private static Path tmp;
+	private static N5FSWriter n5;
+	private static DatasetAttributes sourceAttributes;
+	private static long[] values;
+	private static ExecutorService exec;
+
+	/* counts source block reads and exposes the column layout */
+	static class TestRechunker extends Rechunker {
+
+		final ConcurrentHashMap<Long, AtomicInteger> reads = new ConcurrentHashMap<>();
+		final AtomicInteger readsInFlight = new AtomicInteger();
+		final AtomicInteger maxReadsInFlight = new AtomicInteger();
+		long latency = 0;
+
+		TestRechunker(
+				final String datasetName,
+				final DatasetAttributes sourceAttributes,
+				final List<DatasetAttributes> outputAttributes,
+				final long[] offset,
+				final int[] axes,
+				final MemoryBudget budget) {
+
+			super(RechunkerTest.n5, datasetName, sourceAttributes, outputAttributes, offset, axes, RechunkerTest.exec, new ProgressReporter(), budget);
+		}
+
+		TestRechunker(final DatasetAttributes outputAttributes, final MemoryBudget budget) {
+
+			this("/source", RechunkerTest.sourceAttributes, Collections.singletonList(outputAttributes), null, null, budget);
+		}
+
+		@Override
+		protected byte[] readBytes(final long[] gridPosition) {
+
+			reads.computeIfAbsent(sourceGrid.index(gridPosition), k -> new AtomicInteger()).incrementAndGet();
+			maxReadsInFlight.accumulateAndGet(readsInFlight.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(latency);
+			} catch (final InterruptedException e) {}
+			readsInFlight.decrementAndGet();
+			return super.readBytes(gridPosition);
+		}
+
+		@Override
+		public long maxColumnBytes() {
+
+			return super.maxColumnBytes();
+		}
+
+		long columnSize(final int d) {
+
+			return columnSize[d];
+		}
+
+		long bytesRead() {
+
+			return progress.getBytesRead();
+		}
+
+		long numReads() {
+
+			return reads.values().stream().mapToLong(AtomicInteger::get).sum();
+		}
+	}
+
+	/* collects the blocks of one output, each exactly once */
+	static class OutputBlocks implements Consumer<DataBlock<?>> {
+
+		final DatasetAttributes attributes;
+		final BlockGrid grid;
+		final ConcurrentHashMap<Long, DataBlock<?>> blocks = new ConcurrentHashMap<>();
+
+		OutputBlocks(final DatasetAttributes attributes) {
+
+			this.attributes = attributes;
+			grid = new BlockGrid(attributes);
+		}
+
+		@Override
+		public void accept(final DataBlock<?> block) {
+
+			assertArrayEquals(grid.blockSize(block.getGridPosition()), block.getSize());
+			assertNull(blocks.put(grid.index(block.getGridPosition()), block));
+		}
+
+		long[] values() {
+
+			assertEquals(grid.getNumBlocks(), blocks.size());
+			return TestContainers.assemble(blocks.values(), attributes);
+		}
+	}
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+
+		tmp = Files.createTempDirectory("n5-rechunker-test");
+		n5 = new N5FSWriter(tmp.resolve("test.n5").toString());
+		sourceAttributes = new DatasetAttributes(dimensions, sourceBlockSize, DataType.UINT16, new RawCompression());
+		values = TestContainers.random((int)(dimensions[0] * dimensions[1] * dimensions[2]), 1 << 16, 42);
+		TestContainers.write(n5, "/source", sourceAttributes, values);
+		exec = new ForkJoinPool(4);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+
+		exec.shutdown();
+		TestContainers.delete(tmp);
+	}
+
+	private static DatasetAttributes outputAttributes(final long[] dimensions, final int[] blockSize) {
+
+		return new DatasetAttributes(dimensions, blockSize, DataType.UINT16, new RawCompression());
+	}
+
+	@Test
+	public void testRechunk() {
+
+		final OutputBlocks output = new OutputBlocks(outputAttributes(dimensions, outputBlockSize));
+		final TestRechunker rechunker = new TestRechunker(output.attributes, null);
+		rechunker.copy(null, output).join();
+
+		/* every source block is read once */
+		assertEquals(new BlockGrid(sourceAttributes).getNumBlocks(), rechunker.numReads());
+		assertTrue(rechunker.bytesRead() >= values.length * 2);
+		assertArrayEquals(values, output.values());
+	}
+
+	@Test
+	public void testCrop() {
+
+		final long[] min = new long[]{3, 6, 2};
+		final long[] max = new long[]{19, 12, 9};
+		final long[] cropDimensions = new long[3];
+		for (int d = 0; d < 3; ++d)
+			cropDimensions[d] = max[d] - min[d] + 1;
+
+		final OutputBlocks output = new OutputBlocks(outputAttributes(cropDimensions, outputBlockSize));
+		final TestRechunker rechunker = new TestRechunker("/source", sourceAttributes, Collections.singletonList(output.attributes), min, null, null);
+		rechunker.copy(null, output).join();
+
+		/* only source blocks that intersect the crop are read */
+		long numIntersecting = 1;
+		for (int d = 0; d < 3; ++d)
+			numIntersecting *= max[d] / sourceBlockSize[d] - min[d] / sourceBlockSize[d] + 1;
+		assertEquals(numIntersecting, rechunker.reads.size());
+
+		final long[] expected = new long[(int)(cropDimensions[0] * cropDimensions[1] * cropDimensions[2])];
+		DataBlocks.copyIntersection(values, TestContainers.toInt(dimensions), new long[3], expected, TestContainers.toInt(cropDimensions), min);
+		assertArrayEquals(expected, output.values());
+	}
+
+	@Test
+	public void testTranspose() {
+
+		final int[] axes = new int[]{2, 0, 1};
+		final long[] transposedDimensions = DataBlocks.permute(dimensions, axes);
+
+		final OutputBlocks output = new OutputBlocks(outputAttributes(transposedDimensions, outputBlockSize));
+		final TestRechunker rechunker = new TestRechunker("/source", sourceAttributes, Collections.singletonList(output.attributes), null, axes, null);
+		rechunker.copy(null, output).join();
+		assertEquals(new BlockGrid(sourceAttributes).getNumBlocks(), rechunker.numReads());
+
+		/* output position x is source position unpermute(x) */
+		final long[] copy = output.values();
+		final long[] position = new long[3];
+		for (int i = 0; i < copy.length; ++i) {
+			for (int d = 0, j = i; d < 3; j /= transposedDimensions[d], ++d)
+				position[d] = j % transposedDimensions[d];
+			final long[] sourcePosition = DataBlocks.unpermute(position, axes);
+			final long sourceIndex = sourcePosition[0] + dimensions[0] * (sourcePosition[1] + dimensions[1] * sourcePosition[2]);
+			assertEquals(values[(int)sourceIndex], copy[i]);
+		}
+	}
+
+	@Test
+	public void testFanOut() {
+
+		final ArrayList<DatasetAttributes> attributes = new ArrayList<>();
+		final ArrayList<OutputBlocks> outputs = new ArrayList<>();
+		final ArrayList<Rechunker.Target> targets = new ArrayList<>();
+		for (final int[] blockSize : new int[][]{outputBlockSize, {6, 9, 5}, sourceBlockSize}) {
+			final OutputBlocks output = new OutputBlocks(outputAttributes(dimensions, blockSize));
+			attributes.add(output.attributes);
+			outputs.add(output);
+			targets.add(new Rechunker.Target(null, null, output));
+		}
+
+		final TestRechunker rechunker = new TestRechunker("/source", sourceAttributes, attributes, null, null, null);
+		rechunker.copy(targets).join();
+
+		/* every source block is read once for all outputs */
+		assertEquals(new BlockGrid(sourceAttributes).getNumBlocks(), rechunker.numReads());
+		for (final OutputBlocks output : outputs)
+			assertArrayEquals(values, output.values());
+	}
+
+	@Test
+	public void testIoExecutor() {
+
+		final OutputBlocks output = new OutputBlocks(outputAttributes(dimensions, outputBlockSize));
+		final TestRechunker rechunker = new TestRechunker(output.attributes, null);
+
+		/* simulate storage with 20 ms latency */
+		final IoExecutor io = new IoExecutor(64, false);
+		rechunker.latency = 20;
+		rechunker.setIoExecutor(io);
+		rechunker.copy(null, output).join();
+		io.shutdown();
+
+		/* more reads in flight than CPU threads */
+		assertTrue(rechunker.maxReadsInFlight.get() > 4);
+		assertArrayEquals(values, output.values());
+	}
+
+	@Test
+	public void testUnalignedColumns() {
+
+		/* lcm(64, 26) = 832 is more than 8 source blocks */
+		final long[] wideDimensions = new long[]{1100, 9, 7};
+		final DatasetAttributes wideAttributes = outputAttributes(wideDimensions, new int[]{64, 4, 3});
+		final long[] wide = TestContainers.random((int)(wideDimensions[0] * wideDimensions[1] * wideDimensions[2]), 1 << 16, 7919);
+		TestContainers.write(n5, "/wide", wideAttributes, wide);
+
+		final OutputBlocks output = new OutputBlocks(outputAttributes(wideDimensions, new int[]{26, 5, 4}));
+		final TestRechunker rechunker = new TestRechunker("/wide", wideAttributes, Collections.singletonList(output.attributes), null, null, null);
+
+		/* columns are aligned with the output grid and bounded */
+		assertTrue(rechunker.columnSize(0) <= 8 * 64);
+		assertEquals(0, rechunker.columnSize(0) % 26);
+
+		rechunker.copy(null, output).join();
+
+		/* all source blocks are read, those on column borders once per column */
+		assertEquals(new BlockGrid(wideAttributes).getNumBlocks(), rechunker.reads.size());
+		for (final AtomicInteger numReads : rechunker.reads.values())
+			assertTrue(numReads.get() <= 2);
+		assertArrayEquals(wide, output.values());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnalignedOutputs() {
+
+		/* output grids that do not align with each other within 8 blocks are rejected */
+		final long[] wideDimensions = new long[]{1100, 9, 7};
+		new TestRechunker(
+				"/source",
+				outputAttributes(wideDimensions, new int[]{64, 4, 3}),
+				Arrays.asList(
+						outputAttributes(wideDimensions, new int[]{26, 5, 4}),
+						outputAttributes(wideDimensions, new int[]{25, 5, 4})),
+				null,
+				null,
+				null);
+	}
+
+	@Test
+	public void testBudget() {
+
+		/* columns are narrowed in multiples of the output block size until they fit */
+		final OutputBlocks output = new OutputBlocks(outputAttributes(dimensions, outputBlockSize));
+		final MemoryBudget budget = new MemoryBudget(9000);
+		final TestRechunker rechunker = new TestRechunker(output.attributes, budget);
+		assertTrue(rechunker.maxColumnBytes() <= budget.getCapacity());
+		assertTrue(rechunker.columnSize(1) < dimensions[1]);
+		assertEquals(0, rechunker.columnSize(1) % outputBlockSize[1]);
+
+		rechunker.copy(null, output).join();
+		assertEquals(budget.getCapacity(), budget.getAvailable());
+		assertArrayEquals(values, output.values());
+
+		/* a column of single output blocks that does not fit runs alone */
+		final OutputBlocks tooSmallOutput = new OutputBlocks(output.attributes);
+		final MemoryBudget tooSmall = new MemoryBudget(1000);
+		final TestRechunker tooSmallRechunker = new TestRechunker(output.attributes, tooSmall);
+		assertTrue(tooSmallRechunker.maxColumnBytes() > tooSmall.getCapacity());
+
+		tooSmallRechunker.copy(null, tooSmallOutput).join();
+		assertEquals(tooSmall.getCapacity(), tooSmall.getAvailable());
+		assertArrayEquals(values, tooSmallOutput.values());
+	}
+
+	@Test
+	public void testPyramid() {
+
+		final int[] blockSize = new int[]{4, 4, 4};
+		final DatasetAttributes attributes = outputAttributes(dimensions, blockSize);
+		final OutputBlocks parent = new OutputBlocks(outputAttributes(PyramidReducer.downsampledDimensions(dimensions), blockSize));
+
+		/* the pending parent blocks count towards a column */
+		final TestRechunker unbounded = new TestRechunker(attributes, null);
+		final long bytes = unbounded.maxColumnBytes();
+		unbounded.setPyramid(0, 1, DataType.UINT16);
+		assertTrue(unbounded.maxColumnBytes() > bytes);
+
+		/* narrowed columns stay aligned with the parent blocks */
+		final MemoryBudget budget = new MemoryBudget(unbounded.maxColumnBytes() - 1);
+		final TestRechunker rechunker = new TestRechunker(attributes, budget);
+		rechunker.setPyramid(0, 1, DataType.UINT16);
+		assertTrue(rechunker.maxColumnBytes() <= budget.getCapacity());
+		for (int d = 0; d < 2; ++d)
+			assertTrue(rechunker.columnSize(d) % 8 == 0 || rechunker.columnSize(d) >= dimensions[d]);
+
+		rechunker.copy(null, new PyramidReducer(attributes, parent.attributes, false, parent)).join();
+		assertEquals(budget.getCapacity(), budget.getAvailable());
+		assertEquals(parent.grid.getNumBlocks(), parent.blocks.size());
+	}
+}
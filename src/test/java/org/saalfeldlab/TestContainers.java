@@ -0,0 +1,125 @@
+package org.saalfeldlab;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.DataBlocks;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import picocli.CommandLine;
+
+/**
+ * Datasets of known values in temporary containers, shared by the tests.
+ * Values are in x fastest order and passed around as long[] for all data
+ * types.
+ */
+class TestContainers {
+
+	private TestContainers() {}
+
+	static long[] random(final int n, final int bound, final long seed) {
+
+		final Random rnd = new Random(seed);
+		final long[] values = new long[n];
+		for (int i = 0; i < n; ++i)
+			values[i] = rnd.nextInt(bound);
+		return values;
+	}
+
+	static int[] toInt(final long[] array) {
+
+		final int[] intArray = new int[array.length];
+		for (int d = 0; d < array.length; ++d)
+			intArray[d] = (int)array[d];
+		return intArray;
+	}
+
+	/* write values into a new dataset */
+	static void write(final N5Writer n5, final String datasetName, final DatasetAttributes attributes, final long[] values) {
+
+		n5.createDataset(datasetName, attributes);
+		final BlockGrid grid = new BlockGrid(attributes);
+		final int[] size = toInt(attributes.getDimensions());
+		for (long i = 0; i < grid.getNumBlocks(); ++i) {
+			final long[] gridPosition = grid.gridPosition(i);
+			final int[] blockSize = grid.blockSize(gridPosition);
+			final long[] min = new long[gridPosition.length];
+			grid.blockMin(gridPosition, min);
+			final long[] blockValues = new long[DataBlock.getNumElements(blockSize)];
+			DataBlocks.copyIntersection(values, size, new long[min.length], blockValues, blockSize, min);
+			n5.writeBlock(datasetName, attributes, DataBlocks.createDataBlock(blockSize, gridPosition, DataBlocks.fromLongs(blockValues, attributes.getDataType())));
+		}
+	}
+
+	/* read all values of a dataset, missing blocks are 0 */
+	static long[] read(final N5Reader n5, final String datasetName) {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(datasetName);
+		final BlockGrid grid = new BlockGrid(attributes);
+		final long[] values = new long[DataBlock.getNumElements(toInt(attributes.getDimensions()))];
+		for (long i = 0; i < grid.getNumBlocks(); ++i) {
+			final DataBlock<?> block = n5.readBlock(datasetName, attributes, grid.gridPosition(i));
+			if (block != null)
+				insert(block, attributes, values);
+		}
+		return values;
+	}
+
+	/* assemble blocks of a grid, missing blocks are 0 */
+	static long[] assemble(final Collection<DataBlock<?>> blocks, final DatasetAttributes attributes) {
+
+		final long[] values = new long[DataBlock.getNumElements(toInt(attributes.getDimensions()))];
+		for (final DataBlock<?> block : blocks)
+			insert(block, attributes, values);
+		return values;
+	}
+
+	private static void insert(final DataBlock<?> block, final DatasetAttributes attributes, final long[] values) {
+
+		final long[] min = new long[attributes.getNumDimensions()];
+		new BlockGrid(attributes).blockMin(block.getGridPosition(), min);
+		DataBlocks.copyIntersection(
+				DataBlocks.toLongs(block.getData(), attributes.getDataType()),
+				block.getSize(),
+				min,
+				values,
+				toInt(attributes.getDimensions()),
+				new long[min.length]);
+	}
+
+	/* run a command, assert that it succeeds, and return what it printed */
+	static String execute(final Object command, final String... args) {
+
+		final ByteArrayOutputStream log = new ByteArrayOutputStream();
+		final PrintStream out = System.out;
+		System.setOut(new PrintStream(log, true));
+		final int exitCode;
+		try {
+			exitCode = new CommandLine(command).execute(args);
+		} finally {
+			System.setOut(out);
+		}
+		assertEquals(log.toString(), 0, exitCode);
+		return log.toString();
+	}
+
+	static void delete(final Path path) throws IOException {
+
+		try (final Stream<Path> paths = Files.walk(path)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+}
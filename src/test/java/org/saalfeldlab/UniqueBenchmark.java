@@ -0,0 +1,137 @@
+package org.saalfeldlab;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+
+import org.janelia.saalfeldlab.Unique;
+import org.janelia.saalfeldlab.block.BlockGrid;
+import org.janelia.saalfeldlab.block.DataBlocks;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import gnu.trove.set.hash.TDoubleHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the two ways of {@link Unique} to collect the values of a
+ * dataset with a single thread: scanning the primitive arrays of
+ * {@link DataBlock}s and iterating over the image with a cursor.  Synthetic
+ * label volumes of several types are written to a temporary N5 container
+ * without compression, so both include reading from the page cache and
+ * decoding:
+ *
+ * <pre>
+ * UniqueBenchmark [size [blockSize [repetitions]]]
+ * </pre>
+ */
+public class UniqueBenchmark {
+
+	public static void main(final String... args) throws IOException {
+
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		final int b = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		final int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		final N5FSWriter n5 = new N5FSWriter(Files.createTempDirectory("n5-unique-benchmark").toFile().getPath() + "/data.n5");
+		try {
+			System.out.println(String.format(Locale.ROOT, "%-8s %10s %14s %14s %8s", "type", "values", "blocks Mvx/s", "cursor Mvx/s", "speedup"));
+			for (final DataType dataType : new DataType[]{DataType.UINT8, DataType.UINT16, DataType.UINT32, DataType.UINT64, DataType.FLOAT32}) {
+				final String dataset = "/" + dataType;
+				final DatasetAttributes attributes = new DatasetAttributes(new long[]{n, n, n}, new int[]{b, b, b}, dataType, new RawCompression());
+				final BlockGrid grid = new BlockGrid(attributes);
+				write(n5, dataset, attributes, grid);
+
+				long blocksTime = Long.MAX_VALUE;
+				long cursorTime = Long.MAX_VALUE;
+				int numValues = 0;
+				for (int r = 0; r < repetitions; ++r) {
+					long t = System.nanoTime();
+					numValues = scanBlocks(n5, dataset, attributes, grid);
+					blocksTime = Math.min(blocksTime, System.nanoTime() - t);
+					t = System.nanoTime();
+					final int numCursorValues = scanCursor(n5, dataset, attributes, grid);
+					cursorTime = Math.min(cursorTime, System.nanoTime() - t);
+					if (numCursorValues != numValues)
+						throw new IllegalStateException(dataType + ": " + numValues + " != " + numCursorValues);
+				}
+				final double voxels = (double)n * n * n;
+				System.out.println(String.format(
+						Locale.ROOT,
+						"%-8s %10d %14.1f %14.1f %8.2f",
+						dataType,
+						numValues,
+						voxels / blocksTime * 1000,
+						voxels / cursorTime * 1000,
+						(double)cursorTime / blocksTime));
+			}
+		} finally {
+			n5.remove();
+		}
+	}
+
+	/* labels in runs of 13 voxels */
+	private static void write(final N5FSWriter n5, final String dataset, final DatasetAttributes attributes, final BlockGrid grid) {
+
+		n5.createDataset(dataset, attributes);
+		for (long i = 0; i < grid.getNumBlocks(); ++i) {
+			final long[] gridPosition = grid.gridPosition(i);
+			final int[] size = grid.blockSize(gridPosition);
+			final long[] values = new long[DataBlock.getNumElements(size)];
+			for (int j = 0; j < values.length; ++j)
+				values[j] = (i * values.length + j) / 13 % 50000;
+			final Object data =
+					attributes.getDataType() == DataType.FLOAT32 ?
+							DataBlocks.fromDoubles(DataBlocks.toDoubles(values, DataType.INT64), DataType.FLOAT32) :
+							DataBlocks.fromLongs(values, attributes.getDataType());
+			n5.writeBlock(dataset, attributes, DataBlocks.createDataBlock(size, gridPosition, data));
+		}
+	}
+
+	private static int scanBlocks(final N5FSWriter n5, final String dataset, final DatasetAttributes attributes, final BlockGrid grid) {
+
+		final TLongHashSet integers = new TLongHashSet();
+		final TDoubleHashSet reals = new TDoubleHashSet();
+		final DataType dataType = attributes.getDataType();
+		for (long i = 0; i < grid.getNumBlocks(); ++i) {
+			final DataBlock<?> dataBlock = n5.readBlock(dataset, attributes, grid.gridPosition(i));
+			if (dataType == DataType.FLOAT32)
+				Unique.addUniqueReal(dataBlock.getData(), dataType, reals);
+			else
+				Unique.addUniqueInteger(dataBlock.getData(), dataType, integers);
+		}
+		return dataType == DataType.FLOAT32 ? reals.size() : integers.size();
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static int scanCursor(final N5FSWriter n5, final String dataset, final DatasetAttributes attributes, final BlockGrid grid) {
+
+		final TLongHashSet integers = new TLongHashSet();
+		final TDoubleHashSet reals = new TDoubleHashSet();
+		final boolean isReal = attributes.getDataType() == DataType.FLOAT32;
+		/* a new image per run such that blocks are not cached */
+		final RandomAccessibleInterval img = N5Utils.open(n5, dataset);
+		final long[] min = new long[grid.numDimensions()];
+		final long[] max = new long[grid.numDimensions()];
+		for (long i = 0; i < grid.getNumBlocks(); ++i) {
+			final long[] gridPosition = grid.gridPosition(i);
+			grid.blockMin(gridPosition, min);
+			final int[] size = grid.blockSize(gridPosition);
+			for (int d = 0; d < max.length; ++d)
+				max[d] = min[d] + size[d] - 1;
+			final IterableInterval block = Views.iterable(Views.interval(img, min, max));
+			if (isReal)
+				Unique.addUniqueReal(block, reals);
+			else
+				Unique.addUniqueInteger(block, integers);
+		}
+		return isReal ? reals.size() : integers.size();
+	}
+}
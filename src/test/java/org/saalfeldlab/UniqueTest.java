@@ -0,0 +1,139 @@
+package org.saalfeldlab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.Unique;
+import org.janelia.saalfeldlab.block.DataBlocks;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+public class UniqueTest {
+
+	private static final long[] values = {0, 0, 0, 7, 7, 200, 300, 300, 0, 65535, 65535, 7, -1, -1};
+
+	private static Path basePath;
+	private static String containerPath;
+	private static long[] labels;
+	private static long[] reals;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+
+		basePath = Files.createTempDirectory("n5-unique-test");
+		containerPath = basePath.resolve("unique.n5").toString();
+		final N5FSWriter n5 = new N5FSWriter(containerPath);
+
+		/* more than 2^16 dense values, such that --set auto switches to a bitmap, and sparse large values */
+		labels = TestContainers.random(64 * 64 * 24, 1 << 30, 42);
+		for (int i = 0; i < labels.length; ++i)
+			if (i % 3 != 0)
+				labels[i] = i % 70000;
+		TestContainers.write(n5, "/labels", new DatasetAttributes(new long[]{64, 64, 24}, new int[]{16, 16, 8}, DataType.UINT32, new GzipCompression()), labels);
+
+		/* quarters as float bits */
+		reals = TestContainers.random(20 * 20 * 10, 500, 17);
+		for (int i = 0; i < reals.length; ++i)
+			reals[i] = Float.floatToIntBits(reals[i] * 0.25f);
+		TestContainers.write(n5, "/reals", new DatasetAttributes(new long[]{20, 20, 10}, new int[]{8, 8, 8}, DataType.FLOAT32, new GzipCompression()), reals);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+
+		TestContainers.delete(basePath);
+	}
+
+	@Test
+	public void testUniqueInteger() {
+
+		for (final DataType dataType : new DataType[]{DataType.UINT8, DataType.INT8, DataType.UINT16, DataType.INT16, DataType.UINT32, DataType.INT32, DataType.UINT64, DataType.INT64}) {
+			final Object data = DataBlocks.fromLongs(values, dataType);
+			final long[] expected = Arrays.stream(DataBlocks.toLongs(data, dataType)).distinct().sorted().toArray();
+			final TLongHashSet unique = new TLongHashSet();
+			Unique.addUniqueInteger(data, dataType, unique);
+			final long[] actual = unique.toArray();
+			Arrays.sort(actual);
+			assertTrue(dataType.toString(), Arrays.equals(expected, actual));
+		}
+	}
+
+	@Test
+	public void testCounts() {
+
+		for (final DataType dataType : new DataType[]{DataType.UINT8, DataType.INT16, DataType.UINT32, DataType.INT64}) {
+			final Object data = DataBlocks.fromLongs(values, dataType);
+			final long[] converted = DataBlocks.toLongs(data, dataType);
+			final TLongLongHashMap counts = new TLongLongHashMap();
+			Unique.addCounts(data, dataType, counts);
+			Unique.addCounts(data, dataType, counts);
+			long total = 0;
+			for (final long value : counts.keys()) {
+				assertEquals(dataType.toString(), 2 * Arrays.stream(converted).filter(v -> v == value).count(), counts.get(value));
+				total += counts.get(value);
+			}
+			assertEquals(2 * values.length, total);
+		}
+	}
+
+	/* run n5-unique with a number of threads and return the text output */
+	private static String unique(final String dataset, final int numThreads, final String... options) throws IOException {
+
+		final Path outputPath = basePath.resolve("unique-" + numThreads + ".txt");
+		final String[] args = {"-i", containerPath, "-d", dataset, "-t", Integer.toString(numThreads), "-o", outputPath.toString(), "--progress", "0"};
+		TestContainers.execute(new Unique(), Stream.concat(Arrays.stream(args), Arrays.stream(options)).toArray(String[]::new));
+		final String text = new String(Files.readAllBytes(outputPath), StandardCharsets.UTF_8);
+		Files.delete(outputPath);
+		return text;
+	}
+
+	@Test
+	public void testThreads() throws IOException {
+
+		/* the sets of 3 threads are merged pairwise with one unpaired set */
+		final long[] expected = Arrays.stream(labels).distinct().sorted().toArray();
+		for (final String set : new String[]{"hash", "bitmap", "auto"}) {
+			final String text = unique("/labels", 3, "--set", set);
+			assertEquals(set, unique("/labels", 1, "--set", set), text);
+			assertArrayEquals(expected, Arrays.stream(text.split("\n")).mapToLong(Long::parseLong).toArray());
+		}
+
+		final String counts = unique("/labels", 3, "--counts");
+		assertEquals(unique("/labels", 1, "--counts"), counts);
+		final String[] lines = counts.split("\n");
+		assertEquals("value,count", lines[0]);
+		assertEquals(expected.length + 1, lines.length);
+		assertEquals(labels.length, Arrays.stream(lines).skip(1).mapToLong(line -> Long.parseLong(line.split(",")[1])).sum());
+
+		final double[] expectedReals = LongStream.of(reals).distinct().mapToDouble(v -> Float.intBitsToFloat((int)v)).sorted().toArray();
+		final String realText = unique("/reals", 3);
+		assertEquals(unique("/reals", 1), realText);
+		assertArrayEquals(expectedReals, Arrays.stream(realText.split("\n")).mapToDouble(Double::parseDouble).toArray(), 0);
+	}
+
+	@Test
+	public void testStdout() {
+
+		/* a single line like earlier versions */
+		final long[] expected = Arrays.stream(labels).distinct().sorted().toArray();
+		final String log = TestContainers.execute(new Unique(), "-i", containerPath, "-d", "/labels", "--progress", "0");
+		assertEquals(Arrays.toString(expected) + "\n\n", log);
+	}
+}